@@ -3,17 +3,19 @@ package unimelb.distributedalgorithms.mutualexclusion.tetris;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.InputMismatchException;
 import java.util.Map;
-import java.util.TreeSet;
 
 /**
  * Implementation of the Agrawal El-Abbadi algorithm for Mutual Exclusion in a distributed network.
  *
- * The tree structure used is a binary tree, which implicitly exisits in the list used
- * during construction. The root is at index 0, and children of the node at index i exist at
- * indices 2*i + 1 and 2*i + 2.
+ * By default, the quorums are those of a binary tree ({@link TreeQuorum}), which implicitly
+ * exists in the list used during construction. The REQUEST, REPLY, INQUIRE, YIELD and
+ * RELINQUISH messages work the same for any {@link QuorumSystem}, so other shapes can be
+ * used instead, see {@link #useQuorumSystem}. With a {@link GridQuorum}, this is Maekawa's
+ * algorithm.
  *
  * Created by jorgen on 05/05/16.
  */
@@ -28,13 +30,8 @@ public class AgrawalElAbbadi extends Algorithm {
      */
     private VectorClock requestClock;
 
-    /** Queue for pending REQUESTs, ordered by their local timestamps.
-     * Note that the {@link TreeSet} implements {@link java.util.SortedSet}
-     * and seems better suited than e.g. a {@link java.util.PriorityQueue},
-     * since the latter uses a heap, which requires removing elements in order
-     * to get them in sorted order.
-     */
-    private TreeSet<QuorumMessage> requestQueue;
+    /** Queue for pending REQUESTs, ordered by their timestamps, at most one per sender. */
+    private RequestQueue requestQueue;
 
 
     /**
@@ -43,38 +40,33 @@ public class AgrawalElAbbadi extends Algorithm {
     private QuorumMessage reqQueueHead;
 
     /**
-     * A helper variable to keep a copy of this instance's vector clock
-     * when the first request was made. This allows us to compare the timestamp
-     * with later incoming requests for deadlock handling.
+     * Clock used instead of {@link #requestClock} if set, see {@link #useHybridClock}.
      */
-    private VectorClock selfRequestClock = null;
+    private HybridLogicalClock hybridClock = null;
 
     /**
-     * Dimension to keep track of requests sent.
-     *
-     * Used for RELINQUISHing nodes after exiting the Critical Section.
+     * Timestamp of this node's current request when using {@link #hybridClock}. Every REQUEST
+     * of one round carries it, so the request has the same place in every queue.
      */
-    private static final int REQUEST_SENT = 0;
+    private HybridTimestamp selfRequestHybrid = null;
 
     /**
-     * Dimension used to keep track of the current quorum
-     * held to guarantee Critical Section access.
+     * The peers a REQUEST has been sent to, by index in the sorted list of peers.
      */
-    private static final int REPLY_RECEIVED = 1;
+    private BitSet requestSent;
 
     /**
-     * Dimension to track failed nodes and allow the algorithm to adapt.
+     * For each peer, the number of REQUESTs that were RELINQUISHed before their REPLY arrived.
+     * Every REQUEST is answered by exactly one REPLY, even a withdrawn one, and channels are
+     * FIFO, so that many of the next REPLYs from the peer belong to withdrawn REQUESTs.
      */
-    private static final int FAILED_PEER = 2;
-
-    private static final int NUM_PROPERTIES = 3;
+    private int[] withdrawnReplies;
 
     /**
-     * Boolean array for tracked boolean properties of the peers. Each peer's
-     * properties can be found at properties[PROPERTY_INDEX][PEER_INDEX],
-     * where the PEER_INDEX is as in the sorted list of peers.
+     * The REPLYs received and the failed peers, which tracks whether the current quorum
+     * is held to guarantee Critical Section access.
      */
-    private boolean[][] properties;
+    private QuorumSystem quorum;
 
     /** Map from an {@link ITetrisPeer}'s ID to its index. */
     private Map<String, Integer> peerIndexMap;
@@ -82,6 +74,33 @@ public class AgrawalElAbbadi extends Algorithm {
     /** The index of this node. */
     private int selfIndex;
 
+    /**
+     * Whether to send only the changed entries of {@link #requestClock}, see
+     * {@link #setDifferentialClocks}.
+     */
+    private boolean differentialClocks = false;
+
+    /**
+     * Round trip times from REQUEST to REPLY, which the {@link #quorum} uses as costs to
+     * choose quorums, or <i>null</i> unless enabled by {@link #useLatencyAwareQuorums}.
+     */
+    private RoundTripTimes roundTripTimes = null;
+
+    /** Where {@link #roundTripTimes} are measured from. */
+    private HybridLogicalClock.TimeSource rttTimeSource;
+
+    /** When the REQUEST of the current round was sent to each peer, or -1 once answered. */
+    private long[] requestSentAt;
+
+    /** Marks a peer as failed when a message to it could not be sent, by peer index. */
+    private SendHandle.Listener[] sendListeners;
+
+    /** Whether {@link #requestQuorum} is sending REQUESTs. */
+    private boolean selectingQuorum = false;
+
+    /** Whether a peer {@link #requestQuorum} sent a REQUEST to has failed in the meantime. */
+    private boolean quorumLost = false;
+
 
     /**
      * Initialises the algorithm for a given list of {@link ITetrisPeer}s
@@ -120,62 +139,171 @@ public class AgrawalElAbbadi extends Algorithm {
         }
 
         requestClock = new VectorClock(numPeers, selfIndex);
-        requestQueue = new TreeSet<>();
+        requestQueue = new RequestQueue();
 
-        properties = new boolean[NUM_PROPERTIES][numPeers];
+        requestSent = new BitSet(numPeers);
+        withdrawnReplies = new int[numPeers];
+        quorum = new TreeQuorum(numPeers);
+
+        sendListeners = new SendHandle.Listener[numPeers];
+        for (int i = 0; i < numPeers; i++) {
+            sendListeners[i] = new SendFailureListener(i);
+        }
+    }
+
+    /**
+     * Handles a message that could not be sent like the failure of its recipient.
+     */
+    private final class SendFailureListener implements SendHandle.Listener {
+        private final int recipientIndex;
+
+        SendFailureListener(int recipientIndex) {
+            this.recipientIndex = recipientIndex;
+        }
+
+        @Override
+        public void onSent(SendHandle handle) {
+        }
+
+        @Override
+        public void onFailed(SendHandle handle) {
+            synchronized (AgrawalElAbbadi.this) {
+                Log.i(TAG, "Could not reach " + peers.get(recipientIndex).getID() + ", marking it as failed");
+
+                // The peer did not get the changes, so the next message must carry everything.
+                requestClock.resendAll(recipientIndex);
+                handleFailure(recipientIndex);
+            }
+        }
     }
 
 
     /**
-     * Helper to handle message passing/formatting.
+     * Sends only the entries of the vector clock that changed since the last message to each
+     * peer, instead of the whole clock. Messages get smaller in large groups, but this must only
+     * be enabled if messages are never lost or reordered between two peers.
      *
-     * @param destination  {@link ITetrisPeer} to send the message to.
-     * @param msg  the message to send.
+     * Received messages are decoded in either format, so peers do not need to agree on this.
+     *
+     * @param enabled  <i>true</i> to send differential clocks.
      */
-    private synchronized boolean sendMessage(ITetrisPeer destination, String msg) {
-        QuorumMessage toSend;
+    public synchronized void setDifferentialClocks(boolean enabled) {
+        differentialClocks = enabled;
+    }
 
-        toSend = new QuorumMessage(self, requestClock, msg);
+    /**
+     * Uses the given quorum system instead of a {@link TreeQuorum}. All peers must use
+     * the same kind of quorum system, and it must be set before requesting the Critical Section.
+     *
+     * @param quorumSystem  a new {@link QuorumSystem} for the whole group of peers.
+     */
+    public synchronized void useQuorumSystem(QuorumSystem quorumSystem) {
+        if (quorumSystem.size() != peers.size()) {
+            throw new IllegalArgumentException("Quorum system is for " + quorumSystem.size()
+                    + " peers instead of " + peers.size());
+        }
+        if (csRequested()) {
+            throw new IllegalStateException("Can not change the quorum system while requesting");
+        }
 
-        boolean msgSent = destination.sendMessage(self, toSend.toString());
+        quorum = quorumSystem;
+    }
 
-        int recepientIndex = peerIndexMap.get(destination.getID());
+    /**
+     * Measures the time each peer takes to REPLY to a REQUEST, and chooses quorums whose
+     * slowest peer answers the fastest, instead of by position in the sorted list of peers.
+     * A peer that is busy granting another request also answers slowly, so this spreads
+     * requests away from contended peers as well as slow links.
+     *
+     * @param timeSource  where to measure time from, e.g. {@link HybridLogicalClock#SYSTEM_TIME},
+     *                    or <i>null</i> to choose quorums by position again.
+     */
+    public synchronized void useLatencyAwareQuorums(HybridLogicalClock.TimeSource timeSource) {
+        int numPeers = peers.size();
+        rttTimeSource = timeSource;
 
-        if (!msgSent) {
-            properties[FAILED_PEER][recepientIndex] = true;
-            return false;
+        if (timeSource == null) {
+            roundTripTimes = null;
+            requestSentAt = null;
+            for (int i = 0; i < numPeers; i++) {
+                quorum.setCost(i, 0);
+            }
+        } else if (roundTripTimes == null) {
+            roundTripTimes = new RoundTripTimes(numPeers);
+            requestSentAt = new long[numPeers];
+            Arrays.fill(requestSentAt, -1);
+        }
+    }
+
+    /**
+     * Timestamps messages with a {@link HybridLogicalClock} instead of the vector clock.
+     * Timestamps are then a few bytes regardless of the group size, and pending requests
+     * are queued in a strict total order. All peers must use the same kind of clock.
+     *
+     * @param timeSource  where the clock reads physical time from, e.g.
+     *                    {@link HybridLogicalClock#SYSTEM_TIME}.
+     */
+    public synchronized void useHybridClock(HybridLogicalClock.TimeSource timeSource) {
+        hybridClock = new HybridLogicalClock(selfIndex, timeSource);
+    }
+
+    /**
+     * Helper to look up the {@link ITetrisPeer} with the given ID in the list of peers.
+     *
+     * @param peerID  ID of the {@link ITetrisPeer} to look up.
+     *
+     * @return the {@link ITetrisPeer} with ID {@param peerID}.
+     */
+    private ITetrisPeer getPeer(String peerID) {
+        return peers.get(peerIndexMap.get(peerID));
+    }
+
+
+    /**
+     * Helper to handle message passing/formatting.
+     *
+     * The message is sent asynchronously, so a slow peer does not hold up the others or keep
+     * the lock. Its bookkeeping is done up front, and undone by {@link SendFailureListener}
+     * if the peer cannot be reached.
+     *
+     * @param destination  {@link ITetrisPeer} to send the message to.
+     * @param msg  the message to send.
+     */
+    private synchronized void sendMessage(ITetrisPeer destination, String msg) {
+        int recepientIndex = peerIndexMap.get(destination.getID());
+        String toSend;
+
+        if (hybridClock != null) {
+            HybridTimestamp ts = msg.equals(AlgorithmMessage.REQUEST) && selfRequestHybrid != null
+                    ? selfRequestHybrid : hybridClock.sendAction();
+            toSend = new QuorumMessage(self, ts, msg).toString();
+        } else if (differentialClocks) {
+            toSend = QuorumMessage.toChangesString(msg, requestClock, recepientIndex);
+        } else {
+            toSend = new QuorumMessage(self, requestClock.snapshot(), msg).toString();
         }
 
         switch (msg) {
             case AlgorithmMessage.REQUEST:
-                properties[REQUEST_SENT][recepientIndex] = true;
+                requestSent.set(recepientIndex);
+                if (roundTripTimes != null) {
+                    requestSentAt[recepientIndex] = rttTimeSource.currentTimeMillis();
+                }
                 break;
 
             case AlgorithmMessage.RELINQUISH:
-                properties[REPLY_RECEIVED][recepientIndex] = false;
-                properties[REQUEST_SENT][recepientIndex] = false;
-                break;
-
-            case AlgorithmMessage.REPLY:
-                properties[REPLY_RECEIVED][recepientIndex] = true;
+                quorum.setGranted(recepientIndex, false);
+                requestSent.clear(recepientIndex);
                 break;
         }
 
-        return true;
+        destination.sendMessageAsync(self, toSend).setListener(sendListeners[recepientIndex]);
     }
 
 
     @Override
     public synchronized void receiveMessage(ITetrisPeer sender, String msg) {
-        QuorumMessage qMsg = QuorumMessage.fromString(msg);
-
-        String senderID = sender.getID();
-        String msgID = qMsg.getSenderID();
-
-        if (!senderID.equals(msgID)) {
-            throw new InputMismatchException("Mismatch in sender/msg ID;"
-                    + "Sender: " + senderID + "; Message: " + msgID);
-        }
+        QuorumMessage qMsg = QuorumMessage.fromString(sender.getID(), msg, requestClock);
 
         handleMessage(sender, qMsg);
     }
@@ -183,8 +311,12 @@ public class AgrawalElAbbadi extends Algorithm {
     private synchronized void handleMessage(ITetrisPeer sender, QuorumMessage qMsg) {
         String type = qMsg.getMessage();
 
-        // Update the local vector clock:
-        requestClock.receiveAction(qMsg.getTimestamp());
+        // Update the local clock:
+        if (qMsg.getHybridTimestamp() == null) {
+            requestClock.receiveAction(qMsg.getTimestamp());
+        } else if (hybridClock != null) {
+            hybridClock.receiveAction(qMsg.getHybridTimestamp());
+        }
 
         int senderIndex = peerIndexMap.get(sender.getID());
 
@@ -217,23 +349,30 @@ public class AgrawalElAbbadi extends Algorithm {
 
     /**
      * This method handles the failure by marking the node as FAILED, which will mean
-     * obtaining a quorum through this node will mean obtaining a tree quorum of each
-     * of its children.
+     * a quorum without this node has to be obtained (e.g. in a tree, a tree quorum of
+     * each of its children).
      *
      * A NODE_FAILURE message can be sent to the algorithm from the owner process.
      *
      * @param senderIndex  the index of the failed node.
      */
     private void handleFailure(int senderIndex) {
-        properties[FAILED_PEER][senderIndex] = true;
-        boolean reobtainQuorum = properties[REQUEST_SENT][senderIndex];
-        properties[REQUEST_SENT][senderIndex] = false;
-        properties[REPLY_RECEIVED][senderIndex] = false;
+        quorum.setFailed(senderIndex);
+        withdrawnReplies[senderIndex] = 0;
+        boolean reobtainQuorum = requestSent.get(senderIndex);
+        requestSent.clear(senderIndex);
 
-        // Ensure
+        // Ensure a quorum is still requested, without the failed node:
         if (reobtainQuorum) {
-            requestQuorum(senderIndex);
+            if (selectingQuorum) {
+                quorumLost = true;
+            } else {
+                requestQuorum();
+            }
         }
+
+        // The children of the failed node may already have granted permission.
+        critSectionMayBeObtained();
     }
 
     /**
@@ -248,20 +387,10 @@ public class AgrawalElAbbadi extends Algorithm {
      * @param qMsg  the {@link QuorumMessage} that was sent.
      */
     private synchronized void handleRequest(ITetrisPeer sender, QuorumMessage qMsg) {
-        String senderID = sender.getID();
         // Add the request to the queue if the requesting node is not already in the queue.
-        boolean duplicate = false;
-        for (QuorumMessage qm : requestQueue) {
-            if (senderID.equals(qm.getSenderID())) {
-                Log.e(TAG,"Duplicate REQUEST from: " + senderID);
-                duplicate = true;
-            }
-        }
-
-        if (!duplicate) {
-            // If its timestamp is lower, it will be the next
-            // to receive permission since we are using a priority queue.
-            requestQueue.add(qMsg);
+        // If its timestamp is lower, it will be the next to receive permission.
+        if (!requestQueue.add(qMsg)) {
+            Log.e(TAG, "Duplicate REQUEST from: " + sender.getID());
         }
 
         if (reqQueueHead == null) {
@@ -269,7 +398,7 @@ public class AgrawalElAbbadi extends Algorithm {
         } else if (qMsg.compareTo(reqQueueHead) < 0) {
             // If the new request is older than the current permission holder,
             // INQUIRE the current holder.
-            TetrisPeer currHolder = new TetrisPeer(reqQueueHead.getSenderID());
+            ITetrisPeer currHolder = getPeer(reqQueueHead.getSenderID());
             sendMessage(currHolder, AlgorithmMessage.INQUIRE);
         }
 
@@ -283,81 +412,47 @@ public class AgrawalElAbbadi extends Algorithm {
      * if applicable.)
      */
     private synchronized void replyToQueueHead() {
-        Log.i(TAG, "replyToQueueHead");
-        for (QuorumMessage qm : requestQueue) {
-            Log.i(TAG, "  Queue items: ID: " + qm.getSenderID() + ", clock: " + qm.getTimestamp().toString());
-        }
-
-        Log.i(TAG, "Queue length: " + requestQueue.size());
         reqQueueHead = requestQueue.pollFirst();
-        Log.i(TAG, "Queue length after pollFirst(): " + requestQueue.size());
 
         if (reqQueueHead != null) {
-            ITetrisPeer toTell = new TetrisPeer(reqQueueHead.getSenderID());
+            Log.i(TAG, "Replying to " + reqQueueHead.getSenderID() + ", " + requestQueue.size() + " waiting");
+            ITetrisPeer toTell = getPeer(reqQueueHead.getSenderID());
             sendMessage(toTell, AlgorithmMessage.REPLY);
         }
     }
 
     /**
      * When a REPLY is received, add the sender to our quorum (by modifying
-     * its REPLY_RECEIVED field).
+     * its permission in the {@link QuorumSystem}).
      *
      * @param sender  the {@link ITetrisPeer} that sent the REPLY.
      * @param senderIndex  {@param sender}'s index in the list of peers.
      */
     private synchronized void handleReply(ITetrisPeer sender, int senderIndex) {
-        if (properties[REQUEST_SENT][senderIndex]) {
+        if (withdrawnReplies[senderIndex] > 0) {
+            // Answers a REQUEST that has been withdrawn, and was RELINQUISHed already.
+            withdrawnReplies[senderIndex]--;
 
-            properties[REPLY_RECEIVED][senderIndex] = true;
+        } else if (requestSent.get(senderIndex)) {
 
-            if (quorumObtained(0)) {
-                // Create a dummy message as virtual head of the queue:
-                reqQueueHead = new QuorumMessage(self, selfRequestClock, AlgorithmMessage.REQUEST);
-                this.notify();
+            if (roundTripTimes != null && requestSentAt[senderIndex] >= 0) {
+                // Only the first REPLY per REQUEST is a sample; later ones follow a YIELD.
+                roundTripTimes.addSample(senderIndex, rttTimeSource.currentTimeMillis() - requestSentAt[senderIndex]);
+                requestSentAt[senderIndex] = -1;
             }
 
-        } else {
-            Log.e(TAG, "Warning: Received unrequested REPLY.");
-            sendMessage(sender, AlgorithmMessage.RELINQUISH);
-        }
-    }
-
-    /**
-     * Recursively check whether a tree quorum has been obtained.
-     *
-     * @param peerIndex  Index of node to check permission status for.
-     *
-     * @return <i>true</i> if permission was granted by some
-     *  sub-quorum of the given node, <i>false otherwise</i>.
-     */
-    private synchronized boolean quorumObtained(Integer peerIndex) {
-        int numPeers = peers.size();
-
-        if (peerIndex >= numPeers) {
-            // Empty node
-            return true;
-        }
+            quorum.setGranted(senderIndex, true);
 
-        // List is zero-indexed:
-        Integer leftChild = 2 * peerIndex + 1;
-        Integer rightChild = leftChild + 1;
-
-        boolean recPermGranted = properties[REPLY_RECEIVED][peerIndex];
+            if (quorum.isObtained()) {
+                critSectionMayBeObtained();
+            }
 
-        // If node i has not failed and has granted permission,
-        // recursive permission from either child means a quorum has been obtained.
-        // If the node only has one child (incomplete tree), it must provide permission.
-        if (!properties[FAILED_PEER][peerIndex] && recPermGranted && rightChild < numPeers) {
-            recPermGranted = (quorumObtained(leftChild) || quorumObtained(rightChild));
         } else {
-            recPermGranted =
-                    recPermGranted && quorumObtained(leftChild) && quorumObtained(rightChild);
+            Log.e(TAG, "Warning: Received unrequested REPLY.");
+            sendMessage(sender, AlgorithmMessage.RELINQUISH);
         }
-
-        return recPermGranted;
     }
 
-
     /**
      * Handes a RELINQUISH message by discarding the current request queue head
      * and REPLYing to the next request in the queue (if it is not empty).
@@ -372,21 +467,12 @@ public class AgrawalElAbbadi extends Algorithm {
             replyToQueueHead();
 
         } else {
-            // Handling rogue relinquish messages, or in case of
-            // releasing a request before it has been replied to (if allowed):
-            QuorumMessage toRemove = null;
-
-            for (QuorumMessage nextMsg : requestQueue) {
-                if (sender.getID().equals(nextMsg.getSenderID())) {
-                    toRemove = nextMsg;
-                    break;
-                }
-            }
-
-            if (toRemove != null) {
-                requestQueue.remove(toRemove);
-            } else {
+            // Handling rogue relinquish messages, or a request that is withdrawn before it
+            // has been replied to. The sender still expects one REPLY to the request.
+            if (requestQueue.remove(sender.getID()) == null) {
                 System.err.printf("Erroneous RELINQUISH from '%s'", sender.getID());
+            } else {
+                sendMessage(sender, AlgorithmMessage.REPLY);
             }
         }
     }
@@ -399,19 +485,21 @@ public class AgrawalElAbbadi extends Algorithm {
      * allow an older request to obtain it (thus avoiding deadlocks and starvation).
      *
      * Otherwise ignore the INQUIRE and send a RELINQUISH, as usual, after
-     * exiting the Critical Section.
+     * exiting the Critical Section. An INQUIRE about a permission that is not held
+     * anymore, e.g. of a withdrawn request, is ignored as well.
      *
      * @param sender  the {@link ITetrisPeer} that sent the INQUIRE.
      * @param senderIndex  {@param sender}'s index in the list of peers.
      */
     private synchronized void handleInquire(ITetrisPeer sender, int senderIndex) {
-        if (!quorumObtained(0) && properties[REQUEST_SENT][senderIndex]) {
-            properties[REPLY_RECEIVED][senderIndex] = false;
+        if (!quorum.isObtained() && quorum.isGranted(senderIndex)) {
+            quorum.setGranted(senderIndex, false);
             sendMessage(sender, AlgorithmMessage.YIELD);
 
         } else {
-            Log.e(TAG, "Erroneous INQUIRE from '" + sender.getID() + "'");
-            sendMessage(sender, AlgorithmMessage.RELINQUISH);
+            // Either the permission is in use, and will be relinquished when leaving the
+            // Critical Section, or it has already been yielded or relinquished.
+            Log.i(TAG, "Ignoring INQUIRE from '" + sender.getID() + "'");
         }
     }
 
@@ -430,7 +518,9 @@ public class AgrawalElAbbadi extends Algorithm {
     private synchronized void handleYield(ITetrisPeer sender) {
         String senderID = sender.getID();
 
-        if (senderID.equals(reqQueueHead.getSenderID())) {
+        if (reqQueueHead != null && senderID.equals(reqQueueHead.getSenderID())) {
+            // If the sender has sent a newer REQUEST in the meantime, that one stays queued.
+            requestQueue.add(reqQueueHead);
             replyToQueueHead();
         } else {
             Log.e(TAG, "Erroneous YIELD from '" + senderID + "'");
@@ -443,16 +533,12 @@ public class AgrawalElAbbadi extends Algorithm {
      * @return <i>true</i> if the Critical Section has been requested, <i>false</i> otherwise.
      */
     private synchronized boolean csRequested() {
-        for (Boolean b : properties[REQUEST_SENT]) {
-            if (b) { return true; }
-        }
-
-        return false;
+        return !requestSent.isEmpty();
     }
 
 
     @Override
-    public synchronized boolean obtainCritSection() {
+    synchronized boolean startObtainCritSection() {
         if (!csRequested()) {
 
             // Send request to self first, to ensure the timestamp on a self-request is the lowest
@@ -466,71 +552,109 @@ public class AgrawalElAbbadi extends Algorithm {
             // Make a copy of the requestClock in case we have to send a message to ourselves.
             // We want to send the request to ourselves first in order to avoid deadlocks.
 
-            requestClock.sendAction();
-            selfRequestClock = requestClock.copy();
+            if (hybridClock != null) {
+                selfRequestHybrid = hybridClock.sendAction();
+            } else {
+                requestClock.sendAction();
+            }
 
-            if (!requestQuorum(0)) {
+            if (!requestQuorum()) {
                 // Failed to request access from a quorum of peers;
                 return false;
             }
         }
 
+        return true;
+    }
+
+    @Override
+    synchronized boolean holdsCritSection() {
+        return quorum.isObtained();
+    }
+
+    /**
+     * RELINQUISHes every peer asked, whether it has REPLYed yet or not, so that peers which
+     * have not do not keep the request queued.
+     */
+    @Override
+    synchronized void cancelObtainCritSection() {
+        relinquishRequested();
+    }
+
+    @Override
+    public synchronized boolean obtainCritSection() {
+        if (!startObtainCritSection()) {
+            return false;
+        }
+
         try {
             // Ensure quorum has actually been obtained before leaving the method:
-            while (reqQueueHead == null || !self.equals(reqQueueHead.getSenderID())) {
+            while (!quorum.isObtained()) {
                 Log.i(TAG, "Sleeping while awaiting Critical Section access");
                 this.wait();
             }
         } catch (InterruptedException e) {
-            // Quorum has been obtained.
+            // Give up: the quorum's permissions are given back.
+            cancelObtainCritSection();
+            Thread.currentThread().interrupt();
+            return false;
         }
 
         return true;
     }
 
     /**
-     * Recursively REQUEST access to the critical section from a Quorum of {@link ITetrisPeer}s.
+     * REQUEST access to the critical section from a Quorum of {@link ITetrisPeer}s, chosen by
+     * the {@link QuorumSystem}. Peers found to have failed while the REQUESTs are sent are
+     * left out of another quorum, until the REQUESTs to one have all gone out; peers found
+     * later are handled by {@link #handleFailure}.
      *
-     * @param i  next ITetrisPeer to REQUEST access from.
      * @return <i>true</i> if requests were successfully sent to a quorum of Peers,
      *         <i>false</i> otherwise.
      */
-    private synchronized boolean requestQuorum(int i) {
-        if (i >= peers.size()) {
-            return true;
+    private synchronized boolean requestQuorum() {
+        if (roundTripTimes != null) {
+            for (int i = 0; i < peers.size(); i++) {
+                quorum.setCost(i, roundTripTimes.cost(i));
+            }
         }
 
-        ITetrisPeer toAsk = peers.get(i);
-
-        int leftChild = 2 * i + 1;
-        int rightChild = leftChild + 1;
-
-        boolean messageSent = !properties[FAILED_PEER][i] &&
-                (properties[REQUEST_SENT][i] || sendMessage(toAsk, AlgorithmMessage.REQUEST));
-
-
-        properties[REQUEST_SENT][i] = messageSent;
+        selectingQuorum = true;
+        try {
+            do {
+                quorumLost = false;
 
-        boolean quorumRequested = requestQuorum(leftChild);
+                BitSet toAsk = quorum.select(selfIndex);
+                if (toAsk == null) {
+                    return false;
+                }
 
-        if (!messageSent) {
-            properties[FAILED_PEER][i] = true;
-            quorumRequested = quorumRequested && requestQuorum(rightChild);
-        } else {
-            quorumRequested = quorumRequested || requestQuorum(rightChild);
+                for (int i = toAsk.nextSetBit(0); i >= 0; i = toAsk.nextSetBit(i + 1)) {
+                    if (!requestSent.get(i)) {
+                        sendMessage(peers.get(i), AlgorithmMessage.REQUEST);
+                    }
+                }
+            } while (quorumLost);
+        } finally {
+            selectingQuorum = false;
         }
 
-        return quorumRequested;
+        return true;
     }
 
 
-
+    /**
+     * Returns this node while it holds a quorum, and otherwise the node it has given
+     * its own permission to, if any.
+     */
     @Override
     public synchronized ITetrisPeer getCurrentCritSectPeer() {
-        if (reqQueueHead == null) {
+        if (quorum.isObtained()) {
+            return peers.get(selfIndex);
+        } else if (reqQueueHead == null) {
             return null;
         } else {
-            return new TetrisPeer(reqQueueHead.getSenderID());
+            return getPeer(reqQueueHead.getSenderID());
         }
     }
 
@@ -542,28 +666,37 @@ public class AgrawalElAbbadi extends Algorithm {
      */
     @Override
     public synchronized boolean releaseCritSection() {
-        int numPeers = peers.size();
-
         if (!csRequested()) {
             Log.e(TAG, "Tried to release CS without requesting it");
-        } else if (!self.equals(reqQueueHead.getSenderID())) {
-            Log.e(TAG, "releasing CS when !self.equals(reqQueueHead.getSenderID())");
+        } else if (!quorum.isObtained()) {
+            Log.e(TAG, "Releasing CS before a quorum was obtained");
         }
 
-        for (int peerIndex = 0; peerIndex < numPeers; peerIndex++) {
-            if (properties[REPLY_RECEIVED][peerIndex]) {
-                sendMessage(peers.get(peerIndex), AlgorithmMessage.RELINQUISH);
-            }
-        }
+        relinquishRequested();
 
+        return true;
+    }
 
-        properties[REPLY_RECEIVED] = new boolean[numPeers];
-        properties[REQUEST_SENT] = new boolean[numPeers];
-        selfRequestClock = null;
+    /**
+     * Sends a RELINQUISH to every peer a REQUEST has been sent to in this round, and ends
+     * the round. Peers that have not REPLYed yet drop the request from their queues.
+     */
+    private synchronized void relinquishRequested() {
+        for (int peerIndex = requestSent.nextSetBit(0); peerIndex >= 0; peerIndex = requestSent.nextSetBit(peerIndex + 1)) {
+            // Counted before sending, as a failed send resets the count.
+            if (!quorum.isGranted(peerIndex)) {
+                withdrawnReplies[peerIndex]++;
+                if (roundTripTimes != null) {
+                    requestSentAt[peerIndex] = -1;
+                }
+            }
 
-        replyToQueueHead();
+            sendMessage(peers.get(peerIndex), AlgorithmMessage.RELINQUISH);
+        }
 
-        return true;
+        quorum.clearGranted();
+        requestSent.clear();
+        selfRequestHybrid = null;
     }
 
 }
@@ -24,6 +24,9 @@ public abstract class Algorithm implements IAlgorithm{
      */
     protected ArrayList<ITetrisPeer> peers;
 
+    /** The lease of the request made with {@link #requestCritSection()} while it is pending. */
+    private CritSectLease pendingLease = null;
+
     /**
      * Initialises the algorithm for a given list of {@link ITetrisPeer}s.
      * @param peers
@@ -35,4 +38,103 @@ public abstract class Algorithm implements IAlgorithm{
         Collections.sort(peers);
     }
 
+    /**
+     * Sends what is needed to request the critical section, without waiting for the answers.
+     *
+     * @return <i>false</i> if the request failed.
+     */
+    abstract boolean startObtainCritSection();
+
+    /**
+     * @return <i>true</i> once the critical section requested by
+     *         {@link #startObtainCritSection()} has been obtained.
+     */
+    abstract boolean holdsCritSection();
+
+    /**
+     * Withdraws the request sent by {@link #startObtainCritSection()}, which has not obtained
+     * the critical section yet, so that the other peers stop holding it up for this one.
+     * If the critical section still arrives afterwards (e.g. a token already on its way),
+     * it must be passed on as if it had been released.
+     */
+    abstract void cancelObtainCritSection();
+
+    /**
+     * Must be called, with the algorithm locked, whenever the critical section may have been
+     * obtained: wakes up {@link #obtainCritSection()} and grants a pending
+     * {@link CritSectLease}.
+     */
+    final void critSectionMayBeObtained() {
+        this.notifyAll();
+
+        if (pendingLease != null && holdsCritSection()) {
+            CritSectLease lease = pendingLease;
+            pendingLease = null;
+            lease.grant();
+        }
+    }
+
+    @Override
+    public synchronized CritSectLease requestCritSection() {
+        if (pendingLease != null) {
+            return pendingLease;
+        }
+
+        CritSectLease lease = new CritSectLease(this);
+        pendingLease = lease;
+
+        if (!startObtainCritSection()) {
+            pendingLease = null;
+            lease.fail();
+        } else {
+            critSectionMayBeObtained();
+        }
+
+        return lease;
+    }
+
+    /**
+     * Withdraws the given request if it is still pending, and fails its lease.
+     *
+     * @return <i>true</i> if the request was withdrawn.
+     */
+    synchronized boolean cancelCritSectionRequest(CritSectLease lease) {
+        if (pendingLease != lease) {
+            return false;
+        }
+
+        pendingLease = null;
+        cancelObtainCritSection();
+        lease.fail();
+        return true;
+    }
+
+    @Override
+    public boolean tryObtainCritSection(long timeoutMillis) throws InterruptedException {
+        CritSectLease lease;
+
+        synchronized (this) {
+            if (pendingLease != null) {
+                // Another caller's request, which is theirs to cancel or release.
+                return false;
+            }
+            lease = requestCritSection();
+        }
+
+        try {
+            if (lease.await(timeoutMillis)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            if (!lease.cancel()) {
+                // Granted just before the interrupt: give it back, the caller won't.
+                lease.release();
+            }
+            throw e;
+        }
+
+        // It may have been granted just after the timeout, in which case it is kept.
+        return !lease.cancel() && lease.isGranted();
+    }
+
 }
@@ -0,0 +1,91 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A mailbox that feeds the messages received for one {@link IAlgorithm} to it on a thread of
+ * its own, in the order they were received.
+ *
+ * Decoding and handling messages can take a while during a burst of requests, e.g. with large
+ * vector clocks, so it should not happen on the UI thread, where it delays rendering and
+ * gestures. The algorithm reports its state changes through {@link CritSectLease.Listener}s,
+ * which are called on the dispatch thread and must post anything concerning the UI back to it.
+ */
+public final class AlgorithmDispatcher {
+    public String TAG = "Algorithm Dispatcher";
+
+    private final IAlgorithm algorithm;
+    private final ExecutorService mailbox;
+
+
+    /**
+     * Starts the dispatch thread.
+     *
+     * @param algorithm  the algorithm to deliver the messages to.
+     */
+    public AlgorithmDispatcher(IAlgorithm algorithm) {
+        this.algorithm = algorithm;
+
+        mailbox = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "algorithm-dispatch");
+                // Must not keep the process alive once the game is left.
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a message for the algorithm, see {@link IAlgorithm#receiveMessage}.
+     *
+     * @param sender  {@link ITetrisPeer} that sent the message.
+     * @param msg  the message sent.
+     */
+    public void dispatch(final ITetrisPeer sender, final String msg) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                algorithm.receiveMessage(sender, msg);
+            }
+        });
+    }
+
+    /**
+     * Runs the given task on the dispatch thread, after the messages queued before it. Used
+     * to decode received frames there as well.
+     *
+     * A task that throws is logged and dropped, so one malformed message does not stop the
+     * delivery of the following ones.
+     */
+    public void post(final Runnable task) {
+        try {
+            mailbox.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Dropped message: " + e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.i(TAG, "Dropped message received after shutdown");
+        }
+    }
+
+    /**
+     * Stops the dispatch thread once the queued messages have been delivered. Messages
+     * dispatched afterwards are dropped.
+     */
+    public void shutdown() {
+        mailbox.shutdown();
+    }
+}
@@ -0,0 +1,180 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+/**
+ * A request for the Critical Section made with {@link IAlgorithm#requestCritSection()}, and
+ * once granted, the right to be in the Critical Section until {@link #release()} is called.
+ *
+ * The outcome is reported to a {@link Listener} instead of blocking a thread, so any number
+ * of requests can be pending without a thread each. {@link #await()} is available for callers
+ * that do want to block.
+ *
+ * A request that is no longer needed, e.g. because the player's piece has landed in the
+ * meantime, should be given up with {@link #cancel()}: the algorithm then withdraws it from
+ * the other peers, instead of being granted the Critical Section later and holding up the
+ * group until it is released.
+ */
+public final class CritSectLease {
+
+    /**
+     * Receives the outcome of a request.
+     *
+     * The methods are called by the thread that completes the request, which is usually the
+     * one delivering a message to the algorithm, while the algorithm is locked. They must
+     * return quickly and must not wait for other peers, but may call {@link #release()}.
+     */
+    public interface Listener {
+
+        /** The Critical Section has been obtained. */
+        void onGranted(CritSectLease lease);
+
+        /** The Critical Section could not be obtained. */
+        void onFailed(CritSectLease lease);
+    }
+
+    private static final int PENDING = 0;
+    private static final int GRANTED = 1;
+    private static final int FAILED = 2;
+    private static final int RELEASED = 3;
+
+    private final Algorithm algorithm;
+
+    private int state = PENDING;
+    private Listener listener = null;
+
+
+    /**
+     * @param algorithm  the algorithm the request was made to.
+     */
+    CritSectLease(Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Sets the listener to report the outcome to. If the request has completed already,
+     * the listener is called right away.
+     */
+    public void setListener(Listener listener) {
+        int outcome;
+        synchronized (this) {
+            this.listener = listener;
+            outcome = state;
+        }
+
+        if (outcome == GRANTED) {
+            listener.onGranted(this);
+        } else if (outcome == FAILED) {
+            listener.onFailed(this);
+        }
+    }
+
+    /**
+     * @return <i>true</i> once the request has been granted or has failed.
+     */
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    /**
+     * @return <i>true</i> while the Critical Section is held through this lease.
+     */
+    public synchronized boolean isGranted() {
+        return state == GRANTED;
+    }
+
+    /**
+     * Blocks until the request has been granted or has failed.
+     *
+     * @return <i>true</i> if the Critical Section was obtained.
+     */
+    public synchronized boolean await() throws InterruptedException {
+        while (state == PENDING) {
+            this.wait();
+        }
+        return state == GRANTED || state == RELEASED;
+    }
+
+    /**
+     * Blocks until the request has been granted or has failed, or the given time has passed.
+     * The request stays pending after a timeout, see {@link #cancel()}.
+     *
+     * @param timeoutMillis  the maximum time to wait, in milliseconds.
+     *
+     * @return <i>true</i> if the Critical Section was obtained.
+     */
+    public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+
+        while (state == PENDING) {
+            long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if (remaining <= 0) {
+                return false;
+            }
+            this.wait(remaining);
+        }
+        return state == GRANTED || state == RELEASED;
+    }
+
+    /**
+     * Gives up the request while it is pending. The algorithm withdraws it from the other
+     * peers, and the listener is told that the request failed.
+     *
+     * @return <i>true</i> if the request was withdrawn, <i>false</i> if it had already been
+     *         granted or had failed. A granted lease must still be released.
+     */
+    public boolean cancel() {
+        return algorithm.cancelCritSectionRequest(this);
+    }
+
+    /**
+     * Releases the Critical Section held through this lease.
+     *
+     * @return <i>true</i> if successful, <i>false</i> if the lease was not granted or has
+     *         been released already, or if the algorithm failed to release it.
+     */
+    public boolean release() {
+        synchronized (this) {
+            if (state != GRANTED) {
+                return false;
+            }
+            state = RELEASED;
+        }
+
+        return algorithm.releaseCritSection();
+    }
+
+    /**
+     * Reports that the request has been granted. Called by the algorithm.
+     */
+    void grant() {
+        complete(GRANTED);
+    }
+
+    /**
+     * Reports that the request has failed. Called by the algorithm.
+     */
+    void fail() {
+        complete(FAILED);
+    }
+
+    private void complete(int outcome) {
+        Listener toCall;
+        synchronized (this) {
+            if (state != PENDING) {
+                return;
+            }
+            state = outcome;
+            toCall = listener;
+            this.notifyAll();
+        }
+
+        if (toCall == null) {
+            return;
+        }
+
+        if (outcome == GRANTED) {
+            toCall.onGranted(this);
+        } else {
+            toCall.onFailed(this);
+        }
+    }
+}
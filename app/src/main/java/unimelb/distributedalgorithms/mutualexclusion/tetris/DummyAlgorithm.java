@@ -28,6 +28,21 @@ public class DummyAlgorithm extends Algorithm {
         return true;
     }
 
+    @Override
+    boolean startObtainCritSection() {
+        return true;
+    }
+
+    @Override
+    boolean holdsCritSection() {
+        return true;
+    }
+
+    @Override
+    void cancelObtainCritSection() {
+
+    }
+
     @Override
     public boolean releaseCritSection() {
         return true;
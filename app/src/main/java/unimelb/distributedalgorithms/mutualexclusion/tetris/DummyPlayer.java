@@ -4,19 +4,52 @@ package unimelb.distributedalgorithms.mutualexclusion.tetris;
  * Models a {@link DummyPlayer} in distributed Tetris. This class's main functionality is
  * to provide an implementation of the {@link ITetrisPeer} interface in order to provide
  * {@link Algorithm}s with a resource to send and identify messages with.
+ *
+ * Messages are handed to a {@link Network}, which allows the algorithms to be run
+ * without the SIP peer (e.g. in the simulator). Without a network, messages are printed.
  */
 public final class DummyPlayer implements ITetrisPeer {
 
+    /**
+     * In-memory stand-in for the peer-to-peer network.
+     */
+    public interface Network {
+        /**
+         * Transmit a message to a {@link DummyPlayer}.
+         *
+         * @param senderID  ID of the sending peer.
+         * @param recipientID  ID of the {@link DummyPlayer} to deliver the message to.
+         * @param msg  the message.
+         *
+         * @return <i>true</i> if the message was accepted by the network, <i>false</i> otherwise.
+         */
+        boolean transmit(String senderID, String recipientID, String msg);
+    }
+
     /** The ID of this {@link DummyPlayer}. */
     private String id;
 
+    /** The network messages to this {@link DummyPlayer} go through, or <i>null</i>. */
+    private Network network;
+
     /**
      * Initialise a new {@link DummyPlayer} with the given ID.
      *
      * @param id  ID of the DummyPlayer to initialise.
      */
     DummyPlayer(String id) {
+        this(id, null);
+    }
+
+    /**
+     * Initialise a new {@link DummyPlayer} with the given ID, reachable through the given {@link Network}.
+     *
+     * @param id  ID of the DummyPlayer to initialise.
+     * @param network  the {@link Network} used to deliver messages to this DummyPlayer.
+     */
+    public DummyPlayer(String id, Network network) {
         this.id = id;
+        this.network = network;
     }
 
     @Override
@@ -25,12 +58,23 @@ public final class DummyPlayer implements ITetrisPeer {
     }
 
 
-
-    // TODO: Implement message passing..
     @Override
     public boolean sendMessage(String senderID, String msg) {
-        System.out.printf("%s Sending message '%s' to %s", senderID, msg, id);
-        return true;
+        if (network == null) {
+            System.out.printf("%s Sending message '%s' to %s%n", senderID, msg, id);
+            return true;
+        }
+
+        return network.transmit(senderID, id, msg);
+    }
+
+
+    /**
+     * Hands the message to the network right away, so the handle is already complete.
+     */
+    @Override
+    public SendHandle sendMessageAsync(String senderID, String msg) {
+        return SendHandle.completed(sendMessage(senderID, msg));
     }
 
 
@@ -0,0 +1,144 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.BitSet;
+
+/**
+ * The quorums of a grid, as in Maekawa's algorithm: the peers are laid out row by row in a
+ * grid of ceil(sqrt N) columns, and a quorum is one complete column plus one peer of every
+ * other column. The complete column of one quorum always meets the other quorum's peer in
+ * that column, so a quorum has about 2 sqrt N peers. Unlike Maekawa's row and column
+ * quorums, this works for any group size and tolerates failures: any column without
+ * failed peers can be the complete one.
+ *
+ * The number of granted peers per column is kept, so an update costs O(sqrt N) and
+ * checking for a quorum O(1).
+ */
+public final class GridQuorum extends QuorumSystem {
+
+    private final int numColumns;
+
+    /** Number of granted peers in each column. */
+    private final int[] grantedInColumn;
+
+    /** Number of columns with at least one granted peer. */
+    private int coveredColumns;
+
+    /** Number of columns in which every peer is granted. */
+    private int completeColumns;
+
+    /**
+     * @param numPeers  number of peers in the grid, in the order of the sorted list of peers.
+     */
+    public GridQuorum(int numPeers) {
+        super(numPeers);
+
+        numColumns = (int) Math.ceil(Math.sqrt(numPeers));
+        grantedInColumn = new int[numColumns];
+    }
+
+    private int columnSize(int column) {
+        return (numPeers - column + numColumns - 1) / numColumns;
+    }
+
+    @Override
+    boolean isObtained() {
+        return coveredColumns == numColumns && completeColumns > 0;
+    }
+
+    /**
+     * Chooses the cheapest column without failed peers as the complete one, and the cheapest
+     * peer of every other column. Among equally cheap choices, the column of the given peer
+     * and the peers in its row are preferred, which gives Maekawa's row and column quorums
+     * while all peers cost the same.
+     */
+    @Override
+    BitSet select(int selfIndex) {
+        BitSet chosen = new BitSet(numPeers);
+        int selfColumn = selfIndex % numColumns;
+        int selfRow = selfIndex / numColumns;
+
+        int complete = -1;
+        long completeCost = UNREACHABLE;
+        for (int k = 0; k < numColumns; k++) {
+            int column = (selfColumn + k) % numColumns;
+            long cost = columnCost(column);
+            if (cost < completeCost) {
+                complete = column;
+                completeCost = cost;
+            }
+        }
+
+        if (complete == -1) {
+            return null;
+        }
+
+        for (int i = complete; i < numPeers; i += numColumns) {
+            chosen.set(i);
+        }
+
+        for (int column = 0; column < numColumns; column++) {
+            if (column == complete) {
+                continue;
+            }
+
+            int rows = columnSize(column);
+            int found = -1;
+            for (int k = 0; k < rows; k++) {
+                int i = ((selfRow + k) % rows) * numColumns + column;
+                if (!failed.get(i) && (found == -1 || costs[i] < costs[found])) {
+                    found = i;
+                }
+            }
+
+            if (found == -1) {
+                return null;
+            }
+            chosen.set(found);
+        }
+
+        return chosen;
+    }
+
+    /**
+     * @return the cost of the most costly peer of the column, or {@link #UNREACHABLE}
+     *         if one of them failed.
+     */
+    private long columnCost(int column) {
+        long cost = 0;
+        for (int i = column; i < numPeers; i += numColumns) {
+            if (failed.get(i)) {
+                return UNREACHABLE;
+            }
+            cost = Math.max(cost, costs[i]);
+        }
+        return cost;
+    }
+
+    @Override
+    void changed(int peerIndex) {
+        int column = peerIndex % numColumns;
+
+        int count = 0;
+        for (int i = column; i < numPeers; i += numColumns) {
+            if (granted.get(i)) {
+                count++;
+            }
+        }
+
+        int size = columnSize(column);
+        int previous = grantedInColumn[column];
+        grantedInColumn[column] = count;
+
+        coveredColumns += (count > 0 ? 1 : 0) - (previous > 0 ? 1 : 0);
+        completeColumns += (count == size ? 1 : 0) - (previous == size ? 1 : 0);
+    }
+
+    @Override
+    void cleared() {
+        for (int column = 0; column < numColumns; column++) {
+            grantedInColumn[column] = 0;
+        }
+        coveredColumns = 0;
+        completeColumns = 0;
+    }
+}
@@ -0,0 +1,204 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * The quorums of Kumar's hierarchical quorum consensus: the list of peers is split into
+ * three nearly equal groups, each of those into three subgroups, and so on down to single
+ * peers. A group is granted if a majority of its subgroups is, so any two quorums meet in
+ * every level of the hierarchy. A quorum has about N^0.63 peers, fewer than a majority,
+ * and it still tolerates the failure of a minority of the subgroups in every group.
+ *
+ * As in {@link TreeQuorum}, a flag is kept per group, and a change only re-evaluates the
+ * groups above the peer until one does not change.
+ */
+public final class HierarchicalQuorum extends QuorumSystem {
+
+    /** Number of subgroups a group is split into. */
+    private static final int BRANCHING = 3;
+
+    /** The parent of each group, or -1 for the root, which is group 0. */
+    private final int[] parent;
+
+    /** The subgroups of each group, empty for a single peer. */
+    private final int[][] children;
+
+    /** The group consisting of each peer alone. */
+    private final int[] groupOf;
+
+    /** The peer of each group consisting of a single peer, -1 for the others. */
+    private final int[] peerOf;
+
+    /** Number of granted subgroups of each group. */
+    private final int[] grantedChildren;
+
+    /** Bit g is set if group g is granted. */
+    private final BitSet satisfied;
+
+    /**
+     * @param numPeers  number of peers in the group, in the order of the sorted list of peers.
+     */
+    public HierarchicalQuorum(int numPeers) {
+        super(numPeers);
+
+        ArrayList<int[]> groups = new ArrayList<>();
+        ArrayList<Integer> parents = new ArrayList<>();
+        buildGroup(0, numPeers, -1, groups, parents);
+
+        int numGroups = groups.size();
+        parent = new int[numGroups];
+        children = new int[numGroups][];
+        groupOf = new int[numPeers];
+        peerOf = new int[numGroups];
+        grantedChildren = new int[numGroups];
+        satisfied = new BitSet(numGroups);
+
+        for (int g = 0; g < numGroups; g++) {
+            parent[g] = parents.get(g);
+            children[g] = groups.get(g);
+            peerOf[g] = -1;
+        }
+
+        // Groups are built depth first, so a single peer's group follows that of the previous peer.
+        int peerIndex = 0;
+        for (int g = 0; g < numGroups; g++) {
+            if (children[g].length == 0) {
+                groupOf[peerIndex] = g;
+                peerOf[g] = peerIndex++;
+            }
+        }
+    }
+
+    /**
+     * Adds the group of peers [from, to) and its subgroups, depth first.
+     *
+     * @return the index of the group.
+     */
+    private static int buildGroup(int from, int to, int parentGroup,
+                                  ArrayList<int[]> groups, ArrayList<Integer> parents) {
+        int group = groups.size();
+        int size = to - from;
+        int numChildren = size == 1 ? 0 : Math.min(BRANCHING, size);
+
+        int[] childGroups = new int[numChildren];
+        groups.add(childGroups);
+        parents.add(parentGroup);
+
+        int start = from;
+        for (int c = 0; c < numChildren; c++) {
+            int end = start + (size - (start - from)) / (numChildren - c);
+            childGroups[c] = buildGroup(start, end, group, groups, parents);
+            start = end;
+        }
+
+        return group;
+    }
+
+    /** Number of granted subgroups needed for a group to be granted. */
+    private int threshold(int group) {
+        return children[group].length / 2 + 1;
+    }
+
+    @Override
+    boolean isObtained() {
+        return satisfied.get(0);
+    }
+
+    /**
+     * Chooses, in each group, the cheapest subgroups. Among equally cheap subgroups, the
+     * subgroup of the given peer and the subgroups after it are preferred.
+     */
+    @Override
+    BitSet select(int selfIndex) {
+        BitSet chosen = new BitSet(numPeers);
+        return select(0, groupOf[selfIndex], chosen) == UNREACHABLE ? null : chosen;
+    }
+
+    /**
+     * Adds the cheapest quorum of the given group to the chosen peers.
+     *
+     * @return the cost of the quorum's most costly peer, or {@link #UNREACHABLE} if the
+     *         group has no quorum without failed peers.
+     */
+    private long select(int group, int selfGroup, BitSet chosen) {
+        int peerIndex = peerOf[group];
+        if (peerIndex != -1) {
+            if (failed.get(peerIndex)) {
+                return UNREACHABLE;
+            }
+            chosen.set(peerIndex);
+            return costs[peerIndex];
+        }
+
+        int[] subgroups = children[group];
+        int first = 0;
+        for (int c = 0; c < subgroups.length; c++) {
+            if (isInGroup(selfGroup, subgroups[c])) {
+                first = c;
+            }
+        }
+
+        BitSet[] quorums = new BitSet[subgroups.length];
+        long[] quorumCosts = new long[subgroups.length];
+        for (int k = 0; k < subgroups.length; k++) {
+            quorums[k] = new BitSet(numPeers);
+            quorumCosts[k] = select(subgroups[(first + k) % subgroups.length], selfGroup, quorums[k]);
+        }
+
+        long cost = 0;
+        for (int needed = threshold(group); needed > 0; needed--) {
+            int cheapest = -1;
+            for (int k = 0; k < subgroups.length; k++) {
+                if (quorums[k] != null && quorumCosts[k] != UNREACHABLE
+                        && (cheapest == -1 || quorumCosts[k] < quorumCosts[cheapest])) {
+                    cheapest = k;
+                }
+            }
+
+            if (cheapest == -1) {
+                return UNREACHABLE;
+            }
+
+            chosen.or(quorums[cheapest]);
+            cost = Math.max(cost, quorumCosts[cheapest]);
+            quorums[cheapest] = null;
+        }
+
+        return cost;
+    }
+
+    private boolean isInGroup(int group, int ancestor) {
+        while (group > ancestor) {
+            group = parent[group];
+        }
+        return group == ancestor;
+    }
+
+    @Override
+    void changed(int peerIndex) {
+        int group = groupOf[peerIndex];
+        boolean value = granted.get(peerIndex);
+
+        while (value != satisfied.get(group)) {
+            satisfied.set(group, value);
+
+            int p = parent[group];
+            if (p == -1) {
+                return;
+            }
+
+            grantedChildren[p] += value ? 1 : -1;
+            value = grantedChildren[p] >= threshold(p);
+            group = p;
+        }
+    }
+
+    @Override
+    void cleared() {
+        satisfied.clear();
+        for (int g = 0; g < grantedChildren.length; g++) {
+            grantedChildren[g] = 0;
+        }
+    }
+}
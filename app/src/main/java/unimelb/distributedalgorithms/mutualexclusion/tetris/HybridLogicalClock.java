@@ -0,0 +1,86 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+/**
+ * A hybrid logical clock (Kulkarni et al., "Logical Physical Clocks", 2014).
+ *
+ * Timestamps stay close to physical time, but like a Lamport clock a timestamp taken after
+ * receiving a message is always greater than the message's timestamp, even if the sender's
+ * physical clock is ahead. The process index in each {@link HybridTimestamp} breaks ties,
+ * so timestamps can be used to order requests totally.
+ */
+public class HybridLogicalClock {
+
+    /**
+     * Source of physical time, in milliseconds.
+     */
+    public interface TimeSource {
+        long currentTimeMillis();
+    }
+
+    /** The device's wall clock. */
+    public static final TimeSource SYSTEM_TIME = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final TimeSource timeSource;
+    private final int myId;
+
+    private long physical;
+    private int logical;
+
+    /**
+     * @param id  index of the process this clock belongs to.
+     * @param timeSource  where to read physical time from.
+     */
+    public HybridLogicalClock(int id, TimeSource timeSource) {
+        this.myId = id;
+        this.timeSource = timeSource;
+    }
+
+    /**
+     * Advances the clock for a local or send event.
+     *
+     * @return the timestamp of the event, greater than any taken or received before.
+     */
+    public synchronized HybridTimestamp sendAction() {
+        long now = timeSource.currentTimeMillis();
+
+        if (now > physical) {
+            physical = now;
+            logical = 0;
+        } else {
+            logical++;
+        }
+
+        return new HybridTimestamp(physical, logical, myId);
+    }
+
+    /**
+     * Advances the clock past a received timestamp.
+     *
+     * @param timeStamp  received {@link HybridTimestamp}.
+     */
+    public synchronized void receiveAction(HybridTimestamp timeStamp) {
+        long now = timeSource.currentTimeMillis();
+        long received = timeStamp.getPhysical();
+
+        if (now > physical && now > received) {
+            physical = now;
+            logical = 0;
+        } else if (received > physical) {
+            physical = received;
+            logical = timeStamp.getLogical() + 1;
+        } else if (received == physical) {
+            logical = Math.max(logical, timeStamp.getLogical()) + 1;
+        } else {
+            logical++;
+        }
+    }
+
+    public synchronized String toString() {
+        return physical + "+" + logical + "@" + myId;
+    }
+}
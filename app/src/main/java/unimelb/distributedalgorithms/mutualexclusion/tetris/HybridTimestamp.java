@@ -0,0 +1,97 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+/**
+ * An immutable timestamp of a {@link HybridLogicalClock}: physical time in milliseconds,
+ * a logical counter for events within the same millisecond, and the index of the process
+ * that took it.
+ *
+ * Timestamps are ordered by physical time, then logical counter, then process index, so
+ * timestamps of different processes never compare equal. Unlike a {@link VectorTimestamp}
+ * this is a strict total order, and the size does not depend on the number of peers.
+ */
+public final class HybridTimestamp implements Comparable<HybridTimestamp> {
+
+    private final long physical;
+    private final int logical;
+    private final int ownerId;
+
+    HybridTimestamp(long physical, int logical, int ownerId) {
+        this.physical = physical;
+        this.logical = logical;
+        this.ownerId = ownerId;
+    }
+
+    public long getPhysical() {
+        return physical;
+    }
+
+    public int getLogical() {
+        return logical;
+    }
+
+    /** @return the index of the process that took this timestamp. */
+    public int getOwnerId() {
+        return ownerId;
+    }
+
+    @Override
+    public int compareTo(HybridTimestamp other) {
+        if (physical != other.physical) {
+            return physical < other.physical ? -1 : 1;
+        }
+        if (logical != other.logical) {
+            return logical < other.logical ? -1 : 1;
+        }
+        return ownerId < other.ownerId ? -1 : (ownerId == other.ownerId ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HybridTimestamp)) {
+            return false;
+        }
+
+        HybridTimestamp other = (HybridTimestamp) o;
+        return physical == other.physical && logical == other.logical && ownerId == other.ownerId;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (int) (physical ^ (physical >>> 32)) + logical) + ownerId;
+    }
+
+    /**
+     * Writes this timestamp in the compact {@link WireFormat}: the physical time,
+     * the logical counter and the owner's index, all as varints.
+     *
+     * @param out  the {@link WireFormat.Writer} to write to.
+     */
+    public void writeTo(WireFormat.Writer out) {
+        out.writeVarlong(physical);
+        out.writeVarint(logical);
+        out.writeVarint(ownerId);
+    }
+
+    /**
+     * Reads a timestamp written by {@link #writeTo}.
+     *
+     * @param in  the {@link WireFormat.Reader} to read from.
+     *
+     * @return the {@link HybridTimestamp} read.
+     */
+    public static HybridTimestamp readFrom(WireFormat.Reader in) {
+        long physical = in.readVarlong();
+        int logical = in.readVarint();
+        int ownerId = in.readVarint();
+
+        return new HybridTimestamp(physical, logical, ownerId);
+    }
+
+    /**
+     * Returns a human-readable representation, e.g. 1463390400123+2@5, for logging.
+     */
+    @Override
+    public String toString() {
+        return physical + "+" + logical + "@" + ownerId;
+    }
+}
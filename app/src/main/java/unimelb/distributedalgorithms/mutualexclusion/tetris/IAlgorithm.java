@@ -26,6 +26,31 @@ public interface IAlgorithm {
      */
     boolean obtainCritSection();
 
+    /**
+     * Requests the critical section without blocking. The returned {@link CritSectLease}
+     * reports when the critical section has been obtained, and releases it again.
+     *
+     * Only one request can be pending at a time: while one is, it is returned again.
+     *
+     * @return the lease for the request.
+     */
+    CritSectLease requestCritSection();
+
+    /**
+     * Requests the critical section and waits for it for at most the given time. If it is not
+     * obtained in time, the request is withdrawn from the other peers, so it does not delay
+     * them any further.
+     *
+     * @param timeoutMillis  the maximum time to wait, in milliseconds.
+     *
+     * Fails right away while a request made with {@link #requestCritSection()} is pending.
+     *
+     * @return <i>true</i> if the critical section was obtained, and must be released with
+     *         {@link #releaseCritSection()}; <i>false</i> if the request timed out or failed,
+     *         or another request was pending.
+     */
+    boolean tryObtainCritSection(long timeoutMillis) throws InterruptedException;
+
     /**
      * Request the algorithm to release the critical section.
      *
@@ -0,0 +1,20 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.List;
+
+/**
+ * Sends one message to several {@link ITetrisPeer}s, e.g. relayed over a {@link RelayBroadcast}
+ * instead of sending it to each of them in turn.
+ *
+ * The message may take another path to each peer than the messages sent to it with
+ * {@link ITetrisPeer#sendMessage}, so it is not ordered with them.
+ */
+public interface IMulticast {
+
+    /**
+     * @param senderID  ID of the sending peer.
+     * @param recipients  the peers to send to, not including the sender.
+     * @param msg  the message.
+     */
+    void sendMessage(String senderID, List<ITetrisPeer> recipients, String msg);
+}
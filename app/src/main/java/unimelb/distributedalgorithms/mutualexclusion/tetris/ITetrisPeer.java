@@ -26,6 +26,15 @@ public interface ITetrisPeer extends Comparable<ITetrisPeer> {
      */
     boolean sendMessage(String senderID, String msg);
 
+    /**
+     * Send a message to this {@link ITetrisPeer} without waiting for the network.
+     *
+     * @param msg  The message to send.
+     *
+     * @return a {@link SendHandle} that reports whether the message could be sent.
+     */
+    SendHandle sendMessageAsync(String senderID, String msg);
+
     @Override
     String toString();
 
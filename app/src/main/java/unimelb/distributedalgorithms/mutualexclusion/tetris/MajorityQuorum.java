@@ -0,0 +1,60 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * The majority quorums: any set of more than half of the peers. Quorums are large, but
+ * tolerate the failure of any minority of the group.
+ */
+public final class MajorityQuorum extends QuorumSystem {
+
+    /**
+     * @param numPeers  number of peers in the group.
+     */
+    public MajorityQuorum(int numPeers) {
+        super(numPeers);
+    }
+
+    @Override
+    boolean isObtained() {
+        return granted.cardinality() > numPeers / 2;
+    }
+
+    /**
+     * Chooses the cheapest peers. Among equally cheap peers, the given peer and the peers
+     * following it in the list of peers are preferred.
+     */
+    @Override
+    BitSet select(int selfIndex) {
+        int needed = numPeers / 2 + 1;
+
+        ArrayList<Integer> candidates = new ArrayList<>(numPeers);
+        for (int k = 0; k < numPeers; k++) {
+            int i = (selfIndex + k) % numPeers;
+            if (!failed.get(i)) {
+                candidates.add(i);
+            }
+        }
+
+        if (candidates.size() < needed) {
+            return null;
+        }
+
+        // The sort is stable, so equally cheap peers stay in the order above.
+        Collections.sort(candidates, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(costs[a], costs[b]);
+            }
+        });
+
+        BitSet chosen = new BitSet(numPeers);
+        for (int k = 0; k < needed; k++) {
+            chosen.set(candidates.get(k));
+        }
+        return chosen;
+    }
+}
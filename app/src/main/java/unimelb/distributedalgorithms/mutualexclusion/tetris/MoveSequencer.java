@@ -0,0 +1,482 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders the game moves of all peers into one stream, so every peer applies each move exactly
+ * once and in the order it was made, even if moves are relayed along different paths, dropped
+ * for a peer falling behind, or still in flight when the Critical Section changes hands.
+ *
+ * The holder of the Critical Section is the sequencer of its moves: on its first move it opens
+ * an epoch, numbered one above the highest epoch it has seen, and numbers its moves within
+ * the epoch. When it releases the Critical Section it closes the epoch, telling how many moves
+ * it made. Every move also names the holder of the epoch before, so a peer that missed that
+ * epoch entirely knows whom to ask for it:
+ * <pre>
+ *     MOVE  [kind] [epoch] [previous holder] [sequence] [move]
+ *     END   [kind] [epoch] [previous holder] [last sequence]
+ *     NACK  [kind] [epoch] [first sequence missing] [bitmap of the {@link #HELD_BITS} after it held]
+ * </pre>
+ * Peers apply the epochs in the order of their numbers, and epochs with the same number, whose
+ * holders had not heard of each other, in the order of their holders' IDs. Moves arriving
+ * early are held until the moves before them have been applied. A gap, seen when later moves
+ * or epochs arrive, is asked for with a NACK to the epoch's holder, which sends the moves
+ * again from its history, once it has lasted {@link #NACK_DELAY}, as most gaps are just moves
+ * taking a longer path. The NACK is repeated until the gap is filled.
+ *
+ * Moves are broadcast in the game lane of the {@link OutboundBatcher}, where they may be
+ * dropped; the ends of epochs, NACKs and the moves sent again go in the algorithm lane, which
+ * never drops, so every gap is eventually noticed and filled.
+ *
+ * The new holder normally knows the epoch before its own, since the Critical Section is handed
+ * over after the end of the epoch has been sent. If it does not, because the end took longer
+ * than the hand-over, both epochs get the same number and may be applied the other way round,
+ * or the one arriving late dropped. A holder opening an epoch while moves of the epoch before
+ * are still missing, gives up on those.
+ */
+public final class MoveSequencer {
+    public String TAG = "Move Sequencer";
+
+    /** Message kinds. */
+    private static final int MOVE = 0;
+    private static final int END = 1;
+    private static final int NACK = 2;
+
+    /** Most epochs of its own a peer keeps the moves of, to send them again. */
+    private static final int MAX_HISTORY = 64;
+
+    /** Moves after the first one missing a NACK reports as held already. */
+    private static final int HELD_BITS = 64;
+
+    /** How long a gap lasts before the missing moves are asked for, in ms. */
+    private static final long NACK_DELAY = 100;
+
+    /** Time between two NACKs for the same gap, in ms. */
+    private static final long NACK_INTERVAL = 250;
+
+    /** Applies the moves of the stream. */
+    public interface Listener {
+
+        /**
+         * Called for every move of another peer, in order, while the sequencer is locked.
+         *
+         * @param holderID  ID of the peer that made the move.
+         * @param move  the move.
+         */
+        void onMove(String holderID, int move);
+    }
+
+    /** The moves of one epoch, made or received. */
+    private static final class Epoch implements Comparable<Epoch> {
+        final int number;
+        final String holderID;
+        String previousHolderID = null;
+        /** Whether a message of the epoch has arrived, rather than it being known from the next. */
+        boolean heard = false;
+        /** The moves by sequence number, while not applied or, for own epochs, all of them. */
+        final TreeMap<Integer, Integer> moves = new TreeMap<>();
+        int applied = 0;
+        /** The number of moves, once the epoch is closed. */
+        int last = -1;
+        /** The first move missing, and since when, while there is a gap. */
+        int gapFrom = 0;
+        long gapSince = 0;
+        long nackedAt = 0;
+
+        Epoch(int number, String holderID) {
+            this.number = number;
+            this.holderID = holderID;
+        }
+
+        boolean isDone() {
+            return last >= 0 && applied >= last;
+        }
+
+        @Override
+        public int compareTo(Epoch other) {
+            if (number != other.number) {
+                return number < other.number ? -1 : 1;
+            }
+            return holderID.compareTo(other.holderID);
+        }
+    }
+
+    private final OutboundBatcher outbound;
+    private final RelayBroadcast relay;
+    private final PeerHandles handles;
+    private final int frameType;
+    private final String selfID;
+    private final List<String> otherIDs = new ArrayList<>();
+    private final Listener listener;
+
+    /** The epochs of others not applied completely yet, in order. */
+    private final TreeMap<Epoch, Epoch> pending = new TreeMap<>();
+    /** The last epoch applied completely, or opened by this peer. */
+    private Epoch lastDone = new Epoch(0, "");
+    /** The highest epoch number seen. */
+    private int highestNumber = 0;
+
+    /** The epoch this peer is making moves in, or <i>null</i>. */
+    private Epoch own = null;
+    /** The epochs of this peer by number, oldest first. */
+    private final LinkedHashMap<Integer, Epoch> history = new LinkedHashMap<>();
+
+    private long duplicates = 0;
+    private long nacks = 0;
+
+    private final ScheduledExecutorService timer;
+    private boolean checkScheduled = false;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MoveSequencer.this) {
+                checkScheduled = false;
+                apply();
+            }
+        }
+    };
+
+
+    /**
+     * @param outbound  the batcher to send NACKs and moves sent again with.
+     * @param relay  the broadcast to send moves with.
+     * @param handles  table to look up the peers' handles in.
+     * @param frameType  the frame type of the stream's messages.
+     * @param selfID  ID of this peer.
+     * @param peerIDs  IDs of all peers of the game, including this one.
+     * @param listener  where to apply the moves of others.
+     */
+    public MoveSequencer(OutboundBatcher outbound, RelayBroadcast relay, PeerHandles handles, int frameType,
+                         String selfID, List<String> peerIDs, Listener listener) {
+        this.outbound = outbound;
+        this.relay = relay;
+        this.handles = handles;
+        this.frameType = frameType;
+        this.selfID = selfID;
+        this.listener = listener;
+
+        for (String id : peerIDs) {
+            if (!id.equals(selfID)) {
+                otherIDs.add(id);
+            }
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "move-sequencer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sends a move made by this peer, which must hold the Critical Section. The first move
+     * after {@link #closeEpoch()} opens a new epoch; moves of others still missing from
+     * earlier epochs are not applied anymore.
+     *
+     * @param move  the move, below 256.
+     */
+    public synchronized void sendMove(int move) {
+        if (own == null) {
+            own = new Epoch(highestNumber + 1, selfID);
+            own.previousHolderID = holderOf(own.number - 1);
+            highestNumber = own.number;
+
+            history.put(own.number, own);
+            if (history.size() > MAX_HISTORY) {
+                Iterator<Integer> it = history.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+
+            pending.headMap(own).clear();
+            lastDone = own;
+        }
+
+        int sequence = own.moves.size() + 1;
+        own.moves.put(sequence, move);
+
+        relay.broadcast(otherIDs, frameType, selfID, encodeMove(own, sequence), OutboundBatcher.Lane.GAME);
+    }
+
+    /**
+     * Closes the epoch of this peer, if it made any moves. Must be called before releasing the
+     * Critical Section: the end is sent to every peer directly, so a peer the Critical Section
+     * is handed to directly hears of the epoch before it opens its own.
+     */
+    public synchronized void closeEpoch() {
+        if (own == null) {
+            return;
+        }
+
+        own.last = own.moves.size();
+        String end = encodeEnd(own);
+        for (String id : otherIDs) {
+            outbound.send(id, frameType, selfID, end, false);
+        }
+        own = null;
+    }
+
+    /**
+     * Handles a message of the stream.
+     *
+     * @param senderID  ID of the peer that sent the message, or relayed it for its sender.
+     * @param message  the message, positioned at its kind.
+     *
+     * @throws IllegalArgumentException if the message is malformed.
+     */
+    public synchronized void receive(String senderID, WireFormat.Reader message) {
+        int kind = message.readByte();
+        int number = message.readVarint();
+
+        if (kind == NACK) {
+            int from = message.readVarint();
+            resend(senderID, number, from, message.readVarlong());
+            return;
+        }
+        if (kind != MOVE && kind != END) {
+            throw new IllegalArgumentException("Unknown move stream message " + kind);
+        }
+
+        String previousHolderID = message.readVarint() == 0 ? null : message.readID(handles);
+        int sequence = message.readVarint();
+        if (sequence <= 0) {
+            throw new IllegalArgumentException("Sequence number out of range: " + sequence);
+        }
+
+        Epoch epoch = new Epoch(number, senderID);
+        if (epoch.compareTo(lastDone) <= 0) {
+            // Applied already, or overtaken by an epoch applied already.
+            duplicates++;
+            return;
+        }
+
+        Epoch known = pending.get(epoch);
+        if (known == null) {
+            pending.put(epoch, epoch);
+            highestNumber = Math.max(highestNumber, number);
+        } else {
+            epoch = known;
+        }
+        epoch.previousHolderID = previousHolderID;
+        epoch.heard = true;
+
+        if (kind == END) {
+            epoch.last = sequence;
+        } else if (sequence <= epoch.applied || epoch.moves.containsKey(sequence)) {
+            duplicates++;
+        } else {
+            epoch.moves.put(sequence, message.readByte());
+        }
+
+        apply();
+    }
+
+    /**
+     * Stops asking for missing moves.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * @return the number of moves received more than once.
+     */
+    public synchronized long duplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the number of NACKs sent for missing moves.
+     */
+    public synchronized long nacks() {
+        return nacks;
+    }
+
+
+    /**
+     * Applies the moves that are next in order, and asks for those missing before moves or
+     * epochs that have arrived.
+     */
+    private void apply() {
+        while (!pending.isEmpty()) {
+            Epoch epoch = pending.firstKey();
+
+            if (epoch.number > lastDone.number + 1) {
+                if (!epoch.heard) {
+                    // Known only from the epoch after it, until its moves arrive.
+                    break;
+                }
+                if (epoch.previousHolderID != null) {
+                    // The epoch before has not been seen at all: ask its holder for it.
+                    Epoch missing = new Epoch(epoch.number - 1, epoch.previousHolderID);
+                    pending.put(missing, missing);
+                    continue;
+                }
+                // Its holder knew of no epoch before it either.
+            }
+
+            Integer move;
+            while ((move = epoch.moves.remove(epoch.applied + 1)) != null) {
+                epoch.applied++;
+                listener.onMove(epoch.holderID, move);
+            }
+
+            if (!epoch.isDone()) {
+                break;
+            }
+            pending.remove(epoch);
+            lastDone = epoch;
+        }
+
+        requestMissing();
+    }
+
+    /**
+     * Asks for the moves missing from every epoch waiting to be applied, once the gap has
+     * lasted {@link #NACK_DELAY}, and again every {@link #NACK_INTERVAL}, checking on the timer
+     * until it is filled. An epoch has a gap if moves after it, its end, or later epochs have
+     * arrived.
+     */
+    private void requestMissing() {
+        long now = System.currentTimeMillis();
+        long wait = Long.MAX_VALUE;
+        int later = pending.size();
+
+        for (Epoch epoch : pending.keySet()) {
+            later--;
+
+            int from = epoch.applied + 1;
+            while (epoch.moves.containsKey(from)) {
+                from++;
+            }
+
+            boolean gap = !epoch.heard || (epoch.last >= 0 ? from <= epoch.last
+                    : later > 0 || (!epoch.moves.isEmpty() && from < epoch.moves.lastKey()));
+            if (!gap) {
+                epoch.gapFrom = 0;
+                continue;
+            }
+
+            if (from != epoch.gapFrom) {
+                epoch.gapFrom = from;
+                epoch.gapSince = now;
+                epoch.nackedAt = 0;
+            }
+
+            if (now - epoch.gapSince < NACK_DELAY) {
+                wait = Math.min(wait, epoch.gapSince + NACK_DELAY - now);
+            } else if (now - epoch.nackedAt < NACK_INTERVAL) {
+                wait = Math.min(wait, epoch.nackedAt + NACK_INTERVAL - now);
+            } else {
+                nack(epoch, from);
+                epoch.nackedAt = now;
+                wait = Math.min(wait, NACK_INTERVAL);
+            }
+        }
+
+        if (wait != Long.MAX_VALUE && !checkScheduled) {
+            try {
+                timer.schedule(check, wait, TimeUnit.MILLISECONDS);
+                checkScheduled = true;
+            } catch (RejectedExecutionException e) {
+                // Shut down.
+            }
+        }
+    }
+
+    private void nack(Epoch epoch, int from) {
+        nacks++;
+
+        WireFormat.Writer out = new WireFormat.Writer(16);
+        out.writeByte(NACK);
+        out.writeVarint(epoch.number);
+        out.writeVarint(from);
+        long held = 0;
+        for (int sequence : epoch.moves.subMap(from + 1, from + 1 + HELD_BITS).keySet()) {
+            held |= 1L << (sequence - from - 1);
+        }
+        out.writeVarlong(held);
+        outbound.send(epoch.holderID, frameType, selfID, out.toString(), true);
+    }
+
+    /**
+     * Sends the moves of an epoch of this peer again, from the given one on except those held,
+     * and its end if closed.
+     *
+     * @param held  bitmap of the {@link #HELD_BITS} moves after the first one that are held.
+     */
+    private void resend(String recipientID, int number, int from, long held) {
+        Epoch epoch = history.get(number);
+        if (epoch == null) {
+            Log.e(TAG, "Cannot send the moves of epoch " + number + " again to " + recipientID);
+            return;
+        }
+
+        for (int sequence : epoch.moves.tailMap(from).keySet()) {
+            int bit = sequence - from - 1;
+            if (bit < 0 || bit >= HELD_BITS || (held & (1L << bit)) == 0) {
+                outbound.send(recipientID, frameType, selfID, encodeMove(epoch, sequence), false);
+            }
+        }
+        if (epoch.last >= 0) {
+            outbound.send(recipientID, frameType, selfID, encodeEnd(epoch), false);
+        }
+        outbound.flush();
+    }
+
+    /**
+     * @return the ID of the holder of the latest known epoch with the given number, or <i>null</i>.
+     */
+    private String holderOf(int number) {
+        String holderID = lastDone.number == number ? lastDone.holderID : null;
+
+        for (Epoch epoch : pending.keySet()) {
+            if (epoch.number == number) {
+                holderID = epoch.holderID;
+            }
+        }
+        return holderID;
+    }
+
+    private String encodeMove(Epoch epoch, int sequence) {
+        WireFormat.Writer out = header(MOVE, epoch);
+        out.writeVarint(sequence);
+        out.writeByte(epoch.moves.get(sequence));
+        return out.toString();
+    }
+
+    private String encodeEnd(Epoch epoch) {
+        WireFormat.Writer out = header(END, epoch);
+        out.writeVarint(epoch.last);
+        return out.toString();
+    }
+
+    private WireFormat.Writer header(int kind, Epoch epoch) {
+        WireFormat.Writer out = new WireFormat.Writer(12);
+        out.writeByte(kind);
+        out.writeVarint(epoch.number);
+
+        if (epoch.previousHolderID == null) {
+            out.writeVarint(0);
+        } else {
+            out.writeVarint(1);
+            out.writeID(epoch.previousHolderID, handles);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,224 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Implementation of the Naimi-Trehel token algorithm for Mutual Exclusion.
+ *
+ * Like {@link Raymond}, requests travel along a tree towards its root, but the tree changes
+ * with every request: each peer on the way points its parent ("last") at the requester, which
+ * becomes the new root (path reversal). Peers that keep requesting therefore stay close to
+ * the root, and an entry costs O(log N) messages on average. Requests arriving at the root
+ * while it waits for or holds the token form a distributed queue through the "next" pointers.
+ *
+ * Initially the peer at index 0 holds the token and is the root.
+ */
+public class NaimiTrehel extends Algorithm {
+    public String TAG = "Naimi-Trehel";
+
+    /** Marks an unset {@link #last} or {@link #next} pointer. */
+    private static final int NONE = -1;
+
+    /**
+     * The messages, as sent over the network. A REQUEST is followed by the index of the
+     * requesting peer, since it may be forwarded. The types are shared with {@link Raymond},
+     * since only one algorithm runs at a time.
+     */
+    private static final int REQUEST = WireFormat.typeCode(Raymond.TOKEN_REQUESTED);
+    private static final String TOKEN_MSG = WireFormat.encodeType(Raymond.TOKEN_GRANTED);
+
+    /** Map from an {@link ITetrisPeer}'s ID to its index. */
+    private Map<String, Integer> peerIndexMap;
+
+    /** The index of this node. */
+    private int selfIndex;
+
+    /** The probable root of the tree, or {@link #NONE} if this peer is the root. */
+    private int last;
+
+    /** The peer to pass the token to after this one, or {@link #NONE}. */
+    private int next = NONE;
+
+    private boolean hasToken;
+    private boolean requesting;
+
+    /**
+     * <i>true</i> while a REQUEST of this peer is in the distributed queue and the token has not
+     * arrived yet, even if the request has been given up since.
+     */
+    private boolean awaitingToken = false;
+
+
+    /**
+     * Initialises the algorithm for a given list of {@link ITetrisPeer}s.
+     *
+     * @param peers  the list of {@link ITetrisPeer}s in the network.
+     * @param self  the node this instance of {@link NaimiTrehel} is working for.
+     */
+    public NaimiTrehel(ArrayList<ITetrisPeer> peers, ITetrisPeer self) {
+        super(peers, self);
+
+        int numPeers = peers.size();
+        peerIndexMap = new HashMap<>(numPeers);
+
+        selfIndex = -1;
+        for (int i = 0; i < numPeers; i++) {
+            peerIndexMap.put(peers.get(i).getID(), i);
+
+            if (self.equals(peers.get(i))) {
+                selfIndex = i;
+            }
+        }
+
+        if (selfIndex == -1) {
+            throw new NullPointerException("Couldn't find 'self'-peer in the list of peers.");
+        }
+
+        hasToken = selfIndex == 0;
+        last = hasToken ? NONE : 0;
+
+        Log.i(TAG, "Initial state--> ID: " + self.getID() + " has token: " + hasToken);
+    }
+
+
+    @Override
+    public synchronized void receiveMessage(ITetrisPeer sender, String msg) {
+        WireFormat.Reader in = new WireFormat.Reader(msg);
+        int type = in.readByte();
+
+        if (type == REQUEST) {
+            handleRequest(in.readVarint());
+        } else {
+            handleToken();
+        }
+    }
+
+    /**
+     * Handles a REQUEST from the given peer, received directly or forwarded. The root
+     * either hands over the token or remembers the requester as its successor; any other
+     * peer forwards the request towards the root. Either way, the requester is the new root.
+     *
+     * @param requester  index of the peer that wants the token.
+     */
+    private synchronized void handleRequest(int requester) {
+        if (requester < 0 || requester >= peers.size()) {
+            throw new IllegalArgumentException("Unknown requester: " + requester);
+        }
+
+        if (last == NONE) {
+            // Without the token, the request was given up while the token is on its way.
+            if (requesting || !hasToken) {
+                next = requester;
+            } else {
+                sendToken(requester);
+            }
+        } else {
+            sendRequest(last, requester);
+        }
+
+        last = requester;
+    }
+
+    private synchronized void handleToken() {
+        hasToken = true;
+        awaitingToken = false;
+
+        if (requesting) {
+            critSectionMayBeObtained();
+        } else if (next != NONE) {
+            // The request was given up in the meantime.
+            sendToken(next);
+            next = NONE;
+        }
+    }
+
+    @Override
+    synchronized boolean startObtainCritSection() {
+        requesting = true;
+
+        // A request given up while the token is on its way keeps its place in the queue, and
+        // this peer may have a successor already, which a new REQUEST would make it forget.
+        if (last != NONE && !awaitingToken) {
+            sendRequest(last, selfIndex);
+            last = NONE;
+            awaitingToken = true;
+        }
+
+        return true;
+    }
+
+    @Override
+    synchronized boolean holdsCritSection() {
+        return requesting && hasToken;
+    }
+
+    /**
+     * The request can not be taken back from the distributed queue, so the token is passed
+     * on as soon as it arrives, see {@link #handleToken()}, unless it has been requested again.
+     */
+    @Override
+    synchronized void cancelObtainCritSection() {
+        requesting = false;
+    }
+
+    @Override
+    public synchronized boolean obtainCritSection() {
+        startObtainCritSection();
+
+        try {
+            while (!hasToken) {
+                Log.i(TAG, "Sleeping while awaiting the token");
+                this.wait();
+            }
+        } catch (InterruptedException e) {
+            // Give up: pass the token on if it arrives after all.
+            requesting = false;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean releaseCritSection() {
+        if (!requesting || !hasToken) {
+            Log.e(TAG, "Tried to release CS without holding it");
+            return false;
+        }
+
+        requesting = false;
+
+        if (next != NONE) {
+            sendToken(next);
+            next = NONE;
+        }
+
+        return true;
+    }
+
+    private synchronized void sendRequest(int recipientIndex, int requester) {
+        WireFormat.Writer out = new WireFormat.Writer(4);
+        out.writeByte(REQUEST);
+        out.writeVarint(requester);
+
+        peers.get(recipientIndex).sendMessage(self, out.toString());
+    }
+
+    private synchronized void sendToken(int recipientIndex) {
+        hasToken = false;
+        peers.get(recipientIndex).sendMessage(self, TOKEN_MSG);
+    }
+
+    /**
+     * Returns this peer while it holds the token, <i>null</i> otherwise.
+     */
+    @Override
+    public synchronized ITetrisPeer getCurrentCritSectPeer() {
+        return hasToken ? peers.get(selfIndex) : null;
+    }
+}
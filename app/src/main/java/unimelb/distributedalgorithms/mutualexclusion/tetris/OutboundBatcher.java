@@ -0,0 +1,527 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues outgoing messages per destination and sends those produced close together as a
+ * single frame, since every frame costs a SIP message with its own headers and peer descriptor.
+ *
+ * A batch frame looks like:
+ * <pre>
+ *     [version] [batch frame type] [sender] [count] ([frame type] [length] [payload...])*
+ * </pre>
+ * and is unpacked by the receiver into the frames it replaces, in order. A batch of one
+ * message is sent as an ordinary frame.
+ *
+ * Messages wait at most {@link #windowMillis}, or until {@link #flush()} is called, e.g. at the
+ * end of handling a received message. Urgent messages, which another peer is waiting for to
+ * enter the Critical Section, are sent right away, together with the messages queued for the
+ * same destination before them. The messages of one lane to one destination are always sent
+ * in order.
+ *
+ * Frames are only ever handed to the {@link Link} by the batcher's own thread, so sending never
+ * blocks the caller, who may be holding an algorithm's lock, on the network. The
+ * {@link SendHandle} returned for each message completes once its frame has been handed over.
+ *
+ * Every destination has two bounded queues, or {@link Lane}s. Game moves, sent with
+ * {@link #sendGameMove}, are sent right away, but only after the algorithm messages ready for
+ * any destination, so a burst of moves does not hold up a REPLY or a token another peer is
+ * waiting for. During play the algorithm messages queued for each peer ride along with the
+ * moves instead of costing frames of their own, and the moves in turn ride along with urgent
+ * algorithm messages. If a peer falls behind, its oldest moves are dropped; algorithm messages
+ * are never dropped, but fail once too many are waiting. The depth of the queues and the time
+ * messages wait in them are counted per lane, see {@link #queueDepth}.
+ */
+public final class OutboundBatcher {
+    public String TAG = "Outbound Batcher";
+
+    /**
+     * Largest batch, in bytes before encoding, so a frame still fits into a single datagram
+     * once Base64 encoded and wrapped into a SIP message.
+     */
+    private static final int MAX_BATCH_SIZE = 900;
+
+    /** Most algorithm messages waiting per destination; sending more fails. */
+    private static final int MAX_ALGORITHM_QUEUE = 1024;
+
+    /** Most game moves waiting per destination; the oldest is dropped to make room. */
+    private static final int MAX_GAME_QUEUE = 16;
+
+    /** The queues messages wait in, in the order they are sent. */
+    public enum Lane {
+        /** Algorithm messages, sent before game moves and never dropped. */
+        ALGORITHM,
+        /** Game moves, of which only the latest are kept for a peer falling behind. */
+        GAME
+    }
+
+    /** Sends frames to peers. */
+    public interface Link {
+
+        /**
+         * Sends a frame to the given peer.
+         *
+         * @param recipientID  ID of the receiving peer.
+         * @param frame  the frame, see {@link WireFormat#frame}.
+         */
+        void send(String recipientID, String frame);
+    }
+
+    /** A message waiting to be sent. */
+    private static final class Message {
+        final int frameType;
+        final String senderID;
+        final String payload;
+        final SendHandle sendHandle = new SendHandle();
+        final long queuedAt = System.nanoTime();
+
+        Message(int frameType, String senderID, String payload) {
+            this.frameType = frameType;
+            this.senderID = senderID;
+            this.payload = payload;
+        }
+
+        /** The payload, its type and length. */
+        int size() {
+            return payload.length() + 3;
+        }
+    }
+
+    /** The messages waiting for one destination, by lane. */
+    private static final class Destination {
+        final String recipientID;
+        final ArrayDeque<Message> algorithmLane = new ArrayDeque<>();
+        final ArrayDeque<Message> gameLane = new ArrayDeque<>();
+        /** Whether it is in {@link #ready}. */
+        boolean isReady = false;
+
+        Destination(String recipientID) {
+            this.recipientID = recipientID;
+        }
+
+        boolean isEmpty() {
+            return algorithmLane.isEmpty() && gameLane.isEmpty();
+        }
+    }
+
+    /** The messages sent in one frame. */
+    private static final class Batch {
+        final String recipientID;
+        final String senderID;
+        final ArrayList<Message> messages = new ArrayList<>();
+        int size = 0;
+
+        Batch(String recipientID, String senderID) {
+            this.recipientID = recipientID;
+            this.senderID = senderID;
+        }
+
+        /** Moves messages from the head of a lane into the batch, while they fit. */
+        void takeFrom(ArrayDeque<Message> lane, LaneStats stats, long now) {
+            Message message;
+            while ((message = lane.peek()) != null && message.senderID.equals(senderID)
+                    && (messages.isEmpty() || size + message.size() <= MAX_BATCH_SIZE)) {
+                lane.poll();
+                messages.add(message);
+                size += message.size();
+                stats.sent(now - message.queuedAt);
+            }
+        }
+    }
+
+    /** The counters of one lane, guarded by the batcher. */
+    private static final class LaneStats {
+        int depth = 0;
+        int maxDepth = 0;
+        long sent = 0;
+        long dropped = 0;
+        long totalWaitNanos = 0;
+        long maxWaitNanos = 0;
+
+        void queued(int destinationDepth) {
+            depth++;
+            maxDepth = Math.max(maxDepth, destinationDepth);
+        }
+
+        void sent(long waitNanos) {
+            depth--;
+            sent++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        }
+    }
+
+    private final Link link;
+    private final PeerHandles handles;
+    private final int batchFrameType;
+    private final long windowMillis;
+    private final ScheduledExecutorService sender;
+    /** Held while handing frames to the link. */
+    private final Object sendLock = new Object();
+
+    /** The waiting messages by destination. */
+    private final Map<String, Destination> destinations = new HashMap<>();
+    /** The destinations whose messages are to be sent now, taking turns frame by frame. */
+    private final ArrayDeque<Destination> ready = new ArrayDeque<>();
+    private final LaneStats[] laneStats = {new LaneStats(), new LaneStats()};
+    private boolean flushScheduled = false;
+    private boolean drainRequested = false;
+
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (OutboundBatcher.this) {
+                flushScheduled = false;
+                moveAllToReady();
+            }
+            drain();
+        }
+    };
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+
+    /**
+     * @param link  where to send the frames.
+     * @param handles  table to look up the senders' handles in.
+     * @param batchFrameType  the frame type marking a batch frame.
+     * @param windowMillis  the longest time a message waits for others to the same destination.
+     */
+    public OutboundBatcher(Link link, PeerHandles handles, int batchFrameType, long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("The batching window must be positive");
+        }
+
+        this.link = link;
+        this.handles = handles;
+        this.batchFrameType = batchFrameType;
+        this.windowMillis = windowMillis;
+
+        sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "outbound-send");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues an algorithm message for the given destination.
+     *
+     * @param recipientID  ID of the receiving peer.
+     * @param frameType  type of the frame the message would be sent in on its own.
+     * @param senderID  ID of the sending peer.
+     * @param payload  the encoded message.
+     * @param urgent  <i>true</i> to send the message, and those queued before it, right away.
+     *
+     * @return a {@link SendHandle} that completes once the message has been handed to the link,
+     *         or fails at once if too many messages are waiting for the destination.
+     */
+    public SendHandle send(String recipientID, int frameType, String senderID, String payload, boolean urgent) {
+        Message message = new Message(frameType, senderID, payload);
+        boolean rejected = false;
+        boolean sendNow;
+
+        synchronized (this) {
+            Destination destination = destination(recipientID);
+
+            if (destination.algorithmLane.size() >= MAX_ALGORITHM_QUEUE) {
+                laneStats[Lane.ALGORITHM.ordinal()].dropped++;
+                rejected = true;
+                sendNow = false;
+            } else {
+                destination.algorithmLane.add(message);
+                laneStats[Lane.ALGORITHM.ordinal()].queued(destination.algorithmLane.size());
+
+                if (urgent) {
+                    markReady(destination);
+                } else if (!flushScheduled) {
+                    try {
+                        sender.schedule(scheduledFlush, windowMillis, TimeUnit.MILLISECONDS);
+                        flushScheduled = true;
+                    } catch (RejectedExecutionException e) {
+                        // Shut down: nothing waits anymore.
+                        moveAllToReady();
+                    }
+                }
+
+                sendNow = requestDrain();
+            }
+        }
+
+        if (rejected) {
+            Log.e(TAG, "Too many messages waiting for " + recipientID);
+            message.sendHandle.complete(false);
+        } else if (sendNow) {
+            drain();
+        }
+        return message.sendHandle;
+    }
+
+    /**
+     * Queues a game move for the given destination, to be sent right away, after the algorithm
+     * messages that are ready. If {@link #MAX_GAME_QUEUE} moves are waiting for the destination
+     * already, the oldest of them is dropped.
+     *
+     * @param recipientID  ID of the receiving peer.
+     * @param frameType  type of the frame the move would be sent in on its own.
+     * @param senderID  ID of the sending peer.
+     * @param payload  the encoded move.
+     *
+     * @return a {@link SendHandle} that completes once the move has been handed to the link,
+     *         or fails if the move is dropped.
+     */
+    public SendHandle sendGameMove(String recipientID, int frameType, String senderID, String payload) {
+        Message message = new Message(frameType, senderID, payload);
+        Message dropped = null;
+        boolean sendNow;
+
+        synchronized (this) {
+            Destination destination = destination(recipientID);
+            LaneStats stats = laneStats[Lane.GAME.ordinal()];
+
+            if (destination.gameLane.size() >= MAX_GAME_QUEUE) {
+                dropped = destination.gameLane.poll();
+                stats.depth--;
+                stats.dropped++;
+            }
+
+            destination.gameLane.add(message);
+            stats.queued(destination.gameLane.size());
+            markReady(destination);
+
+            sendNow = requestDrain();
+        }
+
+        if (dropped != null) {
+            dropped.sendHandle.complete(false);
+        }
+        if (sendNow) {
+            drain();
+        }
+        return message.sendHandle;
+    }
+
+    /**
+     * Sends all queued messages, on the batcher's thread.
+     */
+    public void flush() {
+        boolean sendNow;
+
+        synchronized (this) {
+            moveAllToReady();
+            sendNow = requestDrain();
+        }
+
+        if (sendNow) {
+            drain();
+        }
+    }
+
+    private Destination destination(String recipientID) {
+        Destination destination = destinations.get(recipientID);
+        if (destination == null) {
+            destination = new Destination(recipientID);
+            destinations.put(recipientID, destination);
+        }
+        return destination;
+    }
+
+    private void markReady(Destination destination) {
+        if (!destination.isReady) {
+            destination.isReady = true;
+            ready.add(destination);
+        }
+    }
+
+    private void moveAllToReady() {
+        for (Destination destination : destinations.values()) {
+            if (!destination.isEmpty()) {
+                markReady(destination);
+            }
+        }
+    }
+
+    /**
+     * Takes the messages for the next frame: from the first ready destination with algorithm
+     * messages, topped up with its game moves, or else from the first ready destination. A
+     * destination with messages left goes to the back, so the destinations take turns.
+     *
+     * @return the batch, or <i>null</i> if no destination is ready.
+     */
+    private Batch nextBatch() {
+        Destination destination = null;
+
+        for (Iterator<Destination> it = ready.iterator(); it.hasNext(); ) {
+            Destination candidate = it.next();
+            if (!candidate.algorithmLane.isEmpty()) {
+                it.remove();
+                destination = candidate;
+                break;
+            }
+        }
+        if (destination == null) {
+            destination = ready.poll();
+            if (destination == null) {
+                return null;
+            }
+        }
+
+        Message first = destination.algorithmLane.isEmpty() ? destination.gameLane.peek() : destination.algorithmLane.peek();
+        Batch batch = new Batch(destination.recipientID, first.senderID);
+        long now = System.nanoTime();
+        batch.takeFrom(destination.algorithmLane, laneStats[Lane.ALGORITHM.ordinal()], now);
+        batch.takeFrom(destination.gameLane, laneStats[Lane.GAME.ordinal()], now);
+
+        if (destination.isEmpty()) {
+            destination.isReady = false;
+        } else {
+            ready.add(destination);
+        }
+        return batch;
+    }
+
+    /**
+     * Makes sure the ready batches get sent.
+     *
+     * @return <i>true</i> if the batcher has been shut down, so the caller has to send them.
+     */
+    private boolean requestDrain() {
+        if (ready.isEmpty() || drainRequested) {
+            return false;
+        }
+
+        try {
+            sender.execute(drainTask);
+            drainRequested = true;
+            return false;
+        } catch (RejectedExecutionException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Sends the ready messages, a frame at a time, so algorithm messages queued meanwhile
+     * still go before the game moves. Only one thread drains at a time, which keeps the frames
+     * of each lane to each destination in order; the lock is not held while sending.
+     */
+    private void drain() {
+        synchronized (sendLock) {
+            while (true) {
+                Batch batch;
+                synchronized (this) {
+                    drainRequested = false;
+                    batch = nextBatch();
+                    if (batch == null) {
+                        return;
+                    }
+                }
+
+                boolean sent = send(batch);
+
+                for (Message message : batch.messages) {
+                    message.sendHandle.complete(sent);
+                }
+            }
+        }
+    }
+
+    private boolean send(Batch batch) {
+        int count = batch.messages.size();
+        WireFormat.Writer frame;
+
+        if (count == 1) {
+            Message message = batch.messages.get(0);
+            frame = WireFormat.frame(message.frameType, batch.senderID, handles);
+            frame.writeEncoded(message.payload);
+        } else {
+            frame = WireFormat.frame(batchFrameType, batch.senderID, handles);
+            frame.writeVarint(count);
+
+            for (Message message : batch.messages) {
+                frame.writeByte(message.frameType);
+                frame.writeVarint(message.payload.length());
+                frame.writeEncoded(message.payload);
+            }
+        }
+
+        try {
+            link.send(batch.recipientID, frame.toString());
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to send " + count + " message(s) to " + batch.recipientID + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of messages waiting in the given lane, over all destinations.
+     */
+    public synchronized int queueDepth(Lane lane) {
+        return laneStats[lane.ordinal()].depth;
+    }
+
+    /**
+     * @return the most messages that have waited in the given lane for one destination.
+     */
+    public synchronized int maxQueueDepth(Lane lane) {
+        return laneStats[lane.ordinal()].maxDepth;
+    }
+
+    /**
+     * @return the number of messages of the given lane sent so far.
+     */
+    public synchronized long sentMessages(Lane lane) {
+        return laneStats[lane.ordinal()].sent;
+    }
+
+    /**
+     * @return the number of messages of the given lane dropped so far: the oldest game moves
+     *         of peers falling behind, or algorithm messages failed for a full queue.
+     */
+    public synchronized long droppedMessages(Lane lane) {
+        return laneStats[lane.ordinal()].dropped;
+    }
+
+    /**
+     * @return the average time the messages of the given lane waited to be sent, in ms.
+     */
+    public synchronized double averageWaitMillis(Lane lane) {
+        LaneStats stats = laneStats[lane.ordinal()];
+        return stats.sent == 0 ? 0 : stats.totalWaitNanos / 1e6 / stats.sent;
+    }
+
+    /**
+     * @return the longest time a message of the given lane waited to be sent, in ms.
+     */
+    public synchronized double maxWaitMillis(Lane lane) {
+        return laneStats[lane.ordinal()].maxWaitNanos / 1e6;
+    }
+
+    /**
+     * Sends all queued messages and stops the batcher's thread once they are out. Messages
+     * queued afterwards are sent right away, by the thread queuing them.
+     */
+    public void shutdown() {
+        flush();
+        sender.shutdown();
+    }
+}
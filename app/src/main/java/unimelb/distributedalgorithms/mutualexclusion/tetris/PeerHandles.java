@@ -0,0 +1,60 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps peer IDs to small integer handles, so a peer can be identified on the wire by
+ * a varint instead of its full SIP address.
+ *
+ * Handles are the indices of the IDs in sorted order. Every peer builds the table from the
+ * same list of peers, so all peers agree on the handles without exchanging them.
+ */
+public final class PeerHandles {
+
+    /** Returned by {@link #handleOf} for IDs that are not in the table. */
+    public static final int NO_HANDLE = -1;
+
+    private final ArrayList<String> ids;
+    private final Map<String, Integer> handles;
+
+    /**
+     * Builds the table for the given peer IDs.
+     *
+     * @param peerIDs  IDs of all peers in the game, including this one.
+     */
+    public PeerHandles(Collection<String> peerIDs) {
+        ids = new ArrayList<>(peerIDs);
+        Collections.sort(ids);
+
+        handles = new HashMap<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            handles.put(ids.get(i), i);
+        }
+    }
+
+    /**
+     * @return the handle of the peer with the given ID, or {@link #NO_HANDLE}.
+     */
+    public int handleOf(String id) {
+        Integer handle = handles.get(id);
+        return handle == null ? NO_HANDLE : handle;
+    }
+
+    /**
+     * @return the ID of the peer with the given handle, or <i>null</i> if there is no such peer.
+     */
+    public String idOf(int handle) {
+        if (handle < 0 || handle >= ids.size()) {
+            return null;
+        }
+        return ids.get(handle);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
@@ -1,29 +1,35 @@
 package unimelb.distributedalgorithms.mutualexclusion.tetris;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.Arrays;
 
 /**
  * Class to hold messages used in the Agrawal-El Abbadi algorithm.
  *
- * A {@link QuorumMessage} has a timestamp and a {@link AlgorithmMessage} value.
+ * A {@link QuorumMessage} has a timestamp (an immutable snapshot of the sender's
+ * {@link VectorClock}, or a {@link HybridTimestamp} if the peers use a
+ * {@link HybridLogicalClock} instead) and a {@link AlgorithmMessage} value.
  * The timestamp is used to avoid starvation and deadlocks as specified in the paper
  * on page 14. (see e.g. http://dl.acm.org/citation.cfm?id=103728).
  *
  * Created by jorgen on 15/05/16.
  */
 public final class QuorumMessage implements Comparable<QuorumMessage> {
-    private static final String SENDER_ID = "SenderID";
-    private static final String TIMESTAMP = "TimeStamp";
-    private static final String MESSAGE = "Message";
-
     private final String senderID;
-    private final VectorClock timestamp;
+    private final VectorTimestamp timestamp;
+    private final HybridTimestamp hybridTimestamp;
     private final String message;
 
-    QuorumMessage(String senderID, VectorClock timestamp, String message) {
+    QuorumMessage(String senderID, VectorTimestamp timestamp, String message) {
         this.senderID = senderID;
         this.timestamp = timestamp;
+        this.hybridTimestamp = null;
+        this.message = message;
+    }
+
+    QuorumMessage(String senderID, HybridTimestamp timestamp, String message) {
+        this.senderID = senderID;
+        this.timestamp = null;
+        this.hybridTimestamp = timestamp;
         this.message = message;
     }
 
@@ -31,70 +37,181 @@ public final class QuorumMessage implements Comparable<QuorumMessage> {
         return senderID;
     }
 
-    public VectorClock getTimestamp () {
+    /** @return the vector timestamp, or <i>null</i> if the message has a {@link HybridTimestamp}. */
+    public VectorTimestamp getTimestamp () {
         return timestamp;
     }
 
+    /** @return the hybrid timestamp, or <i>null</i> if the message has a {@link VectorTimestamp}. */
+    public HybridTimestamp getHybridTimestamp() {
+        return hybridTimestamp;
+    }
+
     public String getMessage() {
         return message;
     }
 
-    public static QuorumMessage fromString(String s) {
-        QuorumMessage ret = null;
+    /**
+     * Decodes a message encoded by {@link #toString()}.
+     *
+     * The sender is not part of the encoded message, since the frame it was
+     * received in already identifies it.
+     *
+     * @param senderID  ID of the {@link ITetrisPeer} the message was received from.
+     * @param s  the encoded message.
+     *
+     * @return the decoded {@link QuorumMessage}.
+     */
+    public static QuorumMessage fromString(String senderID, String s) {
+        return fromString(senderID, s, null);
+    }
 
-        try {
-            JSONObject j = new JSONObject(s);
+    /**
+     * Decodes a message encoded by {@link #toString()} or {@link #toChangesString}.
+     *
+     * @param senderID  ID of the {@link ITetrisPeer} the message was received from.
+     * @param s  the encoded message.
+     * @param receiverClock  the receiving process' clock, which keeps the timestamps needed to
+     *                       rebuild differential ones. May be <i>null</i> if only full
+     *                       timestamps are expected.
+     *
+     * @return the decoded {@link QuorumMessage}.
+     */
+    public static QuorumMessage fromString(String senderID, String s, VectorClock receiverClock) {
+        WireFormat.Reader in = new WireFormat.Reader(s);
+
+        int type = in.readByte();
+        String msg = WireFormat.typeName(type & WireFormat.TYPE_MASK);
+        VectorTimestamp ts;
+
+        if ((type & WireFormat.HYBRID_TIMESTAMP) != 0) {
+            return new QuorumMessage(senderID, HybridTimestamp.readFrom(in), msg);
+        } else if ((type & WireFormat.CHANGES_ONLY) == 0) {
+            ts = VectorTimestamp.readFrom(in);
+        } else if (receiverClock != null) {
+            ts = receiverClock.readChangesFrom(in);
+        } else {
+            throw new IllegalArgumentException("Differential timestamp needs the receiver's clock");
+        }
 
-            String sender = j.getString(SENDER_ID);
-            VectorClock ts = VectorClock.fromString(j.getString(TIMESTAMP));
-            String msg = j.getString(MESSAGE);
+        return new QuorumMessage(senderID, ts, msg);
+    }
 
-            ret = new QuorumMessage(sender, ts, msg);
-        } catch (JSONException e) {
-            e.printStackTrace();
+    /**
+     * Encodes a message with the current state of a clock as its timestamp, but only with the
+     * entries that changed since the last message to the same destination. The receiver must
+     * decode all messages from this sender, in order, with {@link #fromString(String, String, VectorClock)}.
+     *
+     * @param message  the message type.
+     * @param clock  the sender's clock.
+     * @param destination  index of the receiving process.
+     *
+     * @return the encoded message.
+     */
+    public static String toChangesString(String message, VectorClock clock, int destination) {
+        WireFormat.Writer out = new WireFormat.Writer();
+        out.writeByte(WireFormat.typeCode(message) | WireFormat.CHANGES_ONLY);
+        clock.writeChangesTo(out, destination);
+
+        return out.toString();
+    }
+
+    /**
+     * Returns the message type of an encoded message, e.g. for logging.
+     */
+    public static String typeOf(String s) {
+        return WireFormat.typeOf(s);
+    }
+
+    /**
+     * Returns a human-readable representation of the timestamp in an encoded message, for
+     * logging. Differential timestamps that do not list every entry are shown as the changed
+     * entries only, e.g. {2=5, 7=1}.
+     */
+    public static String timestampString(String s) {
+        WireFormat.Reader in = new WireFormat.Reader(s);
+        int type = in.readByte();
+
+        if ((type & WireFormat.HYBRID_TIMESTAMP) != 0) {
+            return HybridTimestamp.readFrom(in).toString();
+        } else if ((type & WireFormat.CHANGES_ONLY) == 0) {
+            return VectorTimestamp.readFrom(in).getArrayString();
         }
 
+        in.readVarint();
+        int size = in.readVarint();
+        int count = in.readVarint();
 
-        return ret;
+        if (count == size) {
+            int[] values = new int[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = in.readVarint();
+            }
+            return Arrays.toString(values);
+        }
+
+        StringBuilder sb = new StringBuilder("{");
+        int index = -1;
+        for (int i = 0; i < count; i++) {
+            index += in.readVarint() + 1;
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(index).append('=').append(in.readVarint());
+        }
+        return sb.append('}').toString();
     }
 
+    /**
+     * Encodes this message in the {@link WireFormat}: the message type as a single byte,
+     * followed by the timestamp.
+     *
+     * @return the encoded message.
+     */
     public String toString() {
-        JSONObject j = new JSONObject();
-        try {
-            j.put(SENDER_ID, senderID);
-            j.put(TIMESTAMP, timestamp.toString());
-            j.put(MESSAGE, message);
-        } catch (JSONException e) {
-            e.printStackTrace();
+        if (hybridTimestamp != null) {
+            WireFormat.Writer out = new WireFormat.Writer(16);
+            out.writeByte(WireFormat.typeCode(message) | WireFormat.HYBRID_TIMESTAMP);
+            hybridTimestamp.writeTo(out);
+
+            return out.toString();
         }
 
-        return j.toString();
+        WireFormat.Writer out = new WireFormat.Writer(8 + 2 * timestamp.size());
+        out.writeByte(WireFormat.typeCode(message));
+        timestamp.writeTo(out);
+
+        return out.toString();
     }
 
-    /** Returns other.getTimestamp() - this.getTimestamp() since
-     * "Greater" in this context means earlier.
+    /**
+     * Orders messages by their timestamps, earliest first, in a strict total order, as
+     * needed to queue them: hybrid timestamps are totally ordered already, vector timestamps
+     * are ordered by the sum of their entries and then by sender. That order respects
+     * causality, but unlike comparing the vectors themselves, it is transitive for
+     * concurrent timestamps too.
      *
      * @param other {@link QuorumMessage} to compare to
      *
-     * @return the difference between {@param other}'s timestamp and the local timestamp.
+     * @return a negative number if this message is earlier than {@param other}, 0 if they
+     *         are from the same sender with the same timestamp, a positive number otherwise.
      */
     @Override
     public int compareTo(QuorumMessage other) {
-        int cmp = timestamp.compareTo(other.getTimestamp());
-
-        switch (cmp) {
-            case VectorClock.EQUAL:
-                return 0;
-
-            case VectorClock.LESS_THAN:
-                return -1;
-
-            case VectorClock.GREATER_THAN:
-                return 1;
+        if (hybridTimestamp != null && other.hybridTimestamp != null) {
+            // Already a total order, no tie-breaking needed.
+            return hybridTimestamp.compareTo(other.hybridTimestamp);
+        } else if (timestamp == null || other.timestamp == null) {
+            // Peers disagree on the kind of clock; all that can be done is to keep the order consistent.
+            return senderID.compareTo(other.getSenderID());
+        }
 
-            default:
-                // Messages are concurrent: Prefer the first one.
-                return senderID.compareTo(other.getSenderID());
+        int cmp = Long.compare(timestamp.sum(), other.timestamp.sum());
+        if (cmp != 0) {
+            return cmp;
         }
+
+        // Equal sums mean the messages are concurrent (or equal): prefer the first sender.
+        return senderID.compareTo(other.getSenderID());
     }
 }
@@ -0,0 +1,138 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.BitSet;
+
+/**
+ * A quorum system over a group of peers, identified by their index in the sorted list of
+ * peers: a set of quorums such that any two of them intersect. {@link AgrawalElAbbadi} enters
+ * the Critical Section once every peer of some quorum has granted it permission.
+ *
+ * An instance also tracks, for one peer, which permissions it holds and which peers have
+ * failed. Failed peers are avoided when choosing whom to ask, and their permissions no
+ * longer count.
+ *
+ * The shape of the quorums is a trade-off between the number of messages per entry,
+ * the load on each peer and the number of failures that can be tolerated:
+ * <ul>
+ *     <li>{@link TreeQuorum}: a path in a binary tree, O(log N) peers.</li>
+ *     <li>{@link GridQuorum}: a column and one peer per column of a grid, O(sqrt N) peers.</li>
+ *     <li>{@link HierarchicalQuorum}: a majority of a majority of ..., O(N^0.63) peers.</li>
+ *     <li>{@link MajorityQuorum}: more than half of the peers.</li>
+ * </ul>
+ */
+public abstract class QuorumSystem {
+
+    final int numPeers;
+
+    /** Cost of a quorum of which not all peers are available. */
+    static final long UNREACHABLE = Long.MAX_VALUE;
+
+    final BitSet granted;
+    final BitSet failed;
+
+    /** Expected time until each peer grants permission, see {@link #setCost}. */
+    final long[] costs;
+
+    /**
+     * @param numPeers  number of peers in the group, including this one.
+     */
+    QuorumSystem(int numPeers) {
+        if (numPeers < 1) {
+            throw new IllegalArgumentException("A quorum system needs at least one peer");
+        }
+
+        this.numPeers = numPeers;
+        granted = new BitSet(numPeers);
+        failed = new BitSet(numPeers);
+        costs = new long[numPeers];
+    }
+
+    /**
+     * @return the number of peers in the group.
+     */
+    public int size() {
+        return numPeers;
+    }
+
+    /**
+     * @return <i>true</i> if the granted permissions include a quorum.
+     */
+    abstract boolean isObtained();
+
+    /**
+     * Chooses a quorum of peers that have not failed, whose most costly peer is as cheap as
+     * possible: the quorum that can be obtained the fastest. Among equally costly quorums,
+     * peers close to the given one are preferred, so that different peers spread their
+     * requests over the group.
+     *
+     * @param selfIndex  index of the peer that requests the Critical Section.
+     *
+     * @return the indices of the chosen peers, or <i>null</i> if too many peers have
+     *         failed to form a quorum.
+     */
+    abstract BitSet select(int selfIndex);
+
+    /**
+     * Called after the permission or failure of the given peer has changed.
+     */
+    void changed(int peerIndex) {
+    }
+
+    /**
+     * Called after all permissions have been withdrawn.
+     */
+    void cleared() {
+    }
+
+    /**
+     * Sets the expected time until the given peer grants permission, e.g. its round trip
+     * time. All peers cost 0 initially.
+     */
+    void setCost(int peerIndex, long cost) {
+        costs[peerIndex] = cost;
+    }
+
+    boolean isGranted(int peerIndex) {
+        return granted.get(peerIndex);
+    }
+
+    void setGranted(int peerIndex, boolean value) {
+        if (granted.get(peerIndex) != value) {
+            granted.set(peerIndex, value);
+            changed(peerIndex);
+        }
+    }
+
+    boolean isFailed(int peerIndex) {
+        return failed.get(peerIndex);
+    }
+
+    /**
+     * Marks a peer as failed. Its permission no longer counts.
+     */
+    void setFailed(int peerIndex) {
+        if (!failed.get(peerIndex)) {
+            failed.set(peerIndex);
+            granted.clear(peerIndex);
+            changed(peerIndex);
+        }
+    }
+
+    /**
+     * Returns the first peer at or after the given index that has granted permission,
+     * to iterate over the granted peers.
+     *
+     * @return the peer's index, or -1 if there is none.
+     */
+    int nextGranted(int fromIndex) {
+        return granted.nextSetBit(fromIndex);
+    }
+
+    /**
+     * Withdraws all permissions. Failed peers stay failed.
+     */
+    void clearGranted() {
+        granted.clear();
+        cleared();
+    }
+}
@@ -28,10 +28,6 @@ public class Raymond extends Algorithm{
      */
     private Queue<String> queue;
 
-    /**
-     * To identify the queue's head
-     */
-    private String queuehead = "";
 
     /**
      * Peer's parent
@@ -40,16 +36,21 @@ public class Raymond extends Algorithm{
 
 
     /**
-     * To handle the case when I have to wait for having a new head in order to send
-     * the request message to my parent
+     * Whether a request for the token has been sent to the parent and the token has not
+     * arrived yet. One request stands for the whole queue, so no other is sent meanwhile.
      */
-    public boolean hasnewhead;
-    public boolean waitingForNewHead;
+    private boolean tokenRequested;
 
 
     public final static String TOKEN_REQUESTED = "TOKEN REQUESTED"; //Request message
     public final static String TOKEN_GRANTED = "TOKEN GRANTED"; //Privileged message
 
+    /**
+     * The token messages as sent over the network (see {@link WireFormat}).
+     */
+    private final static String TOKEN_REQUESTED_MSG = WireFormat.encodeType(TOKEN_REQUESTED);
+    private final static String TOKEN_GRANTED_MSG = WireFormat.encodeType(TOKEN_GRANTED);
+
 
 
     /**
@@ -166,173 +167,137 @@ public class Raymond extends Algorithm{
     public synchronized void receiveMessage(ITetrisPeer sender, String msg) {
 
 
-        if (msg.equals(TOKEN_REQUESTED)) {
+        if (WireFormat.decodeType(msg).equals(TOKEN_REQUESTED)) {
 
             //When a process receives a request for the token from a child it adds the
             // ID of this child at the end of its queue
             queue.add(sender.getID());
 
-            //Each time a nonroot gets a new head at its (nonempty) queue, it sends a
-            // request for the token to its parant in this sink tree
-            boolean newHead = hasNewHead(queue);
-
-            if (!iamtheRoot() && !queue.isEmpty() && newHead)
-                parent.sendMessage(selfPeer.toString(), TOKEN_REQUESTED);
+            if (iamtheRoot()) {
+                //A root that is not in its Critical Section holds the token unused
+                if (!criticalSection)
+                    passToken();
+            } else {
+                requestToken();
+            }
 
 
         } else {//msg.equals("token granted") if a nonroot get the token from its parent
-            if (!iamtheRoot()){
-
-                String p = selfPeer.getID(); //Let a nonroot p get the token from its parent
-                String q = queue.peek(); //Let the ID of a peer q be at the head of p's queue
-
-                if (!p.equals(q)){
-                    //send the token to the peer with the ID at queue's head
-                    getPeer(queue.peek()).sendMessage(selfPeer.toString(),TOKEN_GRANTED);
-                    setparent(queue.peek()); //make to this peer its parent
-                } else { //if the ID of the peer is the same that the ID of the peer at the head of its queue
-                    setparent(selfPeer.getID()); //then itself is now the root (no parent)
-                    criticalSection = true; //and is privileged
-                    this.notify();
-                }
-                queue.poll(); //In both cases remove the ID from the head of the queue
-
-
-                //In case the peer is waiting for a change in its queue's head
-                //in order to send the request message to its parent
-                if (waitingForNewHead) {
-                    hasnewhead = true;
-                    this.notify();
-                }
-
+            tokenRequested = false;
+            setparent(selfPeer.getID()); //the token holder is the root
+
+            if (self.equals(queue.peek())) { //if its own request is at the head of its queue
+                queue.poll();
+                criticalSection = true; //then it is privileged
+                critSectionMayBeObtained();
+            } else {
+                //otherwise the token goes to the head of the queue; if the queue is empty,
+                //the request was withdrawn, and the token is kept until someone asks for it
+                passToken();
             }
         }
 
     }
 
     /**
-     * Checks if the queue's head has a new ID and updates the head
-     * @param q
-     * @return
+     * Sends the token to the peer at the head of the queue, which becomes the parent, and
+     * requests the token back if more peers are waiting. Does nothing if the queue is empty.
      */
-    public boolean hasNewHead(Queue<String> q){
-        if (!q.isEmpty()) {
-            if (!q.peek().equals(queuehead)){
-                queuehead = q.peek();
-                return true;
-            }
-        }else queuehead = "";
+    private void passToken() {
+        String q = queue.poll();
+        if (q == null)
+            return;
 
+        getPeer(q).sendMessage(selfPeer.toString(), TOKEN_GRANTED_MSG);
+        setparent(q);
 
-        return false;
+        requestToken();
     }
 
+    /**
+     * Sends a request for the token to the parent if the queue is nonempty, this peer is
+     * not the root and no request is outstanding yet.
+     */
+    private void requestToken() {
+        if (!iamtheRoot() && !queue.isEmpty() && !tokenRequested) {
+            tokenRequested = true;
+            parent.sendMessage(selfPeer.toString(), TOKEN_REQUESTED_MSG);
+        }
+    }
 
 
 
 
-    @Override
-    public synchronized boolean obtainCritSection() {
-
-        //Default values
-        hasnewhead = false;
-        waitingForNewHead = false;
 
+    @Override
+    synchronized boolean startObtainCritSection() {
 
         if (!iamtheRoot()){
 
             //when a nonroot wants to enter its CS, it adds its ID o its own queue
             queue.add(self);
 
+            //and requests the token from its parent, unless a request for the queue is
+            //already on its way
+            requestToken();
 
-            //Each time a nonroot gets a new head at its (nonempty) queue, it sends a request for the
-            //token to its parent in this sink tree
-            boolean newHead = hasNewHead(queue);
-
-            if (!queue.isEmpty() && newHead) {
-
-                parent.sendMessage(selfPeer.toString(), TOKEN_REQUESTED);
-                try {
-                    // wait until token had been received:
-                    while (!criticalSection) {
-                        Log.i(TAG,"waiting for access to the CS");
-                        this.wait();
-                    }
-                } catch (InterruptedException e) {
-                    Log.i(TAG,"access to CS granted");
-                    // token obtained
-                }
-            }else { //In case the head's queue hasn't change and the peer wants access to the CS
-
-                waitingForNewHead = true;
-
-                try {
-                    // wait until have a new head
-                    while (!hasnewhead) {
-                        this.wait();
-                    }
-                } catch (InterruptedException e) {
-
-                }
-
-
-                Log.i(TAG,"peer has new head at its queue");
-
-
-                //Now proceed to send the request message
-                parent.sendMessage(selfPeer.toString(), TOKEN_REQUESTED);
-
-                try {
-                    // wait until token had been received:
-                    while (!criticalSection) {
-                        this.wait();
-                    }
-                } catch (InterruptedException e) {
-
-                }
+        }
+        else {//the root holds the token, so it can become privileged straightaway
+            criticalSection = true;
+        }
 
+        return true;
+    }
 
-            }
+    @Override
+    synchronized boolean holdsCritSection() {
+        return criticalSection;
+    }
 
+    @Override
+    public synchronized boolean obtainCritSection() {
+        startObtainCritSection();
 
-        }
-        else {//if the root want to enter its critical section and
-              // its queue is empty it can become privileged straightaway
-            if (queue.isEmpty()){
-                criticalSection = true;
+        try {
+            // wait until token had been received:
+            while (!criticalSection) {
+                Log.i(TAG,"waiting for access to the CS");
+                this.wait();
             }
+        } catch (InterruptedException e) {
+            // Give up: the token is kept unused if it arrives after all.
+            cancelObtainCritSection();
+            Thread.currentThread().interrupt();
+            return false;
         }
 
-
-
         return true;
     }
 
 
 
+    /**
+     * Removes this peer from its queue. The request already sent to the parent can not be
+     * taken back, so if the token arrives with no one else waiting, it is kept unused.
+     */
     @Override
-    public boolean releaseCritSection() {
+    synchronized void cancelObtainCritSection() {
+        queue.remove(self);
+    }
+
+    @Override
+    public synchronized boolean releaseCritSection() {
+        if (!criticalSection)
+            return false;
 
         //release CS
         criticalSection = false;
 
-        if (iamtheRoot()){ //If the root has left its Critical Section
-            if (!queue.isEmpty() || queue.size()>1) { //and its queue is or becomes nonempty
-                String q = queue.peek(); //peer ID q at the head of its queue
-                getPeer(q).sendMessage(selfPeer.toString(),TOKEN_GRANTED);
-                setparent(q); //make q its parent
-                queue.poll(); //remove q's ID from the head of its queue
-
-                boolean newHead = hasNewHead(queue); //used is this way because it helps me to update te head as well
+        //If the root has left its Critical Section and its queue is nonempty, the token
+        //goes to the peer at the head of its queue; otherwise it is kept until requested
+        passToken();
 
-                if (!queue.isEmpty() && newHead)
-                    parent.sendMessage(selfPeer.toString(),TOKEN_REQUESTED);
-
-                return true;
-            }
-        }
-
-        return false;
+        return true;
     }
 
 
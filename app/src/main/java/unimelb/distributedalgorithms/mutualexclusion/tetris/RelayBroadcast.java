@@ -0,0 +1,168 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends a message to many peers over a tree of relays, so the sender only sends it to a few
+ * of them instead of every peer in turn.
+ *
+ * The recipients are sorted, starting after the sender so each sender has other relays, and
+ * split into {@link #fanout} contiguous parts of equal size. The first peer of each part
+ * receives the message in a relay frame, together with the handles of the rest of its part,
+ * which it splits and relays to in the same way:
+ * <pre>
+ *     [version] [relay frame type] [sender] [lane] [count] [handle]* [frame type] [payload...]
+ * </pre>
+ * Peers without a part to relay to receive the message as an ordinary frame. Every peer thus
+ * sends at most {@link #fanout} frames, and the message reaches all of the <i>N</i> recipients
+ * after about log<sub>fanout</sub> <i>N</i> hops.
+ *
+ * The relay frames keep the original sender in their header, so the message is handled as if
+ * it came from the sender. Messages are relayed in the {@link OutboundBatcher.Lane} they were
+ * sent in; relayed algorithm messages go out with the relay's next flush.
+ */
+public final class RelayBroadcast {
+    public String TAG = "Relay Broadcast";
+
+    private final OutboundBatcher outbound;
+    private final PeerHandles handles;
+    private final int relayFrameType;
+    private final int fanout;
+
+
+    /**
+     * @param outbound  the batcher to send the frames with.
+     * @param handles  table to look up the peers' handles in. Only peers in it can relay.
+     * @param relayFrameType  the frame type marking a relay frame.
+     * @param fanout  the most peers each peer sends a message to.
+     */
+    public RelayBroadcast(OutboundBatcher outbound, PeerHandles handles, int relayFrameType, int fanout) {
+        if (fanout < 1) {
+            throw new IllegalArgumentException("The fanout must be positive");
+        }
+
+        this.outbound = outbound;
+        this.handles = handles;
+        this.relayFrameType = relayFrameType;
+        this.fanout = fanout;
+    }
+
+    /**
+     * Sends a message to the given peers.
+     *
+     * @param recipientIDs  IDs of the receiving peers, not including the sender.
+     * @param frameType  type of the frame the message would be sent in on its own.
+     * @param senderID  ID of the sending peer.
+     * @param payload  the encoded message.
+     * @param lane  the lane to send the message in, at every hop.
+     */
+    public void broadcast(List<String> recipientIDs, int frameType, String senderID, String payload,
+                          OutboundBatcher.Lane lane) {
+        ArrayList<String> before = new ArrayList<>();
+        ArrayList<String> after = new ArrayList<>();
+
+        for (String id : recipientIDs) {
+            if (handles.handleOf(id) == PeerHandles.NO_HANDLE) {
+                // Cannot be named in a relay frame.
+                send(id, frameType, senderID, payload, lane);
+            } else if (id.compareTo(senderID) < 0) {
+                before.add(id);
+            } else {
+                after.add(id);
+            }
+        }
+
+        Collections.sort(before);
+        Collections.sort(after);
+        after.addAll(before);
+
+        int[] subtree = new int[after.size()];
+        for (int i = 0; i < subtree.length; i++) {
+            subtree[i] = handles.handleOf(after.get(i));
+        }
+
+        forward(subtree, frameType, senderID, payload, lane);
+    }
+
+    /**
+     * Relays the message in a relay frame to the peers below this one.
+     *
+     * @param senderID  ID of the peer that sent the message.
+     * @param frame  the relay frame, positioned at the start of its payload.
+     *
+     * @return a reader of the message, starting at its frame type, to handle it like the
+     *         payload of an ordinary frame.
+     *
+     * @throws IllegalArgumentException if the frame is malformed.
+     */
+    public WireFormat.Reader relay(String senderID, WireFormat.Reader frame) {
+        int laneIndex = frame.readByte();
+        if (laneIndex >= OutboundBatcher.Lane.values().length) {
+            throw new IllegalArgumentException("Unknown lane " + laneIndex);
+        }
+        OutboundBatcher.Lane lane = OutboundBatcher.Lane.values()[laneIndex];
+
+        int count = frame.readVarint();
+        if (count > frame.remaining()) {
+            throw new IllegalArgumentException("Truncated relay frame");
+        }
+
+        int[] subtree = new int[count];
+        for (int i = 0; i < count; i++) {
+            subtree[i] = frame.readVarint();
+            if (handles.idOf(subtree[i]) == null) {
+                throw new IllegalArgumentException("Unknown peer handle: " + subtree[i]);
+            }
+        }
+
+        int frameType = frame.readByte();
+        String payload = frame.readRemaining();
+        forward(subtree, frameType, senderID, payload, lane);
+
+        WireFormat.Writer message = new WireFormat.Writer(payload.length() + 1);
+        message.writeByte(frameType);
+        message.writeEncoded(payload);
+        return new WireFormat.Reader(message.toString());
+    }
+
+    /**
+     * Sends the message to the peers with the given handles, split into at most {@link #fanout}
+     * parts, each sent to its first peer to relay to the others.
+     */
+    private void forward(int[] subtree, int frameType, String senderID, String payload, OutboundBatcher.Lane lane) {
+        int count = subtree.length;
+        int parts = Math.min(fanout, count);
+
+        for (int part = 0; part < parts; part++) {
+            int start = (int) ((long) count * part / parts);
+            int end = (int) ((long) count * (part + 1) / parts);
+            String childID = handles.idOf(subtree[start]);
+
+            if (end - start == 1) {
+                send(childID, frameType, senderID, payload, lane);
+                continue;
+            }
+
+            WireFormat.Writer out = new WireFormat.Writer(payload.length() + 2 * (end - start) + 4);
+            out.writeByte(lane.ordinal());
+            out.writeVarint(end - start - 1);
+            for (int i = start + 1; i < end; i++) {
+                out.writeVarint(subtree[i]);
+            }
+            out.writeByte(frameType);
+            out.writeEncoded(payload);
+
+            send(childID, relayFrameType, senderID, out.toString(), lane);
+        }
+    }
+
+    private void send(String recipientID, int frameType, String senderID, String payload, OutboundBatcher.Lane lane) {
+        if (lane == OutboundBatcher.Lane.GAME) {
+            outbound.sendGameMove(recipientID, frameType, senderID, payload);
+        } else {
+            outbound.send(recipientID, frameType, senderID, payload, false);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Pending REQUESTs of a quorum member, at most one per sender, ordered by
+ * {@link QuorumMessage#compareTo}.
+ *
+ * Besides the {@link TreeSet} that keeps the order, each sender's REQUEST is kept in a map,
+ * so looking up, adding and removing a sender's REQUEST never has to scan the queue:
+ * every operation costs O(log n).
+ */
+final class RequestQueue {
+
+    private final TreeSet<QuorumMessage> ordered = new TreeSet<>();
+    private final HashMap<String, QuorumMessage> bySender = new HashMap<>();
+
+    /**
+     * Adds a REQUEST, unless its sender already has one in the queue.
+     *
+     * @return <i>false</i> if the sender already had a REQUEST in the queue.
+     */
+    boolean add(QuorumMessage request) {
+        String senderID = request.getSenderID();
+        if (bySender.containsKey(senderID)) {
+            return false;
+        }
+
+        bySender.put(senderID, request);
+        ordered.add(request);
+        return true;
+    }
+
+    /**
+     * @return <i>true</i> if the given sender has a REQUEST in the queue.
+     */
+    boolean contains(String senderID) {
+        return bySender.containsKey(senderID);
+    }
+
+    /**
+     * Removes and returns the earliest REQUEST.
+     *
+     * @return the REQUEST, or <i>null</i> if the queue is empty.
+     */
+    QuorumMessage pollFirst() {
+        QuorumMessage first = ordered.pollFirst();
+        if (first != null) {
+            bySender.remove(first.getSenderID());
+        }
+        return first;
+    }
+
+    /**
+     * Removes the REQUEST of the given sender.
+     *
+     * @return the removed REQUEST, or <i>null</i> if the sender had none in the queue.
+     */
+    QuorumMessage remove(String senderID) {
+        QuorumMessage request = bySender.remove(senderID);
+        if (request != null) {
+            ordered.remove(request);
+        }
+        return request;
+    }
+
+    int size() {
+        return ordered.size();
+    }
+
+    boolean isEmpty() {
+        return ordered.isEmpty();
+    }
+}
@@ -3,18 +3,23 @@ package unimelb.distributedalgorithms.mutualexclusion.tetris;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.InputMismatchException;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
-import unimelb.distributedalgorithms.mutualexclusion.tetris.utils.Globals;
-
 /**
  * Implementation of the Ricart-Agrawala algorithm for distributed mutual exclusion.
  *
  * The algorithm is based on Lamport's timestamps and requires a multi-cast process which
  * then waits for the replies from all the peers before granting access to the critical section.
  *
+ * With the Roucairol-Carvalho optimization, a REPLY is a permission that stays valid until this
+ * peer replies to a request from the same peer. Entering the critical section again only needs
+ * to REQUEST the peers that have asked for their permission back in the meantime, so repeated
+ * entries without contention send no messages at all.
+ *
+ * REQUESTs can be multicast, see {@link #useMulticast}.
+ *
  * Created by Andres on 18/05/2016.
  */
 public class RicartAgrawala extends Algorithm {
@@ -44,22 +49,54 @@ public class RicartAgrawala extends Algorithm {
     private int TimeStamp;
 
     /**
-     * The number of replies received after a multi-cast reply has been sent to all peers.
+     * The Lamport timestamp of the current request. Requests are ordered by this, not by
+     * {@link #TimeStamp}, which keeps changing while the request is pending.
      */
-    private int replyNum;
+    private int requestTimeStamp;
 
-    private boolean[] replyList;
+    /**
+     * Clock used instead of the Lamport timestamp if set, see {@link #useHybridClock}.
+     */
+    private HybridLogicalClock hybridClock = null;
+
+    /**
+     * Timestamp of the current request when using {@link #hybridClock}.
+     */
+    private HybridTimestamp selfRequestHybrid = null;
+
+    /**
+     * The number of peers whose permission is currently held, i.e. the number of entries
+     * set in {@link #replyList}.
+     */
+    private int replyNum;
 
     /**
-     * Boolean value that indicates whether all the expected replies have been received.
+     * replyList[i] is <i>true</i> while this peer holds the permission of peer i: it has
+     * received a REPLY from i, and has not replied to a request from i since.
      */
-    private boolean allReplies = false;
+    private boolean[] replyList;
 
     /**
      * Queue that contains all the pending request to be processed after the CS has been released.
      */
     private ArrayList<String> q;
 
+    /**
+     * pendingReplies[i] is the number of REQUESTs sent to peer i that it has not REPLYed to yet.
+     * A peer REPLYs once to every REQUEST, in the order it answers them.
+     */
+    private int[] pendingReplies;
+
+    /**
+     * staleReplies[i] is the number of the {@link #pendingReplies} of peer i that answer
+     * withdrawn requests. They were given before this peer REPLYed to the requests it deferred
+     * on withdrawing, so they are not permissions anymore, and are dropped when they arrive.
+     */
+    private int[] staleReplies;
+
+    /** Sends the REQUESTs to several peers at once if set. */
+    private IMulticast multicast = null;
+
     /**
      * Initialises the algorithm for a given list of {@link ITetrisPeer}s.
      *
@@ -77,10 +114,37 @@ public class RicartAgrawala extends Algorithm {
         replyNum = 0;
         replyList = new boolean[peers.size()];
         q = new ArrayList<>();
+        pendingReplies = new int[peers.size()];
+        staleReplies = new int[peers.size()];
         TimeStamp = 0;
         Log.i(TAG, "Initial state--> ID: " + self.getID() + " size of reply list: " + peers.size());
     }
 
+    /**
+     * Timestamps messages with a {@link HybridLogicalClock} instead of a Lamport timestamp.
+     * Requests are then ordered by the time they were made, with no ties to resolve.
+     * All peers must use the same kind of clock.
+     *
+     * @param timeSource  where the clock reads physical time from, e.g.
+     *                    {@link HybridLogicalClock#SYSTEM_TIME}.
+     */
+    public synchronized void useHybridClock(HybridLogicalClock.TimeSource timeSource) {
+        hybridClock = new HybridLogicalClock(selfIndex(), timeSource);
+    }
+
+    /**
+     * Sends the REQUESTs for the critical section with a multicast, e.g. over a relay tree,
+     * instead of to each peer in turn.
+     *
+     * A multicast REQUEST may overtake a REPLY sent to the same peer before it. The REPLY
+     * answers an older request, so the REQUEST is deferred, unless that request has been
+     * withdrawn meanwhile and the REQUEST REPLYed to. The REPLY is then dropped as stale, see
+     * {@link #staleReplies}.
+     */
+    public synchronized void useMulticast(IMulticast multicast) {
+        this.multicast = multicast;
+    }
+
     /**
      * Returns an index based on the peer ID.
      */
@@ -117,13 +181,42 @@ public class RicartAgrawala extends Algorithm {
         return selfIndex;
     }
 
+    /** Logs the messages that could not be sent. */
+    private final SendHandle.Listener sendFailureLogger = new SendHandle.Listener() {
+        @Override
+        public void onSent(SendHandle handle) {
+        }
+
+        @Override
+        public void onFailed(SendHandle handle) {
+            Log.e(TAG, "Failed to send a message");
+        }
+    };
+
     /**
      * Helper to send a message, including all the data managed by the TImeStampMessage class.
+     *
+     * The message is sent asynchronously, so a multicast goes out to all peers at once,
+     * without waiting for each in turn.
      */
-    private synchronized boolean sendMessage(ITetrisPeer p, String msg) {
+    private synchronized void sendMessage(ITetrisPeer p, String msg) {
+        p.sendMessageAsync(self, encode(msg)).setListener(sendFailureLogger);
+    }
+
+    /**
+     * Timestamps a message; REQUESTs with the timestamp of the current request.
+     */
+    private String encode(String msg) {
         TimeStampMessage toSend;
-        toSend = new TimeStampMessage(self, TimeStamp, msg);
-        return p.sendMessage(self, toSend.toString());
+        boolean request = msg.equals(AlgorithmMessage.REQUEST);
+        if (hybridClock != null) {
+            HybridTimestamp ts = request && selfRequestHybrid != null
+                    ? selfRequestHybrid : hybridClock.sendAction();
+            toSend = new TimeStampMessage(self, ts, msg);
+        } else {
+            toSend = new TimeStampMessage(self, request ? requestTimeStamp : TimeStamp, msg);
+        }
+        return toSend.toString();
     }
 
     /**
@@ -131,17 +224,9 @@ public class RicartAgrawala extends Algorithm {
      */
     @Override
     public void receiveMessage(ITetrisPeer sender, String msg) {
-        Log.i(TAG, "message received :" + msg + " from " + sender.getID());
-
-        TimeStampMessage qMsg = TimeStampMessage.fromString(msg);
+        TimeStampMessage qMsg = TimeStampMessage.fromString(sender.getID(), msg);
 
-        String senderID = sender.getID();
-        String msgID = qMsg.getSenderID();
-
-        if (!senderID.equals(msgID)) {
-            throw new InputMismatchException("Mismatch in sender/msg ID;"
-                    + "Sender: " + senderID + "; Message: " + msgID);
-        }
+        Log.i(TAG, "message received :" + qMsg.getMessage() + " from " + sender.getID());
 
         handleMessage(sender, qMsg);
     }
@@ -154,9 +239,15 @@ public class RicartAgrawala extends Algorithm {
 
         Log.i(TAG, "message to handle :" + type);
 
+        if (hybridClock != null && qMsg.getHybridTimestamp() != null) {
+            hybridClock.receiveAction(qMsg.getHybridTimestamp());
+        }
+
         switch (type) {
             case AlgorithmMessage.REQUEST:
-                TimeStamp = qMsg.getTimestamp() + 1;
+                if (qMsg.getHybridTimestamp() == null) {
+                    TimeStamp = Math.max(TimeStamp, qMsg.getTimestamp()) + 1;
+                }
                 handleRequest(sender, qMsg);
                 break;
 
@@ -171,14 +262,47 @@ public class RicartAgrawala extends Algorithm {
      */
     private synchronized void handleRequest(ITetrisPeer sender, TimeStampMessage qMsg) {
         Log.i(TAG, "STATE: " + state);
-        if (state.equals(HELD) || (state.equals(WANTED) && comparePeers(TimeStamp, qMsg.getTimestamp(), sender.toString()))) {
+        boolean defer = state.equals(HELD);
+
+        if (state.equals(WANTED)) {
+            if (selfRequestHybrid != null && qMsg.getHybridTimestamp() != null) {
+                defer = selfRequestHybrid.compareTo(qMsg.getHybridTimestamp()) < 0;
+            } else {
+                defer = comparePeers(requestTimeStamp, qMsg.getTimestamp(), sender.toString());
+            }
+        }
+
+        if (defer) {
             q.add(sender.toString());
         } else {
-            sendMessage(sender, AlgorithmMessage.REPLY);
-            Log.i(TAG, "sending reply to " + sender.getID());
+            boolean wasHeld = grantPermission(sender);
+
+            if (wasHeld && state.equals(WANTED)) {
+                // The older request goes first, but this one still needs the permission back.
+                sendRequest(sender);
+            }
         }
     }
 
+    /**
+     * REPLYs to a request, which gives up the permission held from the requesting peer.
+     *
+     * @return <i>true</i> if the permission was held until now.
+     */
+    private synchronized boolean grantPermission(ITetrisPeer peer) {
+        int peerIndex = getPeerIndex(peer.getID());
+        boolean wasHeld = replyList[peerIndex];
+
+        if (wasHeld) {
+            replyList[peerIndex] = false;
+            replyNum--;
+        }
+
+        sendMessage(peer, AlgorithmMessage.REPLY);
+        Log.i(TAG, "sending reply to " + peer.getID());
+        return wasHeld;
+    }
+
     /**
      * Helper to compare between two timestamps, and, if necessary, compare between peer ids.
      * Used to resolve any conflicts when requests have the same time stamp
@@ -208,49 +332,132 @@ public class RicartAgrawala extends Algorithm {
      * Handles all the replies
      */
     private synchronized void handleReply(ITetrisPeer sender) {
+        int senderIndex = getPeerIndex(sender.getID());
+
+        if (pendingReplies[senderIndex] > 0) {
+            pendingReplies[senderIndex]--;
+        }
+        if (staleReplies[senderIndex] > 0) {
+            // Answers a withdrawn request: the permission has been given back since.
+            staleReplies[senderIndex]--;
+            Log.i(TAG, "Stale REPLY from " + sender.getID());
+            return;
+        }
+
+        if (replyList[senderIndex]) {
+            Log.e(TAG, "Duplicate REPLY from " + sender.getID());
+            return;
+        }
+
+        replyList[senderIndex] = true;
         replyNum++;
-        if (replyNum == peers.size() - 1) {
+        if (allReplies() && state.equals(WANTED)) {
             Log.i(TAG,"reply = N");
-            allReplies = true;
-            this.notify();
+            state = HELD;
+            critSectionMayBeObtained();
         }
     }
 
+    /**
+     * Returns whether the permissions of all other peers are held.
+     */
+    private boolean allReplies() {
+        return replyNum == peers.size() - 1;
+    }
+
     /**
      * Handles the Critical Section granting part
      */
     @Override
-    public synchronized boolean obtainCritSection() {
+    synchronized boolean startObtainCritSection() {
         Log.i(TAG, "request CS access");
         state = WANTED;
         selfRequestClock = requestClock.copy();
-        replyList = new boolean[peers.size()];
+        if (hybridClock != null) {
+            selfRequestHybrid = hybridClock.sendAction();
+        } else {
+            requestTimeStamp = ++TimeStamp;
+        }
         Log.i(TAG, "start multicast");
         sendMulticast();
 
+        if (allReplies()) {
+            // All permissions were still held from earlier entries.
+            state = HELD;
+        }
+
+        return true;
+    }
+
+    @Override
+    synchronized boolean holdsCritSection() {
+        return state.equals(HELD);
+    }
+
+    @Override
+    public synchronized boolean obtainCritSection() {
+        startObtainCritSection();
+
         try {
-            while (!allReplies) {
+            while (!holdsCritSection()) {
                 Log.i(TAG, "Number of replies:" + replyNum);
                 this.wait();
-                state =  HELD;
             }
         } catch (InterruptedException e) {
-
+            // Give up: the permissions still missing are not waited for.
+            cancelObtainCritSection();
+            Thread.currentThread().interrupt();
+            return false;
         }
 
         return true;
     }
 
     /**
-     * Sends a multi-cast message to all the peers
+     * Withdraws a request like leaving the critical section: deferred requests are answered
+     * right away. The REPLYs still on their way were given before those answers, so they are
+     * dropped when they arrive; the next request asks those peers again.
      */
-    public void sendMulticast() {
-        for (ITetrisPeer peer : peers) {
-            if(!peer.toString().equals(self.toString())) {
-                sendMessage(peer, AlgorithmMessage.REQUEST);
+    @Override
+    synchronized void cancelObtainCritSection() {
+        for (int i = 0; i < peers.size(); i++) {
+            staleReplies[i] = pendingReplies[i];
+        }
+        releaseCritSection();
+    }
+
+    /**
+     * Sends a REQUEST to all the peers whose permission is not held
+     */
+    public synchronized void sendMulticast() {
+        List<ITetrisPeer> recipients = new ArrayList<>();
+
+        for (int i = 0; i < peers.size(); i++) {
+            ITetrisPeer peer = peers.get(i);
+            if(!peer.toString().equals(self.toString()) && !replyList[i]) {
+                recipients.add(peer);
                 Log.i(TAG, "sending message to :" + peer.getID());
             }
         }
+
+        if (multicast != null && recipients.size() > 1) {
+            for (ITetrisPeer peer : recipients) {
+                pendingReplies[getPeerIndex(peer.getID())]++;
+            }
+            multicast.sendMessage(self, recipients, encode(AlgorithmMessage.REQUEST));
+        } else {
+            for (ITetrisPeer peer : recipients) {
+                sendRequest(peer);
+            }
+        }
+    }
+
+    /**
+     * Sends a REQUEST to a single peer.
+     */
+    private synchronized void sendRequest(ITetrisPeer peer) {
+        pendingReplies[getPeerIndex(peer.getID())]++;
+        sendMessage(peer, AlgorithmMessage.REQUEST);
     }
 
     /**
@@ -264,12 +471,11 @@ public class RicartAgrawala extends Algorithm {
      * Handles the releasing of the Critical Section
      */
     @Override
-    public boolean releaseCritSection() {
+    public synchronized boolean releaseCritSection() {
         state = RELEASED;
-        allReplies = false;
-        replyNum = 0;
+        selfRequestHybrid = null;
         for(int i = 0; i < q.size(); i++) {
-            sendMessage(getPeer(q.get(i)), AlgorithmMessage.REPLY);
+            grantPermission(getPeer(q.get(i)));
         }
         q.clear();
         return true;
@@ -0,0 +1,73 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+/**
+ * Estimates how long each peer takes to answer, from measured round trip times.
+ *
+ * As in TCP's retransmission timer (RFC 6298), a smoothed average and the mean deviation
+ * of the samples are kept per peer. A peer's cost is the average plus four deviations,
+ * so a peer whose latency starts rising or jumping around is avoided quickly, and only
+ * becomes attractive again once its samples settle.
+ */
+final class RoundTripTimes {
+
+    /** Weight of a new sample in the average. */
+    private static final double ALPHA = 1.0 / 8;
+
+    /** Weight of a new sample in the deviation. */
+    private static final double BETA = 1.0 / 4;
+
+    private final double[] smoothed;
+    private final double[] deviation;
+    private final boolean[] measured;
+
+    private int numMeasured = 0;
+    private double totalCost = 0;
+
+    /**
+     * @param numPeers  number of peers in the group.
+     */
+    RoundTripTimes(int numPeers) {
+        smoothed = new double[numPeers];
+        deviation = new double[numPeers];
+        measured = new boolean[numPeers];
+    }
+
+    /**
+     * Records a measured round trip time.
+     *
+     * @param peerIndex  the peer that answered.
+     * @param rtt  time between sending the message and receiving the answer, in milliseconds.
+     */
+    void addSample(int peerIndex, long rtt) {
+        if (!measured[peerIndex]) {
+            smoothed[peerIndex] = rtt;
+            deviation[peerIndex] = rtt / 2.0;
+            measured[peerIndex] = true;
+            numMeasured++;
+        } else {
+            totalCost -= exactCost(peerIndex);
+
+            double error = rtt - smoothed[peerIndex];
+            smoothed[peerIndex] += ALPHA * error;
+            deviation[peerIndex] += BETA * (Math.abs(error) - deviation[peerIndex]);
+        }
+
+        totalCost += exactCost(peerIndex);
+    }
+
+    private double exactCost(int peerIndex) {
+        return smoothed[peerIndex] + 4 * deviation[peerIndex];
+    }
+
+    /**
+     * @return the expected time until the given peer answers, in milliseconds. A peer that
+     *         has not been measured yet is assumed to be average, so it is preferred over
+     *         slow peers but not over fast ones.
+     */
+    long cost(int peerIndex) {
+        if (measured[peerIndex]) {
+            return Math.round(exactCost(peerIndex));
+        }
+        return numMeasured == 0 ? 0 : Math.round(totalCost / numMeasured);
+    }
+}
@@ -0,0 +1,105 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+/**
+ * The outcome of a message sent with {@link ITetrisPeer#sendMessageAsync}, which is only known
+ * once the message has actually been handed to the network.
+ *
+ * Sending returns right away, so an algorithm can send to many peers without waiting for each
+ * in turn, and without holding its lock while the network is busy. It learns about peers that
+ * could not be reached through a {@link Listener}.
+ */
+public final class SendHandle {
+
+    /**
+     * Receives the outcome of a send.
+     *
+     * The methods are called by the thread that sent the message, which may be the one that
+     * called {@link ITetrisPeer#sendMessageAsync}, so they must not wait for other peers.
+     */
+    public interface Listener {
+
+        /** The message has been handed to the network. */
+        void onSent(SendHandle handle);
+
+        /** The message could not be sent. */
+        void onFailed(SendHandle handle);
+    }
+
+    private static final int PENDING = 0;
+    private static final int SENT = 1;
+    private static final int FAILED = 2;
+
+    private int state = PENDING;
+    private Listener listener = null;
+
+
+    /**
+     * @param sent  the outcome.
+     *
+     * @return a handle for a send whose outcome is already known.
+     */
+    public static SendHandle completed(boolean sent) {
+        SendHandle handle = new SendHandle();
+        handle.complete(sent);
+        return handle;
+    }
+
+    /**
+     * Sets the listener to report the outcome to. If the send has completed already,
+     * the listener is called right away.
+     */
+    public void setListener(Listener listener) {
+        int outcome;
+        synchronized (this) {
+            this.listener = listener;
+            outcome = state;
+        }
+
+        if (outcome == SENT) {
+            listener.onSent(this);
+        } else if (outcome == FAILED) {
+            listener.onFailed(this);
+        }
+    }
+
+    /**
+     * @return <i>true</i> once the message has been sent or has failed.
+     */
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    /**
+     * @return <i>true</i> if the message has been sent.
+     */
+    public synchronized boolean isSent() {
+        return state == SENT;
+    }
+
+    /**
+     * Reports the outcome of the send. Called by the {@link ITetrisPeer} implementation;
+     * only the first call counts.
+     *
+     * @param sent  <i>true</i> if the message has been handed to the network.
+     */
+    public void complete(boolean sent) {
+        Listener toCall;
+        synchronized (this) {
+            if (state != PENDING) {
+                return;
+            }
+            state = sent ? SENT : FAILED;
+            toCall = listener;
+        }
+
+        if (toCall == null) {
+            return;
+        }
+
+        if (sent) {
+            toCall.onSent(this);
+        } else {
+            toCall.onFailed(this);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Implementation of the Suzuki-Kasami broadcast algorithm for Mutual Exclusion.
+ *
+ * A single token grants access to the Critical Section. A peer without the token broadcasts
+ * a REQUEST with its next sequence number, and every peer records the highest sequence number
+ * it has seen from each peer in RN. The token carries, for each peer, the sequence number of
+ * its last granted request (LN) and a queue of peers with outstanding requests.
+ *
+ * An entry costs at most N messages (N-1 REQUESTs and the token), and none if the token is
+ * already held. Initially the peer at index 0 holds the token.
+ */
+public class SuzukiKasami extends Algorithm {
+    public String TAG = "Suzuki-Kasami";
+
+    /**
+     * The messages, as sent over the network. A REQUEST is followed by its sequence number,
+     * the token by LN and the queue (see {@link #writeToken}). The types are shared with
+     * {@link Raymond}, since only one algorithm runs at a time.
+     */
+    private static final int REQUEST = WireFormat.typeCode(Raymond.TOKEN_REQUESTED);
+    private static final int TOKEN = WireFormat.typeCode(Raymond.TOKEN_GRANTED);
+
+    /** Map from an {@link ITetrisPeer}'s ID to its index. */
+    private Map<String, Integer> peerIndexMap;
+
+    /** The index of this node. */
+    private int selfIndex;
+
+    /** RN[j] is the highest sequence number received in a REQUEST from peer j. */
+    private int[] RN;
+
+    /**
+     * LN[j] is the sequence number of peer j's last granted request. Only valid while
+     * this peer holds the token.
+     */
+    private int[] LN;
+
+    /** Peers waiting for the token, in order. Only valid while this peer holds the token. */
+    private ArrayDeque<Integer> tokenQueue;
+
+    private boolean hasToken;
+    private boolean requesting;
+
+
+    /**
+     * Initialises the algorithm for a given list of {@link ITetrisPeer}s.
+     *
+     * @param peers  the list of {@link ITetrisPeer}s in the network.
+     * @param self  the node this instance of {@link SuzukiKasami} is working for.
+     */
+    public SuzukiKasami(ArrayList<ITetrisPeer> peers, ITetrisPeer self) {
+        super(peers, self);
+
+        int numPeers = peers.size();
+        peerIndexMap = new HashMap<>(numPeers);
+
+        selfIndex = -1;
+        for (int i = 0; i < numPeers; i++) {
+            peerIndexMap.put(peers.get(i).getID(), i);
+
+            if (self.equals(peers.get(i))) {
+                selfIndex = i;
+            }
+        }
+
+        if (selfIndex == -1) {
+            throw new NullPointerException("Couldn't find 'self'-peer in the list of peers.");
+        }
+
+        RN = new int[numPeers];
+        LN = new int[numPeers];
+        tokenQueue = new ArrayDeque<>();
+        hasToken = selfIndex == 0;
+
+        Log.i(TAG, "Initial state--> ID: " + self.getID() + " has token: " + hasToken);
+    }
+
+
+    @Override
+    public synchronized void receiveMessage(ITetrisPeer sender, String msg) {
+        WireFormat.Reader in = new WireFormat.Reader(msg);
+        int type = in.readByte();
+
+        if (type == REQUEST) {
+            handleRequest(peerIndexMap.get(sender.getID()), in.readVarint());
+        } else if (type == TOKEN) {
+            readToken(in);
+            handleToken();
+        } else {
+            Log.e(TAG, "Unexpected message from " + sender.getID());
+        }
+    }
+
+    /**
+     * Records a REQUEST, and hands over the token if it is held but not in use.
+     *
+     * @param senderIndex  index of the requesting peer.
+     * @param sequence  the request's sequence number.
+     */
+    private synchronized void handleRequest(int senderIndex, int sequence) {
+        RN[senderIndex] = Math.max(RN[senderIndex], sequence);
+
+        if (hasToken && !requesting && RN[senderIndex] > LN[senderIndex]) {
+            sendToken(senderIndex);
+        }
+    }
+
+    /**
+     * Enters the Critical Section with the token just received, or passes it on if
+     * it is not needed anymore.
+     */
+    private synchronized void handleToken() {
+        hasToken = true;
+
+        if (requesting) {
+            critSectionMayBeObtained();
+        } else {
+            passToken();
+        }
+    }
+
+    @Override
+    synchronized boolean startObtainCritSection() {
+        requesting = true;
+
+        if (!hasToken) {
+            RN[selfIndex]++;
+
+            WireFormat.Writer out = new WireFormat.Writer(6);
+            out.writeByte(REQUEST);
+            out.writeVarint(RN[selfIndex]);
+            String request = out.toString();
+
+            for (int i = 0; i < peers.size(); i++) {
+                if (i != selfIndex) {
+                    peers.get(i).sendMessage(self, request);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    synchronized boolean holdsCritSection() {
+        return requesting && hasToken;
+    }
+
+    /**
+     * The broadcast REQUEST can not be taken back, so the token is passed on as soon as it
+     * arrives, see {@link #handleToken()}.
+     */
+    @Override
+    synchronized void cancelObtainCritSection() {
+        requesting = false;
+    }
+
+    @Override
+    public synchronized boolean obtainCritSection() {
+        startObtainCritSection();
+
+        try {
+            while (!hasToken) {
+                Log.i(TAG, "Sleeping while awaiting the token");
+                this.wait();
+            }
+        } catch (InterruptedException e) {
+            // Give up: pass the token on if it arrives after all.
+            requesting = false;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean releaseCritSection() {
+        if (!holdsCritSection()) {
+            Log.e(TAG, "Tried to release CS without holding it");
+            return false;
+        }
+
+        requesting = false;
+        passToken();
+
+        return true;
+    }
+
+    /**
+     * Marks this peer's request as granted, queues the peers with outstanding requests,
+     * and sends the token to the first of them, if any.
+     */
+    private synchronized void passToken() {
+        int numPeers = peers.size();
+        LN[selfIndex] = RN[selfIndex];
+
+        boolean[] queued = new boolean[numPeers];
+        for (int j : tokenQueue) {
+            queued[j] = true;
+        }
+
+        // Start after this peer, so no peer can be overtaken indefinitely.
+        for (int k = 1; k < numPeers; k++) {
+            int j = (selfIndex + k) % numPeers;
+            if (RN[j] > LN[j] && !queued[j]) {
+                tokenQueue.add(j);
+            }
+        }
+
+        if (!tokenQueue.isEmpty()) {
+            sendToken(tokenQueue.poll());
+        }
+    }
+
+    private synchronized void sendToken(int recipientIndex) {
+        WireFormat.Writer out = new WireFormat.Writer(8 + 2 * LN.length + tokenQueue.size());
+        out.writeByte(TOKEN);
+        writeToken(out);
+
+        hasToken = false;
+        peers.get(recipientIndex).sendMessage(self, out.toString());
+    }
+
+    /**
+     * Writes LN and the queue: the number of peers, each LN entry, the queue's length
+     * and each queued index, all as varints.
+     */
+    private void writeToken(WireFormat.Writer out) {
+        out.writeVarint(LN.length);
+        for (int ln : LN) {
+            out.writeVarint(ln);
+        }
+
+        out.writeVarint(tokenQueue.size());
+        for (int j : tokenQueue) {
+            out.writeVarint(j);
+        }
+    }
+
+    private void readToken(WireFormat.Reader in) {
+        int numPeers = in.readVarint();
+        if (numPeers != LN.length) {
+            throw new IllegalArgumentException("Token is for a group of " + numPeers + " peers");
+        }
+
+        for (int i = 0; i < numPeers; i++) {
+            LN[i] = in.readVarint();
+        }
+
+        int queued = in.readVarint();
+        tokenQueue.clear();
+        for (int i = 0; i < queued; i++) {
+            tokenQueue.add(in.readVarint());
+        }
+    }
+
+    /**
+     * Returns this peer while it holds the token, <i>null</i> otherwise.
+     */
+    @Override
+    public synchronized ITetrisPeer getCurrentCritSectPeer() {
+        return hasToken ? peers.get(selfIndex) : null;
+    }
+}
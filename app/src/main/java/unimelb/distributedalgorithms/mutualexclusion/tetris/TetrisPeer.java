@@ -2,8 +2,6 @@ package unimelb.distributedalgorithms.mutualexclusion.tetris;
 
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.game.PlayActivity;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.utils.Globals;
 
@@ -25,34 +23,50 @@ public final class TetrisPeer implements ITetrisPeer {
         return this.id;
     }
 
+    /**
+     * Queues the message, see {@link #sendMessageAsync}.
+     *
+     * @return <i>false</i> if the message could not even be queued, <i>true</i> otherwise.
+     */
     @Override
     public boolean sendMessage(String senderID, String msg) {
+        SendHandle handle = sendMessageAsync(senderID, msg);
+        return !handle.isDone() || handle.isSent();
+    }
 
-        try {
+    /**
+     * Queues the message for the {@link Globals#outbound} batcher, whose thread sends it.
+     */
+    @Override
+    public SendHandle sendMessageAsync(String senderID, String msg) {
 
-            JSONObject json = new JSONObject();
-            try {
-                json.put(PlayActivity.MESSAGE_SENDER_ID, senderID);
-                json.put(PlayActivity.MESSAGE_TYPE, PlayActivity.ALGORITHM_MESSAGE);
-                json.put(PlayActivity.MESSAGE_CONTENT, msg);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+        try {
 
-            printFormattedSendMessage(msg);
+            printFormattedSendMessage(senderID, msg);
 
-            Globals.peer.pingToPeer(id, json.toString());
+            return Globals.outbound.send(id, PlayActivity.ALGORITHM_MESSAGE, senderID, msg, isUrgent(msg));
 
         } catch (Exception e) {
             Log.e(TAG, "Failed to send message to " + id);
-            return false;
+            return SendHandle.completed(false);
         }
-        return true;
     }
 
 
 
 
+    /**
+     * Whether a peer may be waiting for a message to enter the Critical Section, the receiver
+     * or, for a RELINQUISH, the peers the receiver is keeping waiting, so it must not wait for
+     * other messages to be batched with it.
+     */
+    private static boolean isUrgent(String msg) {
+        String type = WireFormat.typeOf(msg);
+        return type.equals(AlgorithmMessage.REPLY) || type.equals(Raymond.TOKEN_GRANTED)
+                || type.equals(AlgorithmMessage.RELINQUISH);
+    }
+
+
     @Override
     public int compareTo(ITetrisPeer peer) {
         return getID().compareTo(peer.getID());
@@ -76,9 +90,10 @@ public final class TetrisPeer implements ITetrisPeer {
      * Helper that formats the messages sent between
      * the algorithms to a more readable format.
      *
+     * @param senderID  ID of the sending peer.
      * @param msg  message to format.
      */
-    private void printFormattedSendMessage(String msg){
+    private void printFormattedSendMessage(String senderID, String msg){
         //To print on the log the message sent by this pe
         String recipient = id.split("@")[0];
         String message = "";
@@ -86,22 +101,23 @@ public final class TetrisPeer implements ITetrisPeer {
 
         switch (PlayActivity.currentAlgo){
             case PlayActivity.LOGICALCLOCK_ALGO:
-                TimeStampMessage tm =TimeStampMessage.fromString(msg);
+                TimeStampMessage tm =TimeStampMessage.fromString(senderID, msg);
                 message = tm.getMessage();
-                timestamp = " " + Integer.toString(tm.getTimestamp());
+                timestamp = " " + tm.getTimestampString();
                 break;
             case PlayActivity.TOKEN_ALGO:
-                message = msg;
+            case PlayActivity.BROADCAST_TOKEN_ALGO:
+            case PlayActivity.DYNAMIC_TREE_ALGO:
+                message = WireFormat.typeOf(msg);
                 timestamp = "";
                 break;
             case PlayActivity.QUORUM_ALGO:
-                QuorumMessage qm =QuorumMessage.fromString(msg);
-                message = qm.getMessage();
-                timestamp = " " + qm.getTimestamp().getArrayString();
+                message = QuorumMessage.typeOf(msg);
+                timestamp = " " + QuorumMessage.timestampString(msg);
                 break;
         }
         String outMsg = "Sending " + message + " to " + recipient + timestamp;
-        PlayActivity.handler.obtainMessage(0, outMsg).sendToTarget();
+        PlayActivity.handler.obtainMessage(PlayActivity.LOG_MESSAGE, outMsg).sendToTarget();
 
     }
 
@@ -1,23 +1,27 @@
 package unimelb.distributedalgorithms.mutualexclusion.tetris;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 /**
  * message class for Ricart Agrawala algorithm
+ *
+ * Carries either a Lamport timestamp or a {@link HybridTimestamp}.
  */
 public final class TimeStampMessage {
-    private static final String SENDER_ID = "SenderID";
-    private static final String TIMESTAMP = "TimeStamp";
-    private static final String MESSAGE = "Message";
-
     private final String senderID;
     private final int timestamp;
+    private final HybridTimestamp hybridTimestamp;
     private final String message;
 
     TimeStampMessage(String senderID, int timestamp, String message) {
         this.senderID = senderID;
         this.timestamp = timestamp;
+        this.hybridTimestamp = null;
+        this.message = message;
+    }
+
+    TimeStampMessage(String senderID, HybridTimestamp timestamp, String message) {
+        this.senderID = senderID;
+        this.timestamp = 0;
+        this.hybridTimestamp = timestamp;
         this.message = message;
     }
 
@@ -29,39 +33,64 @@ public final class TimeStampMessage {
         return timestamp;
     }
 
+    /** @return the hybrid timestamp, or <i>null</i> if the message has a Lamport timestamp. */
+    public HybridTimestamp getHybridTimestamp() {
+        return hybridTimestamp;
+    }
+
+    /**
+     * Returns a human-readable representation of the timestamp, for logging.
+     */
+    public String getTimestampString() {
+        return hybridTimestamp != null ? hybridTimestamp.toString() : Integer.toString(timestamp);
+    }
+
     public String getMessage() {
         return message;
     }
 
-    public static TimeStampMessage fromString(String s) {
-        TimeStampMessage ret = null;
+    /**
+     * Decodes a message encoded by {@link #toString()}.
+     *
+     * @param senderID  ID of the {@link ITetrisPeer} the message was received from.
+     * @param s  the encoded message.
+     *
+     * @return the decoded {@link TimeStampMessage}.
+     */
+    public static TimeStampMessage fromString(String senderID, String s) {
+        WireFormat.Reader in = new WireFormat.Reader(s);
 
-        try {
-            JSONObject j = new JSONObject(s);
+        int type = in.readByte();
+        String msg = WireFormat.typeName(type & WireFormat.TYPE_MASK);
 
-            String sender = j.getString(SENDER_ID);
-            int ts = Integer.parseInt(j.getString(TIMESTAMP));
-            String msg = j.getString(MESSAGE);
-
-            ret = new TimeStampMessage(sender, ts, msg);
-        } catch (JSONException e) {
-            e.printStackTrace();
+        if ((type & WireFormat.HYBRID_TIMESTAMP) != 0) {
+            return new TimeStampMessage(senderID, HybridTimestamp.readFrom(in), msg);
         }
 
+        int ts = in.readVarint();
 
-        return ret;
+        return new TimeStampMessage(senderID, ts, msg);
     }
 
+    /**
+     * Encodes this message in the {@link WireFormat}: the message type as a single byte,
+     * followed by the timestamp as a varint. The sender is identified by the frame.
+     *
+     * @return the encoded message.
+     */
     public String toString() {
-        JSONObject j = new JSONObject();
-        try {
-            j.put(SENDER_ID, senderID);
-            j.put(TIMESTAMP, String.valueOf(timestamp));
-            j.put(MESSAGE, message);
-        } catch (JSONException e) {
-            e.printStackTrace();
+        if (hybridTimestamp != null) {
+            WireFormat.Writer out = new WireFormat.Writer(16);
+            out.writeByte(WireFormat.typeCode(message) | WireFormat.HYBRID_TIMESTAMP);
+            hybridTimestamp.writeTo(out);
+
+            return out.toString();
         }
 
-        return j.toString();
+        WireFormat.Writer out = new WireFormat.Writer(6);
+        out.writeByte(WireFormat.typeCode(message));
+        out.writeVarint(timestamp);
+
+        return out.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.BitSet;
+
+/**
+ * The quorums of a binary tree, as proposed by Agrawal and El Abbadi: a path from the root
+ * to a leaf, where a failed peer is replaced by paths through both its children.
+ *
+ * The tree implicitly exists in the sorted list of peers: the root is at index 0, and the
+ * children of the peer at index i are at indices 2*i + 1 and 2*i + 2.
+ *
+ * Besides the permissions, a "satisfied" flag is kept per subtree. A change to a peer only
+ * re-evaluates the subtrees on its path to the root, and stops as soon as a subtree's flag
+ * does not change, so an update costs O(log N) and checking for a quorum O(1).
+ */
+public final class TreeQuorum extends QuorumSystem {
+
+    /** Bit i is set if the subtree rooted at peer i has granted a quorum of itself. */
+    private final BitSet satisfied;
+
+    /**
+     * @param numPeers  number of peers in the tree, in the order of the sorted list of peers.
+     */
+    public TreeQuorum(int numPeers) {
+        super(numPeers);
+        satisfied = new BitSet(numPeers);
+    }
+
+    /**
+     * @return <i>true</i> if the granted permissions form a quorum of the whole tree.
+     */
+    @Override
+    boolean isObtained() {
+        return isSatisfied(0);
+    }
+
+    /**
+     * Computes, bottom up, the cost of the cheapest quorum of every subtree, and then follows
+     * the cheapest one from the root. Where both children are equally cheap, the path
+     * towards the given peer is chosen, so that requests are spread over the tree instead
+     * of all going down its leftmost path.
+     */
+    @Override
+    BitSet select(int selfIndex) {
+        long[] best = new long[numPeers];
+        for (int i = numPeers - 1; i >= 0; i--) {
+            best[i] = evaluateCost(i, best);
+        }
+
+        if (best[0] == UNREACHABLE) {
+            return null;
+        }
+
+        BitSet chosen = new BitSet(numPeers);
+        select(0, selfIndex, best, chosen);
+        return chosen;
+    }
+
+    private long subtreeCost(int i, long[] best) {
+        // Empty subtrees need no permission.
+        return i >= numPeers ? 0 : best[i];
+    }
+
+    /**
+     * Returns the cost of the cheapest quorum of the subtree rooted at peer i, following the
+     * same rules as {@link #evaluate}, given the costs of its children's subtrees.
+     */
+    private long evaluateCost(int i, long[] best) {
+        int leftChild = 2 * i + 1;
+        int rightChild = leftChild + 1;
+
+        if (failed.get(i)) {
+            if (leftChild >= numPeers) {
+                return UNREACHABLE;
+            }
+            return Math.max(subtreeCost(leftChild, best), subtreeCost(rightChild, best));
+        }
+
+        if (rightChild >= numPeers) {
+            return Math.max(costs[i], subtreeCost(leftChild, best));
+        }
+
+        return Math.max(costs[i], Math.min(subtreeCost(leftChild, best), subtreeCost(rightChild, best)));
+    }
+
+    /**
+     * Adds the cheapest quorum of the subtree rooted at peer i to the chosen peers.
+     */
+    private void select(int i, int selfIndex, long[] best, BitSet chosen) {
+        if (i >= numPeers) {
+            return;
+        }
+
+        int leftChild = 2 * i + 1;
+        int rightChild = leftChild + 1;
+
+        if (failed.get(i)) {
+            select(leftChild, selfIndex, best, chosen);
+            select(rightChild, selfIndex, best, chosen);
+            return;
+        }
+
+        chosen.set(i);
+
+        if (rightChild >= numPeers) {
+            select(leftChild, selfIndex, best, chosen);
+            return;
+        }
+
+        int first = isInSubtree(selfIndex, rightChild) ? rightChild : leftChild;
+        int second = first == leftChild ? rightChild : leftChild;
+
+        if (subtreeCost(first, best) <= subtreeCost(second, best)) {
+            select(first, selfIndex, best, chosen);
+        } else {
+            select(second, selfIndex, best, chosen);
+        }
+    }
+
+    private static boolean isInSubtree(int peerIndex, int root) {
+        while (peerIndex > root) {
+            peerIndex = (peerIndex - 1) / 2;
+        }
+        return peerIndex == root;
+    }
+
+    @Override
+    void changed(int peerIndex) {
+        update(peerIndex);
+    }
+
+    @Override
+    void cleared() {
+        // No subtree can be satisfied without any permission.
+        satisfied.clear();
+    }
+
+    private boolean isSatisfied(int peerIndex) {
+        // Empty subtrees need no permission.
+        return peerIndex >= numPeers || satisfied.get(peerIndex);
+    }
+
+    /**
+     * Re-evaluates the subtree of the given peer and each subtree above it, until one
+     * does not change.
+     */
+    private void update(int peerIndex) {
+        int i = peerIndex;
+
+        while (true) {
+            boolean value = evaluate(i);
+            if (value == satisfied.get(i)) {
+                return;
+            }
+
+            satisfied.set(i, value);
+            if (i == 0) {
+                return;
+            }
+            i = (i - 1) / 2;
+        }
+    }
+
+    private boolean evaluate(int i) {
+        int leftChild = 2 * i + 1;
+        int rightChild = leftChild + 1;
+
+        if (failed.get(i)) {
+            // A failed leaf can not be replaced.
+            return leftChild < numPeers && isSatisfied(leftChild) && isSatisfied(rightChild);
+        }
+
+        if (!granted.get(i)) {
+            return false;
+        }
+
+        if (rightChild < numPeers) {
+            return isSatisfied(leftChild) || isSatisfied(rightChild);
+        }
+
+        // If the node only has one child (incomplete tree), it must provide permission.
+        return isSatisfied(leftChild);
+    }
+}
@@ -1,49 +1,101 @@
 package unimelb.distributedalgorithms.mutualexclusion.tetris;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.Arrays;
 import java.util.InputMismatchException;
 
 /**
  * Models a vector clock as described in Lecture#2.
+ *
+ * All operations work on the primitive array directly and take the monitor once per call,
+ * not once per entry. Use {@link #snapshot()} to get an immutable {@link VectorTimestamp}
+ * to attach to a message.
+ *
+ * A clock can also be sent differentially (Singhal and Kshemkalyani): {@link #writeChangesTo}
+ * only sends the entries that changed since the last message to the same destination, and
+ * the receiving clock rebuilds the full timestamp with {@link #readChangesFrom}. This relies
+ * on every message being delivered, in order, on each channel.
+ *
  * Created by ANDRES on 16/05/2016.
  */
 public class VectorClock {
-    private static final String ARRAY_KEY = "Array";
-    private static final String ID_KEY = "ID";
-
     public static final int EQUAL = 0;
     public static final int GREATER_THAN = 1;
     public static final int LESS_THAN = 2;
     public static final int NOT_EQUAL = 3;
     public static final int NUM_TYPES = 4;
 
-    private int v[];
-    private int myId;
-    private int N;
+    /** Used to lock two clocks in a consistent order if their identity hashes collide. */
+    private static final Object TIE_LOCK = new Object();
+
+    private final int v[];
+    private final int myId;
+    private final int N;
+
+    /**
+     * State for differential transmission, allocated when first used. Every change to an
+     * entry is numbered; lastUpdate holds the number of the latest change to each entry,
+     * lastSent the number of the latest change when a message was last sent to each destination.
+     */
+    private int updates;
+    private int[] lastUpdate;
+    private int[] lastSent;
+
+    /** The last full timestamp rebuilt for each sender, see {@link #readChangesFrom}. */
+    private int[][] lastReceived;
 
     public VectorClock(int numProc, int id) {
         myId = id;
         N = numProc;
         v = new int[numProc];
-        for (int i = 0; i < N; i++) { v[i] = 0; }
         // v[myId] = 1;
     }
 
+    private VectorClock(int[] values, int id) {
+        myId = id;
+        N = values.length;
+        v = values;
+    }
+
     public synchronized void sendAction() {
         v[myId]++;
+        changed(myId);
     }
 
     /**
      * Update each value in the clock to the max value of each dimension.
      *
-     * @param timeStamp  received {@link VectorClock}.
+     * @param timeStamp  received {@link VectorTimestamp}.
      */
-    public synchronized void receiveAction(VectorClock timeStamp) {
+    public synchronized void receiveAction(VectorTimestamp timeStamp) {
+        if (timeStamp.size() != N) {
+            throw new InputMismatchException("Vector clock dimensions do not agree");
+        }
+
+        merge(timeStamp);
+    }
+
+    private void merge(VectorTimestamp timeStamp) {
+        int[] other = timeStamp.values();
+
+        if (lastUpdate == null) {
+            for (int i = 0; i < N; i++) {
+                v[i] = Math.max(v[i], other[i]);
+            }
+            return;
+        }
+
         for (int i = 0; i < N; i++) {
-            v[i] = java.lang.Math.max(this.getValue(i), timeStamp.getValue(i));
+            if (other[i] > v[i]) {
+                v[i] = other[i];
+                lastUpdate[i] = ++updates;
+            }
+        }
+    }
+
+    /** Records a change to entry i for differential transmission, if it is in use. */
+    private void changed(int i) {
+        if (lastUpdate != null) {
+            lastUpdate[i] = ++updates;
         }
     }
 
@@ -51,89 +103,209 @@ public class VectorClock {
         return v[i];
     }
 
+    /**
+     * Returns a human-readable representation of the clock's values, for logging.
+     */
     public synchronized String toString() {
-        JSONObject j;
-
-        j = new JSONObject();
-        try {
-            j.put(ARRAY_KEY, Arrays.toString(v));
-            j.put(ID_KEY, myId);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return j.toString();
+        return Arrays.toString(v);
     }
 
-    public String getArrayString() {
+    public synchronized String getArrayString() {
         return Arrays.toString(v);
     }
 
-    public static VectorClock fromString(String input) {
-        JSONObject j;
+    /**
+     * Writes this clock in the compact {@link WireFormat}, in the same format as
+     * {@link VectorTimestamp#writeTo}, without taking a snapshot first.
+     *
+     * @param out  the {@link WireFormat.Writer} to write to.
+     */
+    public synchronized void writeTo(WireFormat.Writer out) {
+        VectorTimestamp.write(out, v, myId);
+    }
 
-        VectorClock ret = null;
+    public int size() {
+        return N;
+    }
 
-        try {
-            j = new JSONObject(input);
-            String senderArray = j.getString(ARRAY_KEY);
-            int senderId = j.getInt(ID_KEY);
+    public synchronized void setValue(int index, int value) {
+        if (v[index] != value) {
+            v[index] = value;
+            changed(index);
+        }
+    }
 
-            String stripBrackets = senderArray.substring(1, senderArray.length() - 1);
-            String[] values = stripBrackets.split(", ");
+    /**
+     * Writes only the entries of this clock that changed since the last call for the same
+     * destination, as (index, value) pairs. If more than half of the entries changed, all
+     * values are written instead, which is smaller.
+     *
+     * Format: the owner's index, the number of entries in the clock, the number of pairs, and
+     * then each pair, with the index written as the gap to the previous index. If the number of
+     * pairs equals the number of entries, only the values follow. All varints.
+     *
+     * @param out  the {@link WireFormat.Writer} to write to.
+     * @param destination  index of the process the message is for.
+     */
+    public synchronized void writeChangesTo(WireFormat.Writer out, int destination) {
+        if (lastUpdate == null) {
+            // Changes before now were not tracked. Receivers start from all zeroes,
+            // so only the entries that are not zero need to be treated as changed.
+            lastUpdate = new int[N];
+            lastSent = new int[N];
+            updates = 1;
+            for (int i = 0; i < N; i++) {
+                if (v[i] != 0) {
+                    lastUpdate[i] = updates;
+                }
+            }
+        }
 
-            ret = new VectorClock(values.length, senderId);
-            for (int i = 0; i < ret.size(); i++) {
-                ret.setValue(i, Integer.valueOf(values[i]));
+        int since = lastSent[destination];
+        int count = 0;
+        for (int i = 0; i < N; i++) {
+            if (lastUpdate[i] > since) {
+                count++;
             }
-        } catch (JSONException e) {
-            e.printStackTrace();
         }
 
-        return ret;
-    }
+        out.writeVarint(myId);
+        out.writeVarint(N);
 
-    public int size() {
-        return v.length;
+        if (2 * count > N) {
+            out.writeVarint(N);
+            for (int value : v) {
+                out.writeVarint(value);
+            }
+        } else {
+            out.writeVarint(count);
+
+            int previous = -1;
+            for (int i = 0; i < N && count > 0; i++) {
+                if (lastUpdate[i] > since) {
+                    out.writeVarint(i - previous - 1);
+                    out.writeVarint(v[i]);
+                    previous = i;
+                    count--;
+                }
+            }
+        }
+
+        lastSent[destination] = updates;
     }
 
-    public synchronized void setValue(int index, int value) {
-        v[index] = value;
+    /**
+     * Makes the next call to {@link #writeChangesTo} for the given destination send every
+     * entry again, e.g. because the last message to it could not be sent.
+     *
+     * @param destination  index of the process the message was for.
+     */
+    public synchronized void resendAll(int destination) {
+        if (lastSent != null) {
+            lastSent[destination] = 0;
+        }
     }
 
-    public synchronized int compareTo(VectorClock other) {
-        if (this.size() != other.size()) {
+    /**
+     * Reads entries written by {@link #writeChangesTo} and applies them to the last timestamp
+     * received from the same sender. This clock itself is not changed.
+     *
+     * @param in  the {@link WireFormat.Reader} to read from.
+     *
+     * @return the sender's full timestamp.
+     */
+    public synchronized VectorTimestamp readChangesFrom(WireFormat.Reader in) {
+        int owner = in.readVarint();
+        int size = in.readVarint();
+        int count = in.readVarint();
+
+        if (size != N) {
             throw new InputMismatchException("Vector clock dimensions do not agree");
         }
+        if (owner >= N || count > N || count > in.remaining()) {
+            throw new IllegalArgumentException("Malformed vector clock");
+        }
 
-        Boolean[] result = new Boolean[NUM_TYPES];
-
-        for (int i = 0; i < result.length; i++) {
-            result[i] = true;
+        if (lastReceived == null) {
+            lastReceived = new int[N][];
+        }
+        if (lastReceived[owner] == null) {
+            lastReceived[owner] = new int[N];
         }
 
-        // Disqualify possible results by comparing each pair of values:
-        for (int i = 0; i < this.size(); i++) {
-            int v1 = getValue(i);
-            int v2 = other.getValue(i);
+        int[] known = lastReceived[owner];
 
-            if (v1 < v2) {
-                result[GREATER_THAN] = false;
-                result[EQUAL] = false;
-            } else if (v1 > v2) {
-                result[LESS_THAN] = false;
-                result[EQUAL] = false;
+        if (count == N) {
+            for (int i = 0; i < N; i++) {
+                known[i] = in.readVarint();
             }
+            return new VectorTimestamp(known.clone(), owner);
         }
 
-        // Return the first result that is still valid.
-        // Note that NOT_EQUAL will always be technically "valid", but will only
-        // be returned if the vector clocks are not EQUAL, LESS_THAN or GREATER_THAN
-        for (int i = 0; i < result.length; i++) {
-            if (result[i]) {
-                return i;
+        int index = -1;
+        for (int i = 0; i < count; i++) {
+            index += in.readVarint() + 1;
+            if (index < 0 || index >= N) {
+                throw new IllegalArgumentException("Malformed vector clock");
+            }
+            known[index] = in.readVarint();
+        }
+
+        return new VectorTimestamp(known.clone(), owner);
+    }
+
+    /**
+     * Compares this clock's current state to a timestamp.
+     *
+     * @param other  the {@link VectorTimestamp} to compare to.
+     *
+     * @return {@link #EQUAL}, {@link #LESS_THAN}, {@link #GREATER_THAN}
+     *  or {@link #NOT_EQUAL} (concurrent).
+     */
+    public synchronized int compareTo(VectorTimestamp other) {
+        return VectorTimestamp.compare(v, other.values());
+    }
+
+    /**
+     * Compares this clock's current state to another clock's current state.
+     *
+     * Both clocks are locked for the comparison, always in the same order, so two
+     * threads comparing the same clocks the other way around can not deadlock.
+     *
+     * @param other  the {@link VectorClock} to compare to.
+     *
+     * @return {@link #EQUAL}, {@link #LESS_THAN}, {@link #GREATER_THAN}
+     *  or {@link #NOT_EQUAL} (concurrent).
+     */
+    public int compareTo(VectorClock other) {
+        if (other == this) {
+            return EQUAL;
+        }
+
+        int thisHash = System.identityHashCode(this);
+        int otherHash = System.identityHashCode(other);
+
+        if (thisHash < otherHash) {
+            synchronized (this) {
+                synchronized (other) {
+                    return VectorTimestamp.compare(v, other.v);
+                }
+            }
+        } else if (thisHash > otherHash) {
+            synchronized (other) {
+                synchronized (this) {
+                    return VectorTimestamp.compare(v, other.v);
+                }
+            }
+        } else {
+            synchronized (TIE_LOCK) {
+                synchronized (this) {
+                    synchronized (other) {
+                        return VectorTimestamp.compare(v, other.v);
+                    }
+                }
             }
         }
-        return NOT_EQUAL;
     }
 
     /**
@@ -142,13 +314,16 @@ public class VectorClock {
      * @return an exact copy of this {@link VectorClock}'s current state.
      */
     public synchronized VectorClock copy() {
-        VectorClock ret = new VectorClock(size(), myId);
-
-        for (int i = 0; i < size(); i++) {
-            ret.setValue(i, getValue(i));
-        }
+        return new VectorClock(v.clone(), myId);
+    }
 
-        return ret;
+    /**
+     * Returns an immutable snapshot of this {@link VectorClock}'s current state.
+     *
+     * @return the current state as a {@link VectorTimestamp}.
+     */
+    public synchronized VectorTimestamp snapshot() {
+        return new VectorTimestamp(v.clone(), myId);
     }
 
 }
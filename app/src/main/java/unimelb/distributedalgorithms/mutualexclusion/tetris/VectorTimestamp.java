@@ -0,0 +1,153 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.Arrays;
+import java.util.InputMismatchException;
+
+/**
+ * An immutable snapshot of a {@link VectorClock}, as carried by a {@link QuorumMessage}.
+ *
+ * Since the values can not change, comparisons need no locking and the values
+ * can be read straight from the array.
+ */
+public final class VectorTimestamp {
+
+    private final int[] v;
+    private final int ownerId;
+
+    /** Sum of all entries, see {@link #sum}. */
+    private final long sum;
+
+    /**
+     * Takes ownership of the given array; callers must not modify it afterwards.
+     */
+    VectorTimestamp(int[] values, int ownerId) {
+        this.v = values;
+        this.ownerId = ownerId;
+
+        long total = 0;
+        for (int value : values) {
+            total += value;
+        }
+        this.sum = total;
+    }
+
+    public int getValue(int i) {
+        return v[i];
+    }
+
+    /** Direct access to the values for {@link VectorClock}; must not be modified. */
+    int[] values() {
+        return v;
+    }
+
+    /** @return the index of the process whose clock this is a snapshot of. */
+    public int getOwnerId() {
+        return ownerId;
+    }
+
+    public int size() {
+        return v.length;
+    }
+
+    /**
+     * @return the sum of all entries. If this timestamp happened before another one, its
+     *         sum is smaller, so ordering by the sum extends the causal order to a total one.
+     */
+    public long sum() {
+        return sum;
+    }
+
+    /**
+     * Compares this timestamp to another one.
+     *
+     * @param other  the {@link VectorTimestamp} to compare to.
+     *
+     * @return {@link VectorClock#EQUAL}, {@link VectorClock#LESS_THAN},
+     *  {@link VectorClock#GREATER_THAN} or {@link VectorClock#NOT_EQUAL} (concurrent).
+     */
+    public int compareTo(VectorTimestamp other) {
+        return compare(v, other.v);
+    }
+
+    /**
+     * Compares two vectors of clock values in a single pass.
+     *
+     * Each entry sets a "less" and/or "greater" bit; the constants in {@link VectorClock}
+     * are chosen so that (less << 1 | greater) is the result. Clock values are never
+     * negative, so the subtractions can not overflow.
+     */
+    static int compare(int[] a, int[] b) {
+        int n = a.length;
+        if (n != b.length) {
+            throw new InputMismatchException("Vector clock dimensions do not agree");
+        }
+
+        int less = 0;
+        int greater = 0;
+
+        for (int i = 0; i < n; i++) {
+            less |= (a[i] - b[i]) >>> 31;
+            greater |= (b[i] - a[i]) >>> 31;
+
+            if ((less & greater) != 0) {
+                // Concurrent; the remaining entries can not change that.
+                break;
+            }
+        }
+
+        return (less << 1) | greater;
+    }
+
+    /**
+     * Writes this timestamp in the compact {@link WireFormat}: the owner's index, the
+     * number of entries, and then each entry, all as varints.
+     *
+     * @param out  the {@link WireFormat.Writer} to write to.
+     */
+    public void writeTo(WireFormat.Writer out) {
+        write(out, v, ownerId);
+    }
+
+    static void write(WireFormat.Writer out, int[] values, int ownerId) {
+        out.writeVarint(ownerId);
+        out.writeVarint(values.length);
+        for (int value : values) {
+            out.writeVarint(value);
+        }
+    }
+
+    /**
+     * Reads a timestamp written by {@link #writeTo} or {@link VectorClock#writeTo}.
+     *
+     * @param in  the {@link WireFormat.Reader} to read from.
+     *
+     * @return the {@link VectorTimestamp} read.
+     */
+    public static VectorTimestamp readFrom(WireFormat.Reader in) {
+        int id = in.readVarint();
+        int size = in.readVarint();
+
+        if (size > in.remaining()) {
+            throw new IllegalArgumentException("Truncated vector clock");
+        }
+
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = in.readVarint();
+        }
+
+        return new VectorTimestamp(values, id);
+    }
+
+    public String getArrayString() {
+        return Arrays.toString(v);
+    }
+
+    /**
+     * Returns a human-readable representation of the values, for logging.
+     */
+    @Override
+    public String toString() {
+        return getArrayString();
+    }
+}
@@ -0,0 +1,367 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding for the messages exchanged between peers.
+ *
+ * Encoded data is carried in a {@link String} with one byte per character (all characters
+ * are in the range 0-255), so it can be passed through {@link ITetrisPeer#sendMessage} and
+ * {@link IAlgorithm#receiveMessage} unchanged. Integers are written as unsigned LEB128 varints,
+ * message types as a single byte.
+ *
+ * A frame, as sent between two devices, looks like:
+ * <pre>
+ *     [version] [frame type] [sender] [payload...]
+ * </pre>
+ * where the sender is written as a varint handle from a {@link PeerHandles} table.
+ */
+public final class WireFormat {
+
+    /** Version of the frame layout. Frames with a different version are dropped. */
+    public static final int VERSION = 1;
+
+    /**
+     * Message types in the order of their codes. Do not reorder: the index of a type
+     * is what is sent over the network.
+     */
+    private static final String[] TYPES = {
+            AlgorithmMessage.REQUEST,
+            AlgorithmMessage.REPLY,
+            AlgorithmMessage.RELINQUISH,
+            AlgorithmMessage.INQUIRE,
+            AlgorithmMessage.YIELD,
+            AlgorithmMessage.NODE_FAILURE,
+            Raymond.TOKEN_REQUESTED,
+            Raymond.TOKEN_GRANTED,
+    };
+
+    /**
+     * The type byte of a message may carry flags in its high bits, describing how the rest of
+     * the message is encoded. The type code itself is in the low bits.
+     */
+    public static final int TYPE_MASK = 0x3F;
+
+    /** Flag: the message carries a {@link HybridTimestamp}. */
+    public static final int HYBRID_TIMESTAMP = 0x40;
+
+    /** Flag: the message carries only the changed entries of a {@link VectorClock}. */
+    public static final int CHANGES_ONLY = 0x80;
+
+    /** Pre-encoded single-byte messages, for messages that only consist of a type. */
+    private static final String[] TYPE_MESSAGES = new String[TYPES.length];
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            TYPE_MESSAGES[i] = String.valueOf((char) i);
+        }
+    }
+
+    private WireFormat() {
+    }
+
+    /**
+     * Returns the code a message type is sent as.
+     *
+     * @param type  one of the {@link AlgorithmMessage} types or Raymond's token messages.
+     *
+     * @return the code for {@param type}.
+     */
+    public static int typeCode(String type) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown message type: " + type);
+    }
+
+    /**
+     * Returns the message type sent as the given code.
+     *
+     * @param code  code read from the network.
+     *
+     * @return the message type (one of the constants in {@link AlgorithmMessage}, or Raymond's).
+     */
+    public static String typeName(int code) {
+        if (code < 0 || code >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown message type code: " + code);
+        }
+
+        return TYPES[code];
+    }
+
+    /**
+     * Returns the type of an encoded message, ignoring any flags and the rest of the message.
+     *
+     * @param msg  the encoded message.
+     *
+     * @return the message type.
+     */
+    public static String typeOf(String msg) {
+        if (msg.isEmpty()) {
+            throw new IllegalArgumentException("Empty message");
+        }
+
+        return typeName(msg.charAt(0) & TYPE_MASK);
+    }
+
+    /**
+     * Encodes a message which consists only of its type.
+     *
+     * @param type  the message type.
+     *
+     * @return the encoded message.
+     */
+    public static String encodeType(String type) {
+        return TYPE_MESSAGES[typeCode(type)];
+    }
+
+    /**
+     * Decodes a message which consists only of its type.
+     *
+     * @param msg  message encoded by {@link #encodeType}.
+     *
+     * @return the message type.
+     */
+    public static String decodeType(String msg) {
+        if (msg.length() != 1) {
+            throw new IllegalArgumentException("Not a type-only message");
+        }
+
+        return typeName(msg.charAt(0));
+    }
+
+    /**
+     * Converts encoded data to bytes, e.g. to hand it to a byte-oriented transport.
+     */
+    public static byte[] toBytes(String data) {
+        int length = data.length();
+        byte[] ret = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            ret[i] = (byte) data.charAt(i);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Converts bytes back to encoded data, the inverse of {@link #toBytes}.
+     */
+    public static String fromBytes(byte[] data) {
+        char[] chars = new char[data.length];
+
+        for (int i = 0; i < data.length; i++) {
+            chars[i] = (char) (data[i] & 0xFF);
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Starts a frame with the header for the given frame type and sender.
+     *
+     * @param frameType  type of the frame, e.g. game or algorithm message.
+     * @param senderID  ID of the sending peer.
+     * @param handles  table to look up the sender's handle in.
+     *
+     * @return a {@link Writer} positioned at the start of the payload.
+     */
+    public static Writer frame(int frameType, String senderID, PeerHandles handles) {
+        Writer out = new Writer(16);
+        out.writeByte(VERSION);
+        out.writeByte(frameType);
+        out.writeID(senderID, handles);
+        return out;
+    }
+
+
+    /**
+     * Builds encoded data.
+     */
+    public static final class Writer {
+        private char[] buf;
+        private int size;
+
+        public Writer() {
+            this(32);
+        }
+
+        public Writer(int capacity) {
+            buf = new char[Math.max(capacity, 1)];
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+
+        public void writeByte(int b) {
+            ensureCapacity(1);
+            buf[size++] = (char) (b & 0xFF);
+        }
+
+        /** Writes an integer as an unsigned varint (1 byte below 128, at most 5 bytes). */
+        public void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                buf[size++] = (char) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (char) value;
+        }
+
+        /** Writes a long as an unsigned varint (at most 10 bytes). */
+        public void writeVarlong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[size++] = (char) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (char) value;
+        }
+
+        /** Writes a string as its length followed by its UTF-16 code units as varints. */
+        public void writeString(String s) {
+            int length = s.length();
+            writeVarint(length);
+            for (int i = 0; i < length; i++) {
+                writeVarint(s.charAt(i));
+            }
+        }
+
+        /**
+         * Writes a peer ID as its handle. IDs without a handle are written in full, so
+         * peers that are not in the table can still be addressed.
+         */
+        public void writeID(String id, PeerHandles handles) {
+            int handle = handles == null ? PeerHandles.NO_HANDLE : handles.handleOf(id);
+
+            if (handle == PeerHandles.NO_HANDLE) {
+                writeVarint(0);
+                writeString(id);
+            } else {
+                writeVarint(handle + 1);
+            }
+        }
+
+        /** Appends data that has already been encoded, e.g. a message payload. */
+        public void writeEncoded(String data) {
+            int length = data.length();
+            ensureCapacity(length);
+            data.getChars(0, length, buf, size);
+            size += length;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** @return the encoded data. */
+        @Override
+        public String toString() {
+            return new String(buf, 0, size);
+        }
+    }
+
+
+    /**
+     * Reads encoded data. Reading past the end throws an {@link IllegalArgumentException}.
+     */
+    public static final class Reader {
+        private final String data;
+        private int pos;
+
+        public Reader(String data) {
+            this.data = data;
+        }
+
+        public int readByte() {
+            if (pos >= data.length()) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+            return data.charAt(pos++) & 0xFF;
+        }
+
+        public int readVarint() {
+            int value = 0;
+
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        public long readVarlong() {
+            long value = 0;
+
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        public String readString() {
+            int length = readVarint();
+            if (length > remaining()) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) readVarint();
+            }
+            return new String(chars);
+        }
+
+        /** Reads a peer ID written by {@link Writer#writeID}. */
+        public String readID(PeerHandles handles) {
+            int handle = readVarint();
+
+            if (handle == 0) {
+                return readString();
+            }
+
+            String id = handles == null ? null : handles.idOf(handle - 1);
+            if (id == null) {
+                throw new IllegalArgumentException("Unknown peer handle: " + (handle - 1));
+            }
+            return id;
+        }
+
+        /** Reads the given number of bytes appended by {@link Writer#writeEncoded}. */
+        public String readEncoded(int length) {
+            if (length < 0 || length > remaining()) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+
+            String ret = data.substring(pos, pos + length);
+            pos += length;
+            return ret;
+        }
+
+        /** @return the data that has not been read yet, e.g. a message payload. */
+        public String readRemaining() {
+            String ret = data.substring(pos);
+            pos = data.length();
+            return ret;
+        }
+
+        public int remaining() {
+            return data.length() - pos;
+        }
+    }
+}
@@ -16,21 +16,35 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import unimelb.distributedalgorithms.mutualexclusion.tetris.AgrawalElAbbadi;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.Algorithm;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.AlgorithmDispatcher;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.CritSectLease;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.HybridLogicalClock;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.IMulticast;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.ITetrisPeer;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.MainActivity;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.MoveSequencer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.NaimiTrehel;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.OutboundBatcher;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.PeerHandles;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.QuorumMessage;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.R;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.Raymond;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.RelayBroadcast;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.RicartAgrawala;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.SuzukiKasami;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.TetrisPeer;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.TimeStampMessage;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.WireFormat;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.FrameReceiver;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.NioTransport;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.ReliableLink;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.utils.Globals;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.utils.Utils;
 
@@ -38,23 +52,37 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
 {
     private String TAG = "PlayActivity";
 
-    public static final String MESSAGE_CONTENT = "CONTENT";
-    public static final String MESSAGE_TYPE = "TYPE";
-    public static final String MESSAGE_SENDER_ID = "MESSAGE";
-
     private static final String MOVE_RIGHT = "MOVE RIGHT";
     private static final String MOVE_LEFT = "MOVE LEFT";
     private static final String MOVE_DOWN = "MOVE DOWN";
     private static final String ROTATE = "ROTATE";
 
+    /** Game moves in the order of the codes they are sent as. */
+    private static final String[] GAME_MOVES = {MOVE_RIGHT, MOVE_LEFT, MOVE_DOWN, ROTATE};
+
 
     private static final String YELLOW_LIGHT = "YELLOW";
     private static final String RED_LIGHT = "RED";
     private static final String GREEN_LIGHT = "GREEN";
 
 
+    //Frame types (see WireFormat)
     private final static int GAME_MESSAGE = 0;
     public final static int ALGORITHM_MESSAGE = 1;
+    public final static int BATCH_MESSAGE = 2; //several frames to the same peer, see OutboundBatcher
+    public final static int RELIABLE_MESSAGE = 3; //a frame with its sequence number, see ReliableLink
+    public final static int ACK_MESSAGE = 4; //acknowledges reliable frames, see ReliableLink
+    public final static int RELAY_MESSAGE = 5; //a message to relay to other peers, see RelayBroadcast
+
+    //longest time in ms a message waits to be batched with others to the same peer
+    private final static long BATCH_WINDOW = 5;
+
+    //most peers a message sent to many peers is sent or relayed to by each peer
+    private final static int RELAY_FANOUT = 3;
+
+    //what-values of the messages posted to the handler
+    public final static int LOG_MESSAGE = 0; //text to add to the log
+    public final static int MOVE_MESSAGE = 1; //game move received from a peer
 
     private Tetromino mCurBlock;
     private Tetromino mNextBlock;
@@ -90,6 +118,9 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
 
     private Algorithm mutualExclusionAlgo;
 
+    /** Decodes the frames received from peers and runs the algorithm, off the UI thread. */
+    private AlgorithmDispatcher algorithmDispatcher;
+
     private ArrayList<ITetrisPeer> mutualExclusionPeers;
 
     private ITetrisPeer mutualExclusionSelf;
@@ -97,11 +128,14 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
     private Object mutualExclusionStateLock;
     private boolean mutualExclusionRequested;
     private boolean criticalSectionObtained;
+    private CritSectLease criticalSectionLease;
 
 
     public final static String LOGICALCLOCK_ALGO="Ricart-Agrawala algorithm";
     public final static String TOKEN_ALGO="Raymond’s algorithm";
     public final static String QUORUM_ALGO="Agrawal-El Abbadi algorithm";
+    public final static String BROADCAST_TOKEN_ALGO="Suzuki-Kasami algorithm";
+    public final static String DYNAMIC_TREE_ALGO="Naimi-Trehel algorithm";
 
     public static String currentAlgo;
 
@@ -163,12 +197,44 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
 
 
         //Identify myself and my peers
-        Globals.peer.setPeerActivity(this);
-
         mutualExclusionSelf = new TetrisPeer(Globals.peer.getAddressPeer());
         Log.i(TAG, "self: " + mutualExclusionSelf.toString());
 
         ArrayList<String> gamePeers = Globals.peer.getPeerList();
+        Globals.peerHandles = new PeerHandles(gamePeers);
+        OutboundBatcher.Link networkLink = new OutboundBatcher.Link() {
+            @Override
+            public void send(String recipientID, String frame) {
+                if (Globals.transport != null) {
+                    Globals.transport.send(recipientID, frame);
+                } else {
+                    Globals.peer.pingToPeer(recipientID, Utils.encodeFrame(frame));
+                }
+            }
+        };
+        //neither SIP nor UDP deliver every frame, so lost frames are sent again
+        Globals.reliable = new ReliableLink(networkLink, Globals.peerHandles, mutualExclusionSelf.getID(),
+                RELIABLE_MESSAGE, ACK_MESSAGE, new FrameReceiver() {
+                    @Override
+                    public void receive(String frame) {
+                        handleDeliveredFrame(frame);
+                    }
+                });
+        Globals.outbound = new OutboundBatcher(Globals.reliable, Globals.peerHandles, BATCH_MESSAGE, BATCH_WINDOW);
+        Globals.relay = new RelayBroadcast(Globals.outbound, Globals.peerHandles, RELAY_MESSAGE, RELAY_FANOUT);
+        Globals.moves = new MoveSequencer(Globals.outbound, Globals.relay, Globals.peerHandles, GAME_MESSAGE,
+                mutualExclusionSelf.getID(), gamePeers, new MoveSequencer.Listener() {
+                    @Override
+                    public void onMove(String holderID, int move) {
+                        if (move >= GAME_MOVES.length) {
+                            Log.e(TAG, "Dropped unknown move " + move + " from " + holderID);
+                            return;
+                        }
+                        String readMessage = GAME_MOVES[move];
+                        writeAlgoLog("Received from " + holderID.split("@")[0] + ": " + readMessage);
+                        handler.obtainMessage(MOVE_MESSAGE, readMessage).sendToTarget();
+                    }
+                });
         mutualExclusionPeers = new ArrayList<>();
 
         for (String p : gamePeers) {
@@ -180,7 +246,19 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
 
         switch (algorithm){
             case LOGICALCLOCK_ALGO:
-                mutualExclusionAlgo = new RicartAgrawala(mutualExclusionPeers,mutualExclusionSelf);
+                RicartAgrawala ricartAgrawala = new RicartAgrawala(mutualExclusionPeers, mutualExclusionSelf);
+                ricartAgrawala.useMulticast(new IMulticast() {
+                    @Override
+                    public void sendMessage(String senderID, List<ITetrisPeer> recipients, String msg) {
+                        ArrayList<String> recipientIDs = new ArrayList<>(recipients.size());
+                        for (ITetrisPeer recipient : recipients) {
+                            recipientIDs.add(recipient.getID());
+                        }
+                        Globals.relay.broadcast(recipientIDs, ALGORITHM_MESSAGE, senderID, msg,
+                                OutboundBatcher.Lane.ALGORITHM);
+                    }
+                });
+                mutualExclusionAlgo = ricartAgrawala;
                 break;
             case TOKEN_ALGO:
                 mutualExclusionAlgo = new Raymond(mutualExclusionPeers, mutualExclusionSelf);
@@ -190,7 +268,23 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
                 }
                 break;
             case QUORUM_ALGO:
-                mutualExclusionAlgo = new AgrawalElAbbadi(mutualExclusionPeers, mutualExclusionSelf);
+                AgrawalElAbbadi agrawalElAbbadi = new AgrawalElAbbadi(mutualExclusionPeers, mutualExclusionSelf);
+                agrawalElAbbadi.useLatencyAwareQuorums(HybridLogicalClock.SYSTEM_TIME);
+                mutualExclusionAlgo = agrawalElAbbadi;
+                break;
+            case BROADCAST_TOKEN_ALGO:
+                mutualExclusionAlgo = new SuzukiKasami(mutualExclusionPeers, mutualExclusionSelf);
+                if (mutualExclusionAlgo.getCurrentCritSectPeer() != null){
+                    ivCSindicator.setImageResource(R.drawable.color_label_circle_green);
+                    criticalSectionObtained = true;
+                }
+                break;
+            case DYNAMIC_TREE_ALGO:
+                mutualExclusionAlgo = new NaimiTrehel(mutualExclusionPeers, mutualExclusionSelf);
+                if (mutualExclusionAlgo.getCurrentCritSectPeer() != null){
+                    ivCSindicator.setImageResource(R.drawable.color_label_circle_green);
+                    criticalSectionObtained = true;
+                }
                 break;
         }
 
@@ -198,69 +292,33 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
         mutualExclusionStateLock = new Object();
 
 
-        //to receive the messages from peers
-        handler = new Handler() {
-            public void handleMessage(android.os.Message msg) {
-                String jsonString = msg.obj.toString();
-                JSONObject jsonObj;
-                try {
-                    jsonObj = new JSONObject(jsonString);
-                    ITetrisPeer messageSender = TetrisPeer.fromString((String) jsonObj.get(MESSAGE_SENDER_ID));
-                    String readMessage = (String) jsonObj.get(MESSAGE_CONTENT);
-                    int messageType = (int) jsonObj.get(MESSAGE_TYPE);
-
-
-                    switch (messageType) {
-                        case GAME_MESSAGE:
-                            String message_sender = messageSender.toString().split("@")[0];
-                            writeAlgoLog("Received from " + message_sender+ ": "+ readMessage);
-                            handleGameMessage(readMessage);
-                            break;
-
-                        case ALGORITHM_MESSAGE:
-                            handleAlgorithmMessage(messageSender, readMessage);
-                            break;
-                    }
-
-                } catch (JSONException e) {
-                    //e.printStackTrace();
+        algorithmDispatcher = new AlgorithmDispatcher(mutualExclusionAlgo);
 
-                    //In case the message was sent from myself just to print out in the log
-                    writeAlgoLog(msg.obj.toString());
-                }
+        //Send the frames straight over UDP/TCP if selected, see Globals.TRANSPORT
+        if (Globals.TRANSPORT != null) {
+            try {
+                Globals.transport = new NioTransport(Globals.TRANSPORT, Globals.peer.getAddressPeer(),
+                        Globals.TRANSPORT_PORT_OFFSET, new FrameReceiver() {
+                            @Override
+                            public void receive(String frame) {
+                                receiveRawFrame(frame);
+                            }
+                        });
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Failed to start the " + Globals.TRANSPORT + " transport, using SIP: " + e);
             }
+        }
 
-            private void handleAlgorithmMessage(ITetrisPeer sender, String msg) {
-                String message = "";
-                String senderID = "";
-                String vectorClock = "";
-                int timeStamp;
-
-                switch (algorithm){
-                    case LOGICALCLOCK_ALGO:
-                        TimeStampMessage ts = TimeStampMessage.fromString(msg);
-                        timeStamp = ts.getTimestamp();
-                        senderID = ts.getSenderID().split("@")[0];
-                        message = ts.getMessage();
-                        writeAlgoLog("Received " + message + " from " + senderID + " " + timeStamp);
-                        break;
-                    case TOKEN_ALGO:
-                        message = msg;
-                        writeAlgoLog("Received " + message + " from " + sender.getID().split("@")[0]);
-                        break;
-                    case QUORUM_ALGO:
-                        QuorumMessage qm = QuorumMessage.fromString(msg);
-                        vectorClock = qm.getTimestamp().getArrayString();
-                        senderID = qm.getSenderID().split("@")[0];
-                        message = qm.getMessage();
-                        writeAlgoLog("Received " + message + " from " + senderID + " " + vectorClock);
-                        break;
 
+        //to apply the game moves received from peers, see receiveFrame()
+        handler = new Handler() {
+            public void handleMessage(android.os.Message msg) {
+                if (msg.what == MOVE_MESSAGE) {
+                    handleGameMessage(msg.obj.toString());
+                } else {
+                    //In case the message was sent from myself just to print out in the log
+                    writeAlgoLog(msg.obj.toString());
                 }
-
-                mutualExclusionAlgo.receiveMessage(sender, msg);
-
-
             }
 
             private void handleGameMessage(String msg) {
@@ -288,6 +346,127 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
             }
         };
 
+        //Receive frames over SIP only now that everything handling them has been set up
+        Globals.peer.setPeerActivity(this);
+
+    }
+
+
+    /**
+     * Called by the peer for every frame received from another peer, on the thread the
+     * frame arrived on. The frame is decoded on the dispatch thread, where algorithm
+     * messages are handled as well; only game moves are passed on to the UI thread.
+     * The messages sent while handling the frame are sent once it has been handled,
+     * batched per peer.
+     *
+     * @param encodedFrame  the frame as sent over the network.
+     */
+    public void receiveFrame(final String encodedFrame) {
+        algorithmDispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                handleFrame(encodedFrame, true);
+            }
+        });
+    }
+
+    /**
+     * Receives a frame from the UDP/TCP transport, which carries frames as they are.
+     */
+    public void receiveRawFrame(final String rawFrame) {
+        algorithmDispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                handleFrame(rawFrame, false);
+            }
+        });
+    }
+
+    private void handleFrame(String data, boolean encoded) {
+        try {
+            Globals.reliable.receive(encoded ? Utils.decodeFrame(data) : data);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            Log.e(TAG, "Dropped malformed frame: " + e.getMessage());
+        }
+
+        Globals.outbound.flush();
+    }
+
+    /**
+     * Handles a frame passed on by the reliable link, in the order it was sent.
+     */
+    private void handleDeliveredFrame(String data) {
+        WireFormat.Reader frame = new WireFormat.Reader(data);
+
+        int version = frame.readByte();
+        if (version != WireFormat.VERSION) {
+            Log.e(TAG, "Dropped frame with unsupported version " + version);
+            return;
+        }
+
+        int messageType = frame.readByte();
+        ITetrisPeer messageSender = TetrisPeer.fromString(frame.readID(Globals.peerHandles));
+
+        if (messageType == BATCH_MESSAGE) {
+            int count = frame.readVarint();
+            for (int i = 0; i < count; i++) {
+                int batchedType = frame.readByte();
+                String payload = frame.readEncoded(frame.readVarint());
+                handleFramePayload(batchedType, messageSender, new WireFormat.Reader(payload));
+            }
+        } else {
+            handleFramePayload(messageType, messageSender, frame);
+        }
+    }
+
+    private void handleFramePayload(int messageType, ITetrisPeer messageSender, WireFormat.Reader frame) {
+        switch (messageType) {
+            case GAME_MESSAGE:
+                Globals.moves.receive(messageSender.getID(), frame);
+                break;
+
+            case ALGORITHM_MESSAGE:
+                handleAlgorithmMessage(messageSender, frame.readRemaining());
+                break;
+
+            case RELAY_MESSAGE:
+                WireFormat.Reader relayed = Globals.relay.relay(messageSender.getID(), frame);
+                handleFramePayload(relayed.readByte(), messageSender, relayed);
+                break;
+        }
+    }
+
+    private void handleAlgorithmMessage(ITetrisPeer sender, String msg) {
+        String message = "";
+        String senderID = "";
+        String vectorClock = "";
+        String timeStamp;
+
+        switch (algorithm){
+            case LOGICALCLOCK_ALGO:
+                TimeStampMessage ts = TimeStampMessage.fromString(sender.getID(), msg);
+                timeStamp = ts.getTimestampString();
+                senderID = ts.getSenderID().split("@")[0];
+                message = ts.getMessage();
+                writeAlgoLog("Received " + message + " from " + senderID + " " + timeStamp);
+                break;
+            case TOKEN_ALGO:
+            case BROADCAST_TOKEN_ALGO:
+            case DYNAMIC_TREE_ALGO:
+                message = WireFormat.typeOf(msg);
+                writeAlgoLog("Received " + message + " from " + sender.getID().split("@")[0]);
+                break;
+            case QUORUM_ALGO:
+                vectorClock = QuorumMessage.timestampString(msg);
+                senderID = sender.getID().split("@")[0];
+                message = QuorumMessage.typeOf(msg);
+                writeAlgoLog("Received " + message + " from " + senderID + " " + vectorClock);
+                break;
+
+        }
+
+        // Already on the dispatch thread, in the order the frames were received.
+        mutualExclusionAlgo.receiveMessage(sender, msg);
     }
 
 
@@ -308,6 +487,30 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
     }
 
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        algorithmDispatcher.shutdown();
+        Globals.moves.shutdown();
+        Globals.outbound.shutdown();
+        Globals.reliable.shutdown();
+
+        for (OutboundBatcher.Lane lane : OutboundBatcher.Lane.values()) {
+            Log.i(TAG, lane + " messages: " + Globals.outbound.sentMessages(lane) + " sent, "
+                    + Globals.outbound.droppedMessages(lane) + " dropped, at most "
+                    + Globals.outbound.maxQueueDepth(lane) + " queued per peer, waited "
+                    + String.format("%.1f", Globals.outbound.averageWaitMillis(lane)) + " ms on average, "
+                    + String.format("%.1f", Globals.outbound.maxWaitMillis(lane)) + " ms at most");
+        }
+
+        if (Globals.transport != null) {
+            Globals.transport.close();
+            Globals.transport = null;
+        }
+    }
+
+
     @Override
     public void onBackPressed() {
         super.onBackPressed();
@@ -540,16 +743,7 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
                     Log.i(TAG, gameMsgToSend);
                     writeAlgoLog(gameMsgToSend);
 
-                    JSONObject json = new JSONObject();
-                    try {
-                        json.put(MESSAGE_SENDER_ID, mutualExclusionSelf.toString());
-                        json.put(MESSAGE_TYPE, GAME_MESSAGE);
-                        json.put(MESSAGE_CONTENT, gameMsgToSend);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-
-                    Utils.sendGameMsg(json.toString());
+                    Globals.moves.sendMove(Arrays.asList(GAME_MOVES).indexOf(gameMsgToSend));
 
                 }
             }
@@ -609,52 +803,92 @@ public class PlayActivity extends Activity implements Runnable, Handler.Callback
                 setLightIndicator(YELLOW_LIGHT);
                 mutualExclusionRequested = true;
 
-                // Obtain Critical Section in a new thread, since this operation is blocking.
-                Thread obtainCS = new Thread() {
-                    public void run() {
-                        boolean success = mutualExclusionAlgo.obtainCritSection();
-
-                        synchronized (mutualExclusionStateLock) {
-                            if (success) {
-                                setLightIndicator(GREEN_LIGHT);
-                                writeAlgoLog("CS access obtained");
-                                criticalSectionObtained = true;
-                            } else {
-                                setLightIndicator(RED_LIGHT);
-                                writeAlgoLog("CS access request denied");
-                                mutualExclusionRequested = false;
-                            }
-                        }
+                // The outcome is reported on the thread delivering the messages, while the
+                // algorithm is locked, so the state is updated on the UI thread instead: taking
+                // mutualExclusionStateLock there could deadlock with releaseCS().
+                criticalSectionLease = mutualExclusionAlgo.requestCritSection();
+                criticalSectionLease.setListener(new CritSectLease.Listener() {
+                    @Override
+                    public void onGranted(CritSectLease lease) {
+                        onCritSectRequestDone(lease, true);
                     }
-                };
 
-                obtainCS.start();
+                    @Override
+                    public void onFailed(CritSectLease lease) {
+                        onCritSectRequestDone(lease, false);
+                    }
+                });
             }
         }
     }
 
+    private void onCritSectRequestDone(final CritSectLease lease, final boolean success) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mutualExclusionStateLock) {
+                    if (lease != criticalSectionLease) {
+                        // The request has been withdrawn in the meantime, see releaseCS().
+                        return;
+                    }
+
+                    if (success) {
+                        setLightIndicator(GREEN_LIGHT);
+                        writeAlgoLog("CS access obtained");
+                        criticalSectionObtained = true;
+                    } else {
+                        setLightIndicator(RED_LIGHT);
+                        writeAlgoLog("CS access request denied");
+                        mutualExclusionRequested = false;
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Requests the algorithm to release the Critical Section and changes the colour of the
-     * Critical Section "light" indicator accordingly.
+     * Critical Section "light" indicator accordingly. If the Critical Section has been
+     * requested but not obtained yet, the request is withdrawn instead, since the block
+     * it was wanted for has landed.
      */
     private void releaseCS() {
         synchronized (mutualExclusionStateLock) {
             if (criticalSectionObtained) {
                 setLightIndicator(YELLOW_LIGHT);
 
-                boolean success = mutualExclusionAlgo.releaseCritSection();
+                // The next holder must hear of our moves before it makes its own.
+                Globals.moves.closeEpoch();
+
+                // A token held from the start was not obtained through a lease.
+                boolean success = criticalSectionLease != null
+                        ? criticalSectionLease.release()
+                        : mutualExclusionAlgo.releaseCritSection();
 
                 if (success) {
                     setLightIndicator(RED_LIGHT);
                     writeAlgoLog("CS access released");
                     criticalSectionObtained = false;
                     mutualExclusionRequested = false;
+                    criticalSectionLease = null;
                 } else {
                     setLightIndicator(GREEN_LIGHT);
                     writeAlgoLog("CS access not released");
                     criticalSectionObtained = true;
                     mutualExclusionRequested = true;
                 }
+            } else if (mutualExclusionRequested && criticalSectionLease != null) {
+                CritSectLease lease = criticalSectionLease;
+                criticalSectionLease = null;
+
+                if (!lease.cancel()) {
+                    // Granted just now, but no longer needed.
+                    lease.release();
+                }
+
+                setLightIndicator(RED_LIGHT);
+                writeAlgoLog("CS access request withdrawn");
+                mutualExclusionRequested = false;
             }
         }
     }
@@ -91,8 +91,9 @@ public class SimplePeer extends Peer {
 		try {
 			JSONObject params = jsonMsg.getJSONObject("payload").getJSONObject("params");
 
-			//Sends message received from peer in order to execute the gesture received
-			PlayActivity.handler.obtainMessage(0,jsonMsg.get("type").toString()).sendToTarget();
+			//Passes the frame received from the peer on to the game, which decodes it off the UI thread
+			if (peerActivity != null)
+				peerActivity.receiveFrame(jsonMsg.get("type").toString());
 
 			PeerDescriptor neighborPeerDesc = new PeerDescriptor(params.get("name").toString(), params.get("address").toString(), params.get("key").toString(), params.get("contactAddress").toString());
 			addNeighborPeer(neighborPeerDesc);
@@ -0,0 +1,16 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.transport;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.WireFormat;
+
+/**
+ * Receives the frames sent to this peer, from a transport or a layer on top of it.
+ */
+public interface FrameReceiver {
+
+    /**
+     * Called for every frame received, on the thread of the transport, so it must not block.
+     *
+     * @param frame  the frame, see {@link WireFormat#frame}.
+     */
+    void receive(String frame);
+}
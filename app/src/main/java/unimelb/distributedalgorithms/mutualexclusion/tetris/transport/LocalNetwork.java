@@ -0,0 +1,190 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.transport;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.IAlgorithm;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.ITetrisPeer;
+
+/**
+ * Connects algorithm instances running in one JVM, each on threads of its own, so hundreds
+ * of them can be run against each other at full speed.
+ *
+ * Every peer has a mailbox: a bounded {@link MpscQueue} that any thread sends to without
+ * locking, and a worker thread that delivers the messages to the peer's algorithm with
+ * {@link IAlgorithm#receiveMessage}, in order. An idle worker parks until a message arrives.
+ *
+ * A message sent to a full mailbox fails, like one sent to an unreachable peer, and is
+ * counted in {@link #rejectedMessages()}. The mailboxes should be large enough that this
+ * does not happen, since most algorithms do not recover from lost messages.
+ */
+public final class LocalNetwork {
+    public String TAG = "Local Network";
+
+    /** The messages waiting for one peer and the thread delivering them. */
+    final class Mailbox implements Runnable {
+        final LocalPeer owner;
+        final MpscQueue<Envelope> queue;
+        final AtomicLong rejected = new AtomicLong();
+
+        IAlgorithm algorithm;
+        Thread worker;
+        volatile boolean parked = false;
+        volatile boolean running = true;
+        /** Written by the worker alone. */
+        volatile long delivered = 0;
+
+        Mailbox(LocalPeer owner, int capacity) {
+            this.owner = owner;
+            this.queue = new MpscQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Envelope envelope = queue.poll();
+
+                if (envelope == null) {
+                    parked = true;
+                    // Re-checked after announcing the park, so a message offered meanwhile
+                    // is either seen here or its sender sees the flag and unparks.
+                    if (queue.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                    continue;
+                }
+
+                try {
+                    algorithm.receiveMessage(envelope.sender, envelope.msg);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Dropped message to " + owner.getID() + ": " + e);
+                }
+                delivered++;
+            }
+        }
+    }
+
+    /** A message with its sender. */
+    static final class Envelope {
+        final ITetrisPeer sender;
+        final String msg;
+
+        Envelope(ITetrisPeer sender, String msg) {
+            this.sender = sender;
+            this.msg = msg;
+        }
+    }
+
+    private final int mailboxCapacity;
+    private final Map<String, LocalPeer> peers = new ConcurrentHashMap<>();
+    private final ArrayList<Mailbox> mailboxes = new ArrayList<>();
+
+
+    /**
+     * @param mailboxCapacity  the most messages waiting for a peer.
+     */
+    public LocalNetwork(int mailboxCapacity) {
+        this.mailboxCapacity = mailboxCapacity;
+    }
+
+    /**
+     * Adds a peer, whose messages wait in its mailbox until {@link #attach} gives it an
+     * algorithm. All peers must be added before messages are sent.
+     *
+     * @param id  ID of the peer.
+     *
+     * @return the {@link ITetrisPeer} to send to the peer with.
+     */
+    public synchronized LocalPeer addPeer(String id) {
+        if (peers.containsKey(id)) {
+            throw new IllegalArgumentException("Duplicate peer ID " + id);
+        }
+
+        LocalPeer peer = new LocalPeer(id, this);
+        peer.mailbox = new Mailbox(peer, mailboxCapacity);
+        peers.put(id, peer);
+        mailboxes.add(peer.mailbox);
+        return peer;
+    }
+
+    /**
+     * Starts delivering the messages of a peer to its algorithm.
+     *
+     * @param peer  a peer of this network.
+     * @param algorithm  the algorithm running for the peer.
+     */
+    public synchronized void attach(LocalPeer peer, IAlgorithm algorithm) {
+        Mailbox mailbox = peer.mailbox;
+        if (mailbox.worker != null) {
+            throw new IllegalStateException(peer.getID() + " is attached already");
+        }
+
+        mailbox.algorithm = algorithm;
+        mailbox.worker = new Thread(mailbox, "local-" + peer.getID());
+        mailbox.worker.setDaemon(true);
+        mailbox.worker.start();
+    }
+
+    /**
+     * Stops the workers. Messages still waiting are dropped.
+     */
+    public synchronized void shutdown() {
+        for (Mailbox mailbox : mailboxes) {
+            mailbox.running = false;
+            if (mailbox.worker != null) {
+                LockSupport.unpark(mailbox.worker);
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages delivered to the algorithms so far.
+     */
+    public synchronized long deliveredMessages() {
+        long sum = 0;
+        for (Mailbox mailbox : mailboxes) {
+            sum += mailbox.delivered;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of messages sent to full mailboxes so far.
+     */
+    public synchronized long rejectedMessages() {
+        long sum = 0;
+        for (Mailbox mailbox : mailboxes) {
+            sum += mailbox.rejected.get();
+        }
+        return sum;
+    }
+
+    /**
+     * Puts a message into the mailbox of its recipient.
+     *
+     * @return <i>false</i> if the sender is unknown or the mailbox is full.
+     */
+    boolean send(String senderID, LocalPeer recipient, String msg) {
+        LocalPeer sender = peers.get(senderID);
+        if (sender == null) {
+            return false;
+        }
+
+        Mailbox mailbox = recipient.mailbox;
+        if (!mailbox.queue.offer(new Envelope(sender, msg))) {
+            mailbox.rejected.incrementAndGet();
+            return false;
+        }
+
+        if (mailbox.parked) {
+            LockSupport.unpark(mailbox.worker);
+        }
+        return true;
+    }
+}
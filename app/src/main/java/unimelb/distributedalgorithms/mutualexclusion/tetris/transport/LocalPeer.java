@@ -0,0 +1,64 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.transport;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.ITetrisPeer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.SendHandle;
+
+/**
+ * An {@link ITetrisPeer} in a {@link LocalNetwork}, reached through its mailbox.
+ */
+public final class LocalPeer implements ITetrisPeer {
+
+    /** The ID of this {@link LocalPeer}. */
+    private final String id;
+
+    private final LocalNetwork network;
+
+    /** Set by the network when the peer is added. */
+    LocalNetwork.Mailbox mailbox;
+
+
+    LocalPeer(String id, LocalNetwork network) {
+        this.id = id;
+        this.network = network;
+    }
+
+
+    @Override
+    public String getID() {
+        return id;
+    }
+
+    /**
+     * Puts the message into this peer's mailbox.
+     *
+     * @return <i>false</i> if the mailbox is full.
+     */
+    @Override
+    public boolean sendMessage(String senderID, String msg) {
+        return network.send(senderID, this, msg);
+    }
+
+    /**
+     * Puts the message into this peer's mailbox, which never waits, so the handle is
+     * already complete.
+     */
+    @Override
+    public SendHandle sendMessageAsync(String senderID, String msg) {
+        return SendHandle.completed(sendMessage(senderID, msg));
+    }
+
+
+    @Override
+    public int compareTo(ITetrisPeer peer) {
+        return getID().compareTo(peer.getID());
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+
+    public boolean equals(ITetrisPeer other) {
+        return id.equals(other.getID());
+    }
+}
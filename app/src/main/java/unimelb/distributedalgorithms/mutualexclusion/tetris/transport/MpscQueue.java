@@ -0,0 +1,118 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer thread.
+ *
+ * The elements live in a ring. Every slot has a sequence number telling whose turn it is:
+ * a producer claims the slot for position <i>t</i> when its sequence is <i>t</i>, by moving
+ * the shared tail on with a compare-and-set, and publishes the element by setting the
+ * sequence to <i>t + 1</i>. The consumer takes it from there and hands the slot to the
+ * producer one lap later. Producers only contend on the tail, never on a lock, and the
+ * consumer does not contend at all.
+ *
+ * @param <E>  type of the elements.
+ */
+public final class MpscQueue<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+
+    /** The next position to claim by a producer. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The next position to take, used by the consumer alone. */
+    private long head = 0;
+
+
+    /**
+     * @param capacity  the most elements the queue holds, rounded up to a power of two.
+     */
+    public MpscQueue(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.capacity = size;
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return the most elements the queue holds.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds an element at the tail. May be called by any thread.
+     *
+     * @return <i>false</i> if the queue is full.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long lag = sequences.get(index) - position;
+
+            if (lag == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    // A full write, so a consumer about to park sees the element.
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (lag < 0) {
+                // The slot still holds the element from one lap before.
+                return false;
+            }
+            // Otherwise another producer claimed the position first.
+        }
+    }
+
+    /**
+     * Takes the element at the head. Must only be called by the consumer thread.
+     *
+     * @return the element, or <i>null</i> if the queue is empty.
+     */
+    public E poll() {
+        int index = (int) head & mask;
+
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+
+        E element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.lazySet(index, head + capacity);
+        head++;
+        return element;
+    }
+
+    /**
+     * @return <i>true</i> if there is nothing to take. Must only be called by the consumer thread.
+     */
+    public boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
@@ -0,0 +1,86 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.transport;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.ITetrisPeer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.OutboundBatcher;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.PeerHandles;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.SendHandle;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.WireFormat;
+
+/**
+ * An {@link ITetrisPeer} reached through a {@link NioTransport}, or a layer on top of it like
+ * a {@link ReliableLink}, sending each message in a frame of its own.
+ *
+ * Lets the algorithms run over plain sockets without the game, e.g. over loopback.
+ */
+public final class NioPeer implements ITetrisPeer {
+
+    /** The ID of this {@link NioPeer}. */
+    private final String id;
+
+    private final OutboundBatcher.Link link;
+    private final PeerHandles handles;
+    private final int frameType;
+
+
+    /**
+     * @param id  ID of the peer, giving its address, see {@link NioTransport#addressOf}.
+     * @param link  the link of the sending peer.
+     * @param handles  table to look up the senders' handles in.
+     * @param frameType  type of the frames the messages are sent in.
+     */
+    public NioPeer(String id, OutboundBatcher.Link link, PeerHandles handles, int frameType) {
+        this.id = id;
+        this.link = link;
+        this.handles = handles;
+        this.frameType = frameType;
+    }
+
+
+    @Override
+    public String getID() {
+        return id;
+    }
+
+    /**
+     * Hands the message to the transport, see {@link #sendMessageAsync}.
+     *
+     * @return <i>false</i> if the message could not be sent, as far as is known yet.
+     */
+    @Override
+    public boolean sendMessage(String senderID, String msg) {
+        SendHandle handle = sendMessageAsync(senderID, msg);
+        return !handle.isDone() || handle.isSent();
+    }
+
+    /**
+     * Hands the message to the link, which does not wait for the network, so the handle is
+     * already complete.
+     */
+    @Override
+    public SendHandle sendMessageAsync(String senderID, String msg) {
+        WireFormat.Writer frame = WireFormat.frame(frameType, senderID, handles);
+        frame.writeEncoded(msg);
+
+        try {
+            link.send(id, frame.toString());
+            return SendHandle.completed(true);
+        } catch (RuntimeException e) {
+            return SendHandle.completed(false);
+        }
+    }
+
+
+    @Override
+    public int compareTo(ITetrisPeer peer) {
+        return getID().compareTo(peer.getID());
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+
+    public boolean equals(ITetrisPeer other) {
+        return id.equals(other.getID());
+    }
+}
@@ -0,0 +1,561 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.transport;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.OutboundBatcher;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.SendHandle;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.WireFormat;
+
+/**
+ * Sends {@link WireFormat} frames to peers straight over UDP or TCP, instead of wrapping every
+ * frame into a SIP message with sip2peer, which costs a new address, message object and some
+ * hundred bytes of headers per frame.
+ *
+ * A peer is reached at the host and port of its ID (<i>name@host:port</i> or <i>host:port</i>)
+ * plus a fixed port offset, so the transport can run next to sip2peer on the same device.
+ *
+ * One selector thread does all receiving and, for TCP, all writing. Each peer has a channel
+ * handle that is set up once and reused; over TCP it holds a connection with its queue of
+ * frames, each sent with a 4 byte length in front. Buffers are direct and reused, so sending
+ * and receiving a frame copies it only between the String and the buffer.
+ */
+public final class NioTransport implements OutboundBatcher.Link {
+    public String TAG = "NIO Transport";
+
+    /** How frames are carried. */
+    public enum Protocol {
+        /** One datagram per frame; frames may be lost or reordered. */
+        UDP,
+        /** A connection per destination, which keeps the frames to it in order. */
+        TCP
+    }
+
+    /** Largest frame, the most a UDP datagram can carry. */
+    public static final int MAX_FRAME_SIZE = 65507;
+
+    /** Size of the length in front of each frame on a TCP connection. */
+    private static final int LENGTH_SIZE = 4;
+
+    /** Initial size of the buffers of a TCP connection, which grow for larger frames. */
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    /** Socket receive buffer to ask for, so bursts of datagrams are not dropped. */
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+    /** The channel handle of a destination. */
+    private static final class PeerChannel {
+        final String peerID;
+        final InetSocketAddress address;
+
+        /** Frames waiting to be written and their handles, guarded by the PeerChannel. */
+        final ArrayDeque<String> frames = new ArrayDeque<>();
+        final ArrayDeque<SendHandle> handles = new ArrayDeque<>();
+
+        // TCP only, used by the selector thread alone:
+        SocketChannel channel = null;
+        boolean connected = false;
+        /** The bytes being written, ready to be read from. */
+        ByteBuffer out = null;
+        /** The handles of the frames in {@link #out}. */
+        final ArrayList<SendHandle> writing = new ArrayList<>();
+
+        PeerChannel(String peerID, InetSocketAddress address) {
+            this.peerID = peerID;
+            this.address = address;
+        }
+    }
+
+    /** A TCP connection accepted from a peer. */
+    private static final class Inbound {
+        ByteBuffer in = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+    }
+
+    private final Protocol protocol;
+    private final int portOffset;
+    private final FrameReceiver receiver;
+
+    private final Selector selector;
+    private final DatagramChannel datagramChannel;
+    private final ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    /** The channel handles by peer ID. */
+    private final Map<String, PeerChannel> peerChannels = new HashMap<>();
+
+    /** TCP channel handles with frames queued, for the selector thread to write. */
+    private final ConcurrentLinkedQueue<PeerChannel> toWrite = new ConcurrentLinkedQueue<>();
+
+    /** Holds the datagram being sent, guarded by itself. */
+    private final ByteBuffer datagramOut = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+
+    // Used by the selector thread alone:
+    private final ByteBuffer datagramIn = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+    private final char[] frameChars = new char[MAX_FRAME_SIZE];
+
+
+    /**
+     * Binds the transport to the port of this peer and starts its thread.
+     *
+     * @param protocol  how frames are carried.
+     * @param selfID  ID of this peer, giving the port to listen on.
+     * @param portOffset  added to the port of every peer ID.
+     * @param receiver  where to deliver the frames received.
+     *
+     * @throws IOException if the port cannot be bound.
+     */
+    public NioTransport(Protocol protocol, String selfID, int portOffset, FrameReceiver receiver) throws IOException {
+        this.protocol = protocol;
+        this.portOffset = portOffset;
+        this.receiver = receiver;
+
+        InetSocketAddress local = new InetSocketAddress(addressOf(selfID, portOffset).getPort());
+        selector = Selector.open();
+
+        if (protocol == Protocol.UDP) {
+            datagramChannel = DatagramChannel.open();
+            datagramChannel.configureBlocking(false);
+            datagramChannel.socket().setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            datagramChannel.socket().bind(local);
+            datagramChannel.register(selector, SelectionKey.OP_READ);
+            serverChannel = null;
+        } else {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(local);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            datagramChannel = null;
+        }
+
+        Thread loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "nio-transport");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * @param peerID  ID of a peer, <i>name@host:port</i> or <i>host:port</i>.
+     * @param portOffset  added to the port.
+     *
+     * @return the address the transport of the peer listens on.
+     *
+     * @throws IllegalArgumentException if the ID has no host and port.
+     */
+    public static InetSocketAddress addressOf(String peerID, int portOffset) {
+        String hostPort = peerID.substring(peerID.indexOf('@') + 1);
+        int colon = hostPort.lastIndexOf(':');
+
+        if (colon < 0) {
+            throw new IllegalArgumentException("No port in peer ID " + peerID);
+        }
+
+        int port = Integer.parseInt(hostPort.substring(colon + 1)) + portOffset;
+        return new InetSocketAddress(hostPort.substring(0, colon), port);
+    }
+
+    /**
+     * Sends a frame to the given peer.
+     *
+     * @throws IllegalStateException if the frame could not be sent.
+     */
+    @Override
+    public void send(String recipientID, String frame) {
+        SendHandle handle = sendAsync(recipientID, frame);
+
+        if (handle.isDone() && !handle.isSent()) {
+            throw new IllegalStateException("Could not send to " + recipientID);
+        }
+    }
+
+    /**
+     * Sends a frame to the given peer without waiting for the network.
+     *
+     * @param recipientID  ID of the receiving peer.
+     * @param frame  the frame, see {@link WireFormat#frame}.
+     *
+     * @return a {@link SendHandle} that completes once the frame has been handed to the socket.
+     */
+    public SendHandle sendAsync(String recipientID, String frame) {
+        if (!running) {
+            return SendHandle.completed(false);
+        }
+
+        if (frame.length() > MAX_FRAME_SIZE) {
+            Log.e(TAG, "Frame of " + frame.length() + " bytes is too large to send");
+            return SendHandle.completed(false);
+        }
+
+        PeerChannel peerChannel = peerChannel(recipientID);
+        if (peerChannel == null) {
+            return SendHandle.completed(false);
+        }
+
+        if (protocol == Protocol.UDP) {
+            return SendHandle.completed(sendDatagram(peerChannel, frame));
+        }
+
+        SendHandle handle = new SendHandle();
+        synchronized (peerChannel) {
+            peerChannel.frames.add(frame);
+            peerChannel.handles.add(handle);
+        }
+
+        toWrite.add(peerChannel);
+        selector.wakeup();
+        return handle;
+    }
+
+    /**
+     * Stops the transport's thread, which closes all channels and fails the frames not
+     * written yet.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * @return the channel handle of the given peer, or <i>null</i> if its ID has no address.
+     */
+    private PeerChannel peerChannel(String peerID) {
+        synchronized (peerChannels) {
+            PeerChannel peerChannel = peerChannels.get(peerID);
+
+            if (peerChannel == null) {
+                try {
+                    peerChannel = new PeerChannel(peerID, addressOf(peerID, portOffset));
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Cannot send to " + peerID + ": " + e.getMessage());
+                    return null;
+                }
+                peerChannels.put(peerID, peerChannel);
+            }
+
+            return peerChannel;
+        }
+    }
+
+    private boolean sendDatagram(PeerChannel peerChannel, String frame) {
+        synchronized (datagramOut) {
+            datagramOut.clear();
+            put(datagramOut, frame);
+            datagramOut.flip();
+
+            try {
+                // Non-blocking: nothing is sent if the socket's buffer is full.
+                return datagramChannel.send(datagramOut, peerChannel.address) > 0;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to send to " + peerChannel.peerID + ": " + e);
+                return false;
+            }
+        }
+    }
+
+
+    private void runLoop() {
+        try {
+            while (running) {
+                selector.select();
+
+                PeerChannel peerChannel;
+                while ((peerChannel = toWrite.poll()) != null) {
+                    startWriting(peerChannel);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.e(TAG, "Transport stopped: " + e);
+        } finally {
+            running = false;
+            shutDown();
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        Object attachment = key.attachment();
+
+        try {
+            if (key.channel() == datagramChannel) {
+                receiveDatagrams();
+            } else if (key.channel() == serverChannel) {
+                accept();
+            } else if (attachment instanceof Inbound) {
+                readStream(key, (Inbound) attachment);
+            } else if (key.isConnectable()) {
+                finishConnect(key, (PeerChannel) attachment);
+            } else if (key.isWritable()) {
+                write(key, (PeerChannel) attachment);
+            }
+        } catch (IOException e) {
+            if (attachment instanceof PeerChannel) {
+                closeChannel((PeerChannel) attachment, e);
+            } else {
+                close(key.channel());
+            }
+        }
+    }
+
+    private void receiveDatagrams() throws IOException {
+        while (true) {
+            datagramIn.clear();
+            if (datagramChannel.receive(datagramIn) == null) {
+                return;
+            }
+
+            datagramIn.flip();
+            deliver(datagramIn, datagramIn.remaining());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Inbound());
+    }
+
+    /**
+     * Reads from a connection and delivers the frames that have arrived completely.
+     */
+    private void readStream(SelectionKey key, Inbound inbound) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        if (channel.read(inbound.in) < 0) {
+            close(channel);
+            return;
+        }
+
+        ByteBuffer in = inbound.in;
+        in.flip();
+
+        while (in.remaining() >= LENGTH_SIZE) {
+            int length = in.getInt(in.position());
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < LENGTH_SIZE + length) {
+                break;
+            }
+
+            in.position(in.position() + LENGTH_SIZE);
+            deliver(in, length);
+        }
+
+        in.compact();
+
+        // Make room for a frame larger than the buffer.
+        if (in.position() >= LENGTH_SIZE && LENGTH_SIZE + in.getInt(0) > in.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(LENGTH_SIZE + in.getInt(0));
+            in.flip();
+            larger.put(in);
+            inbound.in = larger;
+        }
+    }
+
+    private void deliver(ByteBuffer in, int length) {
+        for (int i = 0; i < length; i++) {
+            frameChars[i] = (char) (in.get() & 0xFF);
+        }
+
+        try {
+            receiver.receive(new String(frameChars, 0, length));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Dropped frame: " + e);
+        }
+    }
+
+    private void startWriting(PeerChannel peerChannel) {
+        try {
+            if (peerChannel.channel == null) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                peerChannel.channel = channel;
+                peerChannel.out = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+                peerChannel.out.limit(0);
+
+                peerChannel.connected = channel.connect(peerChannel.address);
+                channel.register(selector, peerChannel.connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, peerChannel);
+            } else if (peerChannel.connected) {
+                peerChannel.channel.keyFor(selector).interestOps(SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            closeChannel(peerChannel, e);
+        }
+    }
+
+    private void finishConnect(SelectionKey key, PeerChannel peerChannel) throws IOException {
+        if (peerChannel.channel.finishConnect()) {
+            peerChannel.connected = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Writes the queued frames until they are all out or the socket's buffer is full.
+     */
+    private void write(SelectionKey key, PeerChannel peerChannel) throws IOException {
+        while (true) {
+            if (!peerChannel.out.hasRemaining()) {
+                complete(peerChannel.writing, true);
+
+                if (!fill(peerChannel)) {
+                    key.interestOps(0);
+                    return;
+                }
+            }
+
+            peerChannel.channel.write(peerChannel.out);
+
+            if (peerChannel.out.hasRemaining()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves as many queued frames into the channel's buffer as fit, at least one.
+     *
+     * @return <i>false</i> if no frames were queued.
+     */
+    private boolean fill(PeerChannel peerChannel) {
+        synchronized (peerChannel) {
+            if (peerChannel.frames.isEmpty()) {
+                return false;
+            }
+
+            ByteBuffer out = peerChannel.out;
+            out.clear();
+
+            while (!peerChannel.frames.isEmpty()) {
+                String frame = peerChannel.frames.peek();
+                int size = LENGTH_SIZE + frame.length();
+
+                if (size > out.remaining()) {
+                    if (out.position() > 0) {
+                        break;
+                    }
+                    out = ByteBuffer.allocateDirect(size);
+                    peerChannel.out = out;
+                }
+
+                out.putInt(frame.length());
+                put(out, frame);
+                peerChannel.frames.poll();
+                peerChannel.writing.add(peerChannel.handles.poll());
+            }
+
+            out.flip();
+            return true;
+        }
+    }
+
+    /**
+     * Closes the connection to a peer and fails the frames queued for it. The next frame
+     * sent to the peer opens a new connection.
+     *
+     * @param cause  why the connection was lost, or <i>null</i> if the transport is closed.
+     */
+    private void closeChannel(PeerChannel peerChannel, IOException cause) {
+        if (cause != null) {
+            Log.e(TAG, "Lost connection to " + peerChannel.peerID + ": " + cause);
+        }
+
+        if (peerChannel.channel != null) {
+            close(peerChannel.channel);
+        }
+        peerChannel.channel = null;
+        peerChannel.connected = false;
+
+        List<SendHandle> failed = new ArrayList<>(peerChannel.writing);
+        peerChannel.writing.clear();
+        synchronized (peerChannel) {
+            failed.addAll(peerChannel.handles);
+            peerChannel.handles.clear();
+            peerChannel.frames.clear();
+        }
+
+        complete(failed, false);
+    }
+
+    private void shutDown() {
+        ArrayList<PeerChannel> all;
+        synchronized (peerChannels) {
+            all = new ArrayList<>(peerChannels.values());
+        }
+
+        for (PeerChannel peerChannel : all) {
+            closeChannel(peerChannel, null);
+        }
+
+        try {
+            for (SelectionKey key : selector.keys()) {
+                close(key.channel());
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            Log.e(TAG, "Failed to close the selector: " + e);
+        }
+    }
+
+    private void close(SelectableChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close a channel: " + e);
+        }
+    }
+
+    private static void complete(List<SendHandle> handles, boolean sent) {
+        for (SendHandle handle : handles) {
+            handle.complete(sent);
+        }
+        handles.clear();
+    }
+
+    /**
+     * Puts encoded data into a buffer, one byte per char, like {@link WireFormat#toBytes}.
+     */
+    private static void put(ByteBuffer out, String data) {
+        int length = data.length();
+
+        for (int i = 0; i < length; i++) {
+            out.put((byte) data.charAt(i));
+        }
+    }
+}
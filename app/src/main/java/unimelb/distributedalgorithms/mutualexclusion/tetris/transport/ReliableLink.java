@@ -0,0 +1,441 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.transport;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.OutboundBatcher;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.PeerHandles;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.WireFormat;
+
+/**
+ * Delivers frames to each peer exactly once and in order over a link that may lose, duplicate
+ * or reorder them, like SIP or UDP. The algorithms assume such channels, e.g. a lost token
+ * would otherwise hang the game for good.
+ *
+ * Every frame is sent in a data frame with the sequence number of its channel:
+ * <pre>
+ *     [version] [data frame type] [sender] [session] [sequence] [frame...]
+ * </pre>
+ * and every data frame received is answered by an ack, carrying the highest sequence number
+ * up to which all frames have arrived and a bitmap of the {@link #SACK_BITS} frames after it
+ * that have arrived early:
+ * <pre>
+ *     [version] [ack frame type] [sender] [session] [cumulative sequence] [bitmap]
+ * </pre>
+ * Frames not acknowledged within the retransmission timeout are sent again, except those
+ * acknowledged by the bitmap. The timeout follows the measured round trip time (RFC 6298,
+ * sampling only frames sent once) and doubles on every timeout. The receiver drops duplicates
+ * and holds frames arriving early until the gap before them is filled.
+ *
+ * The session is chosen at random when the link is created, so a peer that rejoins starts
+ * its channels afresh instead of having its frames taken for duplicates. A receiver only
+ * switches to a new session on its first frame, and drops the frames of the sessions it has
+ * switched away from, which may still be on their way, without acknowledging them.
+ *
+ * Frames of other types are passed on to the receiver as they are.
+ */
+public final class ReliableLink implements OutboundBatcher.Link, FrameReceiver {
+    public String TAG = "Reliable Link";
+
+    /** Retransmission timeout before a round trip time has been measured, in ms. */
+    private static final long INITIAL_RTO = 500;
+    private static final long MIN_RTO = 20;
+    private static final long MAX_RTO = 8000;
+
+    /** Most frames waiting for an ack per destination; sending more fails. */
+    private static final int MAX_UNACKED = 4096;
+
+    /** How far ahead of a gap frames are held per source; later ones are dropped. */
+    private static final int MAX_REORDER = 4096;
+
+    /** Frames after the cumulative sequence number an ack reports individually. */
+    private static final int SACK_BITS = 64;
+
+    /** A frame waiting for its ack. */
+    private static final class Pending {
+        final long sequence;
+        final String dataFrame;
+        long sentAt;
+        boolean retransmitted = false;
+        boolean selectivelyAcked = false;
+
+        Pending(long sequence, String dataFrame) {
+            this.sequence = sequence;
+            this.dataFrame = dataFrame;
+        }
+    }
+
+    /** The sending side of the channel to one destination, guarded by itself. */
+    private final class OutChannel implements Runnable {
+        final String recipientID;
+        long nextSequence = 1;
+        final ArrayDeque<Pending> unacked = new ArrayDeque<>();
+        boolean timerArmed = false;
+
+        // Round trip estimate in ms, see RFC 6298.
+        double smoothedRtt = -1;
+        double rttVariation = 0;
+        long rto = INITIAL_RTO;
+
+        OutChannel(String recipientID) {
+            this.recipientID = recipientID;
+        }
+
+        @Override
+        public void run() {
+            retransmit(this);
+        }
+    }
+
+    /** The receiving side of the channel from one source, guarded by itself. */
+    private static final class InChannel {
+        int session = -1;
+        long expected = 1;
+        final TreeMap<Long, String> early = new TreeMap<>();
+        /** Earlier sessions of the source, whose frames are dropped. */
+        final Set<Integer> retired = new HashSet<>();
+    }
+
+    private final OutboundBatcher.Link lower;
+    private final PeerHandles handles;
+    private final String selfID;
+    private final int dataFrameType;
+    private final int ackFrameType;
+    private final FrameReceiver upper;
+    private final int session;
+    private final ScheduledExecutorService timer;
+
+    private final Map<String, OutChannel> outChannels = new HashMap<>();
+    private final Map<String, InChannel> inChannels = new HashMap<>();
+
+    private final AtomicLong retransmissions = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+
+    /**
+     * @param lower  the link to send the data frames and acks over.
+     * @param handles  table to look up the senders' handles in.
+     * @param selfID  ID of this peer.
+     * @param dataFrameType  the frame type marking a data frame.
+     * @param ackFrameType  the frame type marking an ack.
+     * @param upper  where to deliver the frames received, in order.
+     */
+    public ReliableLink(OutboundBatcher.Link lower, PeerHandles handles, String selfID,
+                        int dataFrameType, int ackFrameType, FrameReceiver upper) {
+        this.lower = lower;
+        this.handles = handles;
+        this.selfID = selfID;
+        this.dataFrameType = dataFrameType;
+        this.ackFrameType = ackFrameType;
+        this.upper = upper;
+
+        // Small, so it fits into a 3 byte varint.
+        session = new Random().nextInt(1 << 21);
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "reliable-retransmit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sends a frame to the given peer, and again until it is acknowledged.
+     *
+     * @throws IllegalStateException if too many frames to the peer are waiting for their ack.
+     */
+    @Override
+    public void send(String recipientID, String frame) {
+        OutChannel channel = outChannel(recipientID);
+
+        synchronized (channel) {
+            if (channel.unacked.size() >= MAX_UNACKED) {
+                throw new IllegalStateException("Too many unacknowledged frames to " + recipientID);
+            }
+
+            WireFormat.Writer out = WireFormat.frame(dataFrameType, selfID, handles);
+            out.writeVarint(session);
+            out.writeVarlong(channel.nextSequence);
+            out.writeEncoded(frame);
+
+            Pending pending = new Pending(channel.nextSequence++, out.toString());
+            pending.sentAt = System.currentTimeMillis();
+            channel.unacked.add(pending);
+
+            sendLower(recipientID, pending.dataFrame);
+
+            if (!channel.timerArmed) {
+                armTimer(channel);
+            }
+        }
+    }
+
+    /**
+     * Handles a frame received from the lower link: acknowledges and delivers data frames,
+     * processes acks, and passes on frames of other types.
+     *
+     * @throws IllegalArgumentException if a data frame or ack is malformed.
+     */
+    @Override
+    public void receive(String frame) {
+        WireFormat.Reader in = new WireFormat.Reader(frame);
+
+        if (in.readByte() != WireFormat.VERSION) {
+            upper.receive(frame);
+            return;
+        }
+
+        int frameType = in.readByte();
+
+        if (frameType == dataFrameType) {
+            String senderID = in.readID(handles);
+            int senderSession = in.readVarint();
+            long sequence = in.readVarlong();
+            receiveData(senderID, senderSession, sequence, in.readRemaining());
+        } else if (frameType == ackFrameType) {
+            String senderID = in.readID(handles);
+            int ackSession = in.readVarint();
+            long cumulative = in.readVarlong();
+            long bitmap = in.readVarlong();
+            if (ackSession == session) {
+                receiveAck(senderID, cumulative, bitmap);
+            }
+        } else {
+            upper.receive(frame);
+        }
+    }
+
+    /**
+     * @return the number of frames sent again so far.
+     */
+    public long retransmissions() {
+        return retransmissions.get();
+    }
+
+    /**
+     * @return the number of duplicate frames dropped so far.
+     */
+    public long duplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Stops retransmitting. Frames sent afterwards are sent once.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+
+    private OutChannel outChannel(String recipientID) {
+        synchronized (outChannels) {
+            OutChannel channel = outChannels.get(recipientID);
+            if (channel == null) {
+                channel = new OutChannel(recipientID);
+                outChannels.put(recipientID, channel);
+            }
+            return channel;
+        }
+    }
+
+    private InChannel inChannel(String senderID) {
+        synchronized (inChannels) {
+            InChannel channel = inChannels.get(senderID);
+            if (channel == null) {
+                channel = new InChannel();
+                inChannels.put(senderID, channel);
+            }
+            return channel;
+        }
+    }
+
+    private void receiveData(String senderID, int senderSession, long sequence, String frame) {
+        InChannel channel = inChannel(senderID);
+
+        synchronized (channel) {
+            if (senderSession != channel.session) {
+                if (channel.retired.contains(senderSession)) {
+                    // Delayed on its way from before the sender rejoined.
+                    duplicates.incrementAndGet();
+                    return;
+                }
+
+                if (sequence != 1) {
+                    // Either delayed from a session not seen before, or the sender has rejoined
+                    // and its first frame is yet to come: it is sent again until acknowledged.
+                    return;
+                }
+
+                // The sender has (re)joined: its channel starts over.
+                if (channel.session != -1) {
+                    channel.retired.add(channel.session);
+                }
+                channel.session = senderSession;
+                channel.expected = 1;
+                channel.early.clear();
+            }
+
+            if (sequence < channel.expected || channel.early.containsKey(sequence)) {
+                duplicates.incrementAndGet();
+            } else if (sequence == channel.expected) {
+                deliver(frame);
+                channel.expected++;
+
+                String next;
+                while ((next = channel.early.remove(channel.expected)) != null) {
+                    deliver(next);
+                    channel.expected++;
+                }
+            } else if (sequence - channel.expected < MAX_REORDER) {
+                channel.early.put(sequence, frame);
+            }
+
+            sendAck(senderID, channel);
+        }
+    }
+
+    private void deliver(String frame) {
+        try {
+            upper.receive(frame);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Dropped frame: " + e);
+        }
+    }
+
+    private void sendAck(String senderID, InChannel channel) {
+        long bitmap = 0;
+        for (long sequence : channel.early.subMap(channel.expected + 1, channel.expected + 1 + SACK_BITS).keySet()) {
+            bitmap |= 1L << (sequence - channel.expected - 1);
+        }
+
+        WireFormat.Writer out = WireFormat.frame(ackFrameType, selfID, handles);
+        out.writeVarint(channel.session);
+        out.writeVarlong(channel.expected - 1);
+        out.writeVarlong(bitmap);
+
+        sendLower(senderID, out.toString());
+    }
+
+    private void receiveAck(String senderID, long cumulative, long bitmap) {
+        OutChannel channel = outChannel(senderID);
+        long now = System.currentTimeMillis();
+
+        synchronized (channel) {
+            while (!channel.unacked.isEmpty() && channel.unacked.peek().sequence <= cumulative) {
+                Pending acked = channel.unacked.poll();
+                if (!acked.retransmitted && !acked.selectivelyAcked) {
+                    sampleRtt(channel, now - acked.sentAt);
+                }
+            }
+
+            if (bitmap == 0) {
+                return;
+            }
+
+            for (Pending pending : channel.unacked) {
+                // The frame right after the cumulative sequence number is the gap.
+                long bit = pending.sequence - cumulative - 2;
+                if (bit >= SACK_BITS) {
+                    break;
+                }
+
+                if (bit >= 0 && !pending.selectivelyAcked && (bitmap & (1L << bit)) != 0) {
+                    pending.selectivelyAcked = true;
+                    if (!pending.retransmitted) {
+                        sampleRtt(channel, now - pending.sentAt);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void sampleRtt(OutChannel channel, long rtt) {
+        if (channel.smoothedRtt < 0) {
+            channel.smoothedRtt = rtt;
+            channel.rttVariation = rtt / 2.0;
+        } else {
+            channel.rttVariation = 0.75 * channel.rttVariation + 0.25 * Math.abs(channel.smoothedRtt - rtt);
+            channel.smoothedRtt = 0.875 * channel.smoothedRtt + 0.125 * rtt;
+        }
+
+        long rto = (long) Math.ceil(channel.smoothedRtt + Math.max(1, 4 * channel.rttVariation));
+        channel.rto = Math.min(MAX_RTO, Math.max(MIN_RTO, rto));
+    }
+
+    /**
+     * Sends the frames of a channel again whose timeout has passed, and backs off.
+     */
+    private void retransmit(OutChannel channel) {
+        synchronized (channel) {
+            channel.timerArmed = false;
+            long now = System.currentTimeMillis();
+            boolean timedOut = false;
+
+            for (Pending pending : channel.unacked) {
+                if (!pending.selectivelyAcked && now - pending.sentAt >= channel.rto) {
+                    sendLower(channel.recipientID, pending.dataFrame);
+                    pending.sentAt = now;
+                    pending.retransmitted = true;
+                    retransmissions.incrementAndGet();
+                    timedOut = true;
+                }
+            }
+
+            if (timedOut) {
+                channel.rto = Math.min(MAX_RTO, channel.rto * 2);
+            }
+
+            if (!channel.unacked.isEmpty()) {
+                armTimer(channel);
+            }
+        }
+    }
+
+    /**
+     * Schedules {@link #retransmit} for when the oldest frame of the channel times out.
+     */
+    private void armTimer(OutChannel channel) {
+        long oldest = Long.MAX_VALUE;
+        for (Pending pending : channel.unacked) {
+            if (!pending.selectivelyAcked) {
+                oldest = Math.min(oldest, pending.sentAt);
+            }
+        }
+
+        long delay = oldest == Long.MAX_VALUE
+                ? channel.rto
+                : Math.max(0, oldest + channel.rto - System.currentTimeMillis());
+
+        try {
+            timer.schedule(channel, delay, TimeUnit.MILLISECONDS);
+            channel.timerArmed = true;
+        } catch (RejectedExecutionException e) {
+            // Shut down: frames are no longer sent again.
+        }
+    }
+
+    private void sendLower(String recipientID, String frame) {
+        try {
+            lower.send(recipientID, frame);
+        } catch (RuntimeException e) {
+            // Sent again on timeout, like a frame lost on the way.
+            Log.e(TAG, "Failed to send to " + recipientID + ": " + e);
+        }
+    }
+}
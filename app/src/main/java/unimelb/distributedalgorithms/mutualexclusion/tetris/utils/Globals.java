@@ -1,7 +1,13 @@
 package unimelb.distributedalgorithms.mutualexclusion.tetris.utils;
 
 
+import unimelb.distributedalgorithms.mutualexclusion.tetris.MoveSequencer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.OutboundBatcher;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.PeerHandles;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.RelayBroadcast;
 import unimelb.distributedalgorithms.mutualexclusion.tetris.sip2peer.SimplePeer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.NioTransport;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.ReliableLink;
 
 /**
  * Common attributes among Classes
@@ -11,6 +17,14 @@ public class Globals {
 
     public static String IP_SERVER = "http://192.168.1.10:3000"; //CHANGE THIS IP ADDRESS WITH YOUR LOCAL MACHINE IP ADDRESS
     public static SimplePeer peer = null;
+    public static PeerHandles peerHandles = null; //handles identifying the peers of the current game on the wire
+    public static OutboundBatcher outbound = null; //batches the frames sent to each peer of the current game
+    public static RelayBroadcast relay = null; //relays the messages sent to many peers of the current game over a tree
+    public static MoveSequencer moves = null; //orders the game moves of the current game into one stream
+    public static ReliableLink reliable = null; //sends the frames of the current game again until they are acknowledged
     public static Boolean alreadyConnected = false; //to avoid a reconnection of an already connected peer
+    public static NioTransport.Protocol TRANSPORT = null; //null to send frames with sip2peer, UDP or TCP to send them straight over sockets
+    public static int TRANSPORT_PORT_OFFSET = 1; //the UDP/TCP transport listens on the SIP port plus this offset
+    public static NioTransport transport = null; //the UDP/TCP transport of the current game, if selected
 
 }
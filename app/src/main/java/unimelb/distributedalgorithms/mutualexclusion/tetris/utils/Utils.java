@@ -1,6 +1,8 @@
 package unimelb.distributedalgorithms.mutualexclusion.tetris.utils;
 
-import android.util.Log;
+import android.util.Base64;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.WireFormat;
 
 public class Utils {
 
@@ -8,21 +10,22 @@ public class Utils {
 
 
 	/**
-	 * Send message to peers
-	 * @param gamemsg
+	 * Encode a {@link WireFormat} frame as text, since sip2peer can only carry strings
+	 * @param frame the frame to encode
+	 * @return the frame in Base64
 	 */
-	public static void sendGameMsg(String gamemsg){
-
-		Log.i(TAG,"Send Game Msg: " + gamemsg);
-
-		String localIP = Globals.peer.getAddressPeer();
-
-		for (String peerIP: Globals.peer.getPeerList()){
-			if (!peerIP.equals(localIP))
-				Globals.peer.pingToPeer(peerIP,gamemsg);
+	public static String encodeFrame(String frame){
+		return Base64.encodeToString(WireFormat.toBytes(frame), Base64.NO_WRAP);
+	}
 
-		}
 
+	/**
+	 * Decode a frame encoded by {@link #encodeFrame}
+	 * @param text the encoded frame
+	 * @return the {@link WireFormat} frame
+	 */
+	public static String decodeFrame(String text){
+		return WireFormat.fromBytes(Base64.decode(text, Base64.NO_WRAP));
 	}
 
 
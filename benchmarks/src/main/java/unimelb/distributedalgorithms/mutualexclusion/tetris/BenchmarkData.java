@@ -0,0 +1,32 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import java.util.Random;
+
+/**
+ * Shared inputs for the benchmarks.
+ */
+final class BenchmarkData {
+
+    /** A sender ID in the format used by the SIP peers. */
+    static final String SENDER_ID = "player@192.168.1.10:5070";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns a {@link VectorClock} of the given size with a fixed, pseudo-random state,
+     * so values take a realistic number of digits.
+     *
+     * @param size  number of entries in the clock.
+     */
+    static VectorClock clock(int size) {
+        VectorClock clock = new VectorClock(size, 0);
+        Random random = new Random(size);
+
+        for (int i = 0; i < size; i++) {
+            clock.setValue(i, random.nextInt(10000));
+        }
+
+        return clock;
+    }
+}
@@ -0,0 +1,56 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of serializing and ordering {@link QuorumMessage}s with a
+ * {@link HybridTimestamp}, for comparison with {@link QuorumMessageBenchmark}.
+ * The cost does not depend on the number of peers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HybridTimestampBenchmark {
+
+    private QuorumMessage message;
+    private QuorumMessage other;
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        HybridLogicalClock clock = new HybridLogicalClock(3, HybridLogicalClock.SYSTEM_TIME);
+
+        message = new QuorumMessage(BenchmarkData.SENDER_ID, clock.sendAction(), AlgorithmMessage.REQUEST);
+        other = new QuorumMessage(BenchmarkData.SENDER_ID, clock.sendAction(), AlgorithmMessage.REQUEST);
+        encoded = message.toString();
+    }
+
+    @Benchmark
+    public String encode() {
+        return message.toString();
+    }
+
+    @Benchmark
+    public QuorumMessage decode() {
+        return QuorumMessage.fromString(BenchmarkData.SENDER_ID, encoded);
+    }
+
+    @Benchmark
+    public int compare() {
+        return message.compareTo(other);
+    }
+}
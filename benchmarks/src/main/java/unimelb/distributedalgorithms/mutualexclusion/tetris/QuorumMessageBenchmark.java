@@ -0,0 +1,51 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of serializing a {@link QuorumMessage}, including its {@link VectorClock}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuorumMessageBenchmark {
+
+    /** Number of entries in the message's clock, i.e. the number of peers. */
+    @Param({"4", "16", "64", "256", "1024"})
+    public int size;
+
+    private QuorumMessage message;
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        message = new QuorumMessage(BenchmarkData.SENDER_ID, BenchmarkData.clock(size).snapshot(),
+                AlgorithmMessage.REQUEST);
+        encoded = message.toString();
+    }
+
+    @Benchmark
+    public String encode() {
+        return message.toString();
+    }
+
+    @Benchmark
+    public QuorumMessage decode() {
+        return QuorumMessage.fromString(BenchmarkData.SENDER_ID, encoded);
+    }
+}
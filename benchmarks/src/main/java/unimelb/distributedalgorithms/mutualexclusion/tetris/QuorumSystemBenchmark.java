@@ -0,0 +1,71 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of recording a REPLY or RELINQUISH in a {@link QuorumSystem} and checking
+ * for a quorum, as done for every such message in {@link AgrawalElAbbadi}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuorumSystemBenchmark {
+
+    /** Number of peers in the group. */
+    @Param({"16", "64", "256", "1024"})
+    public int size;
+
+    @Param({"tree", "grid", "majority", "hierarchical"})
+    public String shape;
+
+    private QuorumSystem quorum;
+    private int last;
+    private boolean granted;
+
+    @Setup
+    public void setUp() {
+        switch (shape) {
+            case "tree":
+                quorum = new TreeQuorum(size);
+                break;
+            case "grid":
+                quorum = new GridQuorum(size);
+                break;
+            case "majority":
+                quorum = new MajorityQuorum(size);
+                break;
+            default:
+                quorum = new HierarchicalQuorum(size);
+        }
+
+        // Grant all of a quorum but its last peer, so toggling that peer toggles the quorum.
+        BitSet chosen = quorum.select(size - 1);
+        last = chosen.length() - 1;
+        for (int i = chosen.nextSetBit(0); i < last; i = chosen.nextSetBit(i + 1)) {
+            quorum.setGranted(i, true);
+        }
+    }
+
+    @Benchmark
+    public boolean update() {
+        granted = !granted;
+        quorum.setGranted(last, granted);
+        return quorum.isObtained();
+    }
+}
@@ -0,0 +1,95 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the cost of queueing REQUESTs in {@link AgrawalElAbbadi} grows with the depth of
+ * the queue: a queued sender gives up its REQUEST and sends a new one, which removes and adds
+ * a request by sender. {@link RequestQueue} is compared with a plain {@link TreeSet} that is
+ * scanned to find a sender's request, as the algorithm used to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestQueueBenchmark {
+
+    /** Number of queued REQUESTs. */
+    @Param({"10", "100", "1000", "10000"})
+    public int depth;
+
+    private String[] senders;
+    private RequestQueue queue;
+    private TreeSet<QuorumMessage> scannedQueue;
+
+    private int next;
+    private long time;
+
+    @Setup
+    public void setUp() {
+        senders = new String[depth];
+        queue = new RequestQueue();
+        scannedQueue = new TreeSet<>();
+
+        for (int i = 0; i < depth; i++) {
+            senders[i] = "player" + i + "@192.168.1.10:5070";
+            QuorumMessage request = request(i);
+            queue.add(request);
+            scannedQueue.add(request);
+        }
+    }
+
+    private QuorumMessage request(int senderIndex) {
+        HybridTimestamp ts = new HybridTimestamp(++time, 0, senderIndex);
+        return new QuorumMessage(senders[senderIndex], ts, AlgorithmMessage.REQUEST);
+    }
+
+    @Benchmark
+    public boolean indexed() {
+        int senderIndex = next;
+        next = (next + 1) % depth;
+
+        queue.remove(senders[senderIndex]);
+        return queue.add(request(senderIndex));
+    }
+
+    @Benchmark
+    public boolean scanned() {
+        int senderIndex = next;
+        next = (next + 1) % depth;
+        String senderID = senders[senderIndex];
+
+        QuorumMessage toRemove = null;
+        for (QuorumMessage queued : scannedQueue) {
+            if (senderID.equals(queued.getSenderID())) {
+                toRemove = queued;
+                break;
+            }
+        }
+        scannedQueue.remove(toRemove);
+
+        QuorumMessage request = request(senderIndex);
+        for (QuorumMessage queued : scannedQueue) {
+            if (senderID.equals(queued.getSenderID())) {
+                return false;
+            }
+        }
+        return scannedQueue.add(request);
+    }
+}
@@ -0,0 +1,46 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of serializing a {@link TimeStampMessage}. Its timestamp is a
+ * single integer, so the cost does not depend on the number of peers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeStampMessageBenchmark {
+
+    private TimeStampMessage message;
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        message = new TimeStampMessage(BenchmarkData.SENDER_ID, 123456, AlgorithmMessage.REQUEST);
+        encoded = message.toString();
+    }
+
+    @Benchmark
+    public String encode() {
+        return message.toString();
+    }
+
+    @Benchmark
+    public TimeStampMessage decode() {
+        return TimeStampMessage.fromString(BenchmarkData.SENDER_ID, encoded);
+    }
+}
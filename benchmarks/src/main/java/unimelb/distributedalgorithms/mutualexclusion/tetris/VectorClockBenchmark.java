@@ -0,0 +1,73 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of serializing a {@link VectorClock} to and from the {@link WireFormat},
+ * and of the operations the algorithms perform on every message: comparing and merging.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorClockBenchmark {
+
+    /** Number of entries in the clock, i.e. the number of peers. */
+    @Param({"4", "16", "64", "256", "1024"})
+    public int size;
+
+    private VectorClock clock;
+    private String encoded;
+
+    /** A timestamp which is concurrent with {@link #clock} only in its last entry. */
+    private VectorTimestamp concurrent;
+
+    @Setup
+    public void setUp() {
+        clock = BenchmarkData.clock(size);
+        WireFormat.Writer out = new WireFormat.Writer();
+        clock.writeTo(out);
+        encoded = out.toString();
+
+        VectorClock other = clock.copy();
+        other.setValue(0, other.getValue(0) + 1);
+        other.setValue(size - 1, other.getValue(size - 1) - 1);
+        concurrent = other.snapshot();
+    }
+
+    @Benchmark
+    public String encode() {
+        WireFormat.Writer out = new WireFormat.Writer(2 * size + 4);
+        clock.writeTo(out);
+        return out.toString();
+    }
+
+    @Benchmark
+    public VectorTimestamp decode() {
+        return VectorTimestamp.readFrom(new WireFormat.Reader(encoded));
+    }
+
+    @Benchmark
+    public int compare() {
+        return clock.compareTo(concurrent);
+    }
+
+    @Benchmark
+    public void merge() {
+        clock.receiveAction(concurrent);
+    }
+}
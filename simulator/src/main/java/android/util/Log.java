@@ -0,0 +1,44 @@
+package android.util;
+
+/**
+ * JVM stand-in for the Android logger, so the algorithms can run outside of the app.
+ *
+ * Output is discarded unless the system property <i>tetris.log</i> is set to <i>true</i>,
+ * since the algorithms log every message they handle.
+ */
+public final class Log {
+
+    private static final boolean ENABLED = Boolean.getBoolean("tetris.log");
+
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return print("V", tag, msg);
+    }
+
+    public static int d(String tag, String msg) {
+        return print("D", tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return print("I", tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg);
+    }
+
+    private static int print(String level, String tag, String msg) {
+        if (!ENABLED) {
+            return 0;
+        }
+
+        System.err.println(level + "/" + tag + ": " + msg);
+        return 1;
+    }
+}
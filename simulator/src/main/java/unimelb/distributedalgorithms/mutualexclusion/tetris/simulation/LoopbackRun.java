@@ -0,0 +1,501 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.simulation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.Algorithm;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.AlgorithmDispatcher;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.CritSectLease;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.HybridLogicalClock;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.ITetrisPeer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.OutboundBatcher;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.PeerHandles;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.WireFormat;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.FrameReceiver;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.LocalNetwork;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.LocalPeer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.NioPeer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.NioTransport;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.transport.ReliableLink;
+
+/**
+ * Runs an algorithm on this machine in real time, with a thread per peer that enters the
+ * Critical Section a number of times. Unlike the {@link Simulation}, this exercises the
+ * algorithms' locking under true concurrency.
+ *
+ * Over UDP or TCP, every peer gets a {@link NioTransport} on its own loopback port and an
+ * {@link AlgorithmDispatcher}. The local transport connects the peers through a
+ * {@link LocalNetwork} instead, which leaves out the sockets and runs hundreds of peers at
+ * full speed.
+ *
+ * Requests are made with {@link Algorithm#requestCritSection()}, or with the blocking
+ * {@link Algorithm#obtainCritSection()} to exercise its wait/notify path. A blocked request is
+ * interrupted after the stall timeout, which makes the algorithm give it up. With a timeout,
+ * they are made with {@link Algorithm#tryObtainCritSection(long)} instead, and requests that
+ * time out are withdrawn and made again, which exercises the algorithms' cancel paths.
+ *
+ * Over UDP or TCP, a fraction of the frames can be dropped on purpose, and the frames can be
+ * sent over a {@link ReliableLink} to recover them.
+ *
+ * Usage: LoopbackRun [--algorithms a,b,..] [--peers n,m,..] [--entries e] [--hold ms]
+ *                    [--protocol udp|tcp|local] [--blocking true|false] [--port p]
+ *                    [--mailbox n] [--loss fraction] [--reliable true|false] [--timeout ms]
+ */
+public final class LoopbackRun {
+
+    /** Frame types of the algorithm messages and of the reliable link. */
+    private static final int ALGORITHM_MESSAGE = 1;
+    private static final int RELIABLE_MESSAGE = 3;
+    private static final int ACK_MESSAGE = 4;
+
+    /** Transport name of the {@link LocalNetwork}. */
+    public static final String LOCAL = "local";
+
+    /** How long a request may stay pending before the run counts it as stalled, in ms. */
+    private static final long STALL_TIMEOUT = 10000;
+
+    /** One peer of the run. */
+    private static final class Node {
+        NioTransport transport;
+        volatile ReliableLink reliable;
+        Algorithm algorithm;
+        AlgorithmDispatcher dispatcher;
+        final Map<String, ITetrisPeer> peersByID = new HashMap<>();
+    }
+
+    private final String algorithmName;
+    private final String protocol;
+    private final int numPeers;
+    private final int entriesPerPeer;
+    private final long holdMillis;
+    private final boolean blocking;
+    private final int basePort;
+    private final int mailboxCapacity;
+    private final double loss;
+    private final boolean reliable;
+    private final long timeoutMillis;
+
+    /** The network of the local transport. */
+    private LocalNetwork network = null;
+
+    private final AtomicInteger inCritSection = new AtomicInteger();
+    private final AtomicInteger entries = new AtomicInteger();
+    private final AtomicInteger unsafe = new AtomicInteger();
+    private final AtomicInteger stalled = new AtomicInteger();
+    private final AtomicInteger gaveUp = new AtomicInteger();
+
+    /** Interrupts blocked requests once they have stalled. */
+    private ScheduledExecutorService watchdog = null;
+
+
+    /** Drops frames at random. */
+    private static final class LossyLink implements OutboundBatcher.Link {
+        final OutboundBatcher.Link lower;
+        final double loss;
+
+        LossyLink(OutboundBatcher.Link lower, double loss) {
+            this.lower = lower;
+            this.loss = loss;
+        }
+
+        @Override
+        public void send(String recipientID, String frame) {
+            if (ThreadLocalRandom.current().nextDouble() >= loss) {
+                lower.send(recipientID, frame);
+            }
+        }
+    }
+
+
+    /**
+     * @param protocol  <i>udp</i>, <i>tcp</i> or {@link #LOCAL}.
+     * @param blocking  whether to request with {@link Algorithm#obtainCritSection()}.
+     * @param basePort  the port of the first peer, for UDP and TCP.
+     * @param mailboxCapacity  the size of each peer's mailbox, for the local transport.
+     * @param loss  the fraction of frames to drop, for UDP and TCP.
+     * @param reliable  whether to send over a {@link ReliableLink}, for UDP and TCP.
+     * @param timeoutMillis  if positive, how long to wait with
+     *                       {@link Algorithm#tryObtainCritSection(long)} before withdrawing a
+     *                       request and making it again.
+     */
+    public LoopbackRun(String algorithmName, String protocol, int numPeers, int entriesPerPeer,
+                       long holdMillis, boolean blocking, int basePort, int mailboxCapacity,
+                       double loss, boolean reliable, long timeoutMillis) {
+        this.algorithmName = algorithmName;
+        this.protocol = protocol.toLowerCase();
+        this.numPeers = numPeers;
+        this.entriesPerPeer = entriesPerPeer;
+        this.holdMillis = holdMillis;
+        this.blocking = blocking;
+        this.basePort = basePort;
+        this.mailboxCapacity = mailboxCapacity;
+        this.loss = loss;
+        this.reliable = reliable;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Runs the peers until they have all made their entries or stalled.
+     *
+     * @return one line of results, see {@link #header()}.
+     */
+    public String run() throws IOException, InterruptedException {
+        ArrayList<String> ids = new ArrayList<>(numPeers);
+        for (int i = 0; i < numPeers; i++) {
+            ids.add("127.0.0.1:" + (basePort + i));
+        }
+        final PeerHandles handles = new PeerHandles(ids);
+
+        ArrayList<Node> nodes = protocol.equals(LOCAL) ? startLocalNodes(ids) : new ArrayList<Node>(numPeers);
+        if (!protocol.equals(LOCAL)) {
+            NioTransport.Protocol nioProtocol = NioTransport.Protocol.valueOf(protocol.toUpperCase());
+            for (int i = 0; i < numPeers; i++) {
+                nodes.add(startNode(nioProtocol, ids.get(i), ids, handles));
+            }
+        }
+
+        if (blocking) {
+            watchdog = Executors.newSingleThreadScheduledExecutor();
+        }
+
+        long start = System.nanoTime();
+
+        ArrayList<Thread> threads = new ArrayList<>(numPeers);
+        for (final Node node : nodes) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    enterRepeatedly(node);
+                }
+            });
+            // A thread blocked for good, e.g. by an algorithm ignoring interrupts, must not keep
+            // the JVM alive.
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        awaitOrStall(threads);
+
+        double elapsed = (System.nanoTime() - start) / 1e6;
+
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+        if (network != null) {
+            if (network.rejectedMessages() > 0) {
+                System.err.println(network.rejectedMessages() + " messages were sent to full mailboxes");
+            }
+            network.shutdown();
+        }
+        long retransmissions = 0;
+        long duplicates = 0;
+        for (Node node : nodes) {
+            if (node.reliable != null) {
+                retransmissions += node.reliable.retransmissions();
+                duplicates += node.reliable.duplicates();
+                node.reliable.shutdown();
+            }
+            if (node.transport != null) {
+                node.dispatcher.shutdown();
+                node.transport.close();
+            }
+        }
+        if (reliable) {
+            System.err.println(retransmissions + " frames were sent again, " + duplicates + " duplicates dropped");
+        }
+
+        return String.format("%-22s %5s %6d %8d %11.1f %10.1f %7d %7d %6d",
+                algorithmName, protocol, numPeers, entries.get(), elapsed,
+                entries.get() * 1000.0 / elapsed, gaveUp.get(), stalled.get(), unsafe.get());
+    }
+
+    public static String header() {
+        return String.format("%-22s %5s %6s %8s %11s %10s %7s %7s %6s",
+                "algorithm", "proto", "peers", "entries", "elapsed(ms)", "thru(1/s)", "gaveup", "stalled", "unsafe");
+    }
+
+    /**
+     * Waits for the threads to finish. Threads still running once no entry has been made
+     * for twice the stall timeout are blocked for good and counted as stalled; the others
+     * give up their requests after the stall timeout by themselves.
+     */
+    private void awaitOrStall(ArrayList<Thread> threads) throws InterruptedException {
+        int lastEntries = -1;
+        long lastProgress = System.currentTimeMillis();
+
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                thread.join(100);
+
+                long now = System.currentTimeMillis();
+                if (entries.get() != lastEntries) {
+                    lastEntries = entries.get();
+                    lastProgress = now;
+                } else if (now - lastProgress > 2 * STALL_TIMEOUT) {
+                    for (Thread blocked : threads) {
+                        if (blocked.isAlive()) {
+                            stalled.incrementAndGet();
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private ArrayList<Node> startLocalNodes(ArrayList<String> ids) {
+        network = new LocalNetwork(mailboxCapacity);
+
+        ArrayList<LocalPeer> peers = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            peers.add(network.addPeer(id));
+        }
+
+        ArrayList<Node> nodes = new ArrayList<>(ids.size());
+        for (LocalPeer self : peers) {
+            Node node = new Node();
+            node.algorithm = Simulator.createAlgorithm(algorithmName, new ArrayList<ITetrisPeer>(peers), self,
+                    HybridLogicalClock.SYSTEM_TIME);
+            network.attach(self, node.algorithm);
+            nodes.add(node);
+        }
+
+        return nodes;
+    }
+
+    private Node startNode(NioTransport.Protocol nioProtocol, String selfID, ArrayList<String> ids,
+                           final PeerHandles handles) throws IOException {
+        final Node node = new Node();
+
+        final FrameReceiver toAlgorithm = new FrameReceiver() {
+            @Override
+            public void receive(String frame) {
+                WireFormat.Reader in = new WireFormat.Reader(frame);
+
+                if (in.readByte() != WireFormat.VERSION || in.readByte() != ALGORITHM_MESSAGE) {
+                    return;
+                }
+
+                ITetrisPeer sender = node.peersByID.get(in.readID(handles));
+                node.dispatcher.dispatch(sender, in.readRemaining());
+            }
+        };
+
+        node.transport = new NioTransport(nioProtocol, selfID, 0, new FrameReceiver() {
+            @Override
+            public void receive(String frame) {
+                ReliableLink reliableLink = node.reliable;
+                (reliableLink != null ? reliableLink : toAlgorithm).receive(frame);
+            }
+        });
+
+        OutboundBatcher.Link link = loss > 0 ? new LossyLink(node.transport, loss) : node.transport;
+        if (reliable) {
+            node.reliable = new ReliableLink(link, handles, selfID, RELIABLE_MESSAGE, ACK_MESSAGE, toAlgorithm);
+            link = node.reliable;
+        }
+
+        ArrayList<ITetrisPeer> peers = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            NioPeer peer = new NioPeer(id, link, handles, ALGORITHM_MESSAGE);
+            peers.add(peer);
+            node.peersByID.put(id, peer);
+        }
+
+        node.algorithm = Simulator.createAlgorithm(algorithmName, peers, node.peersByID.get(selfID),
+                HybridLogicalClock.SYSTEM_TIME);
+        node.dispatcher = new AlgorithmDispatcher(node.algorithm);
+        return node;
+    }
+
+    private void enterRepeatedly(Node node) {
+        try {
+            for (int i = 0; i < entriesPerPeer; i++) {
+                CritSectLease lease = null;
+
+                if (timeoutMillis > 0) {
+                    if (!tryObtainOrStall(node)) {
+                        stalled.incrementAndGet();
+                        return;
+                    }
+                } else if (blocking) {
+                    if (!obtainOrStall(node)) {
+                        stalled.incrementAndGet();
+                        return;
+                    }
+                } else {
+                    lease = node.algorithm.requestCritSection();
+
+                    if (!lease.await(STALL_TIMEOUT)) {
+                        stalled.incrementAndGet();
+                        lease.cancel();
+                        return;
+                    }
+                }
+
+                if (inCritSection.incrementAndGet() > 1) {
+                    unsafe.incrementAndGet();
+                }
+                entries.incrementAndGet();
+
+                if (holdMillis > 0) {
+                    Thread.sleep(holdMillis);
+                }
+
+                inCritSection.decrementAndGet();
+                if (lease != null) {
+                    lease.release();
+                } else {
+                    node.algorithm.releaseCritSection();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Requests the Critical Section with {@link Algorithm#obtainCritSection()}, interrupting it
+     * once it has been pending for the stall timeout.
+     *
+     * @return <i>true</i> if the Critical Section was obtained.
+     */
+    private boolean obtainOrStall(Node node) {
+        final Thread caller = Thread.currentThread();
+        final boolean[] armed = {true};
+
+        watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (armed) {
+                    if (armed[0]) {
+                        armed[0] = false;
+                        caller.interrupt();
+                    }
+                }
+            }
+        }, STALL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        boolean obtained = node.algorithm.obtainCritSection();
+
+        synchronized (armed) {
+            if (!armed[0] && obtained) {
+                // Interrupted just after obtaining it, which is not a stall.
+                Thread.interrupted();
+            }
+            armed[0] = false;
+        }
+
+        return obtained;
+    }
+
+    /**
+     * Requests the Critical Section with {@link Algorithm#tryObtainCritSection(long)}, making
+     * the request again each time it times out, until the stall timeout.
+     *
+     * @return <i>true</i> if the Critical Section was obtained.
+     */
+    private boolean tryObtainOrStall(Node node) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STALL_TIMEOUT;
+
+        while (!node.algorithm.tryObtainCritSection(timeoutMillis)) {
+            gaveUp.incrementAndGet();
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String algorithms = Simulator.RICART_AGRAWALA;
+        String peers = "8";
+        String protocol = "udp";
+        int entriesPerPeer = 20;
+        long holdMillis = 1;
+        boolean blocking = false;
+        int port = 21000;
+        int mailboxCapacity = 4096;
+        double loss = 0;
+        boolean reliable = false;
+        long timeoutMillis = 0;
+
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+
+                switch (args[i]) {
+                    case "--algorithms":
+                        algorithms = value;
+                        break;
+                    case "--peers":
+                        peers = value;
+                        break;
+                    case "--entries":
+                        entriesPerPeer = Integer.parseInt(value);
+                        break;
+                    case "--hold":
+                        holdMillis = Long.parseLong(value);
+                        break;
+                    case "--protocol":
+                        if (!value.equalsIgnoreCase(LOCAL)) {
+                            NioTransport.Protocol.valueOf(value.toUpperCase());
+                        }
+                        protocol = value;
+                        break;
+                    case "--blocking":
+                        blocking = Boolean.parseBoolean(value);
+                        break;
+                    case "--mailbox":
+                        mailboxCapacity = Integer.parseInt(value);
+                        break;
+                    case "--loss":
+                        loss = Double.parseDouble(value);
+                        break;
+                    case "--reliable":
+                        reliable = Boolean.parseBoolean(value);
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--timeout":
+                        timeoutMillis = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoopbackRun [--algorithms a,b,..] [--peers n,m,..] [--entries e]"
+                    + " [--hold ms] [--protocol udp|tcp|local] [--blocking true|false] [--port p] [--mailbox n]"
+                    + " [--loss fraction] [--reliable true|false] [--timeout ms]");
+            System.exit(1);
+        }
+
+        System.out.println(header());
+
+        // Every run gets ports of its own, so sockets still closing do not get in the way.
+        for (String algorithm : algorithms.split(",")) {
+            for (String size : peers.split(",")) {
+                int numPeers = Integer.parseInt(size.trim());
+                LoopbackRun run = new LoopbackRun(algorithm.trim(), protocol, numPeers, entriesPerPeer,
+                        holdMillis, blocking, port, mailboxCapacity, loss, reliable, timeoutMillis);
+                System.out.println(run.run());
+                port += numPeers;
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.Algorithm;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.CritSectLease;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.DummyPlayer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.HybridLogicalClock;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.ITetrisPeer;
+
+/**
+ * A deterministic discrete-event simulation of a group of peers running one of the
+ * mutual exclusion {@link Algorithm}s.
+ *
+ * Peers are {@link DummyPlayer}s whose messages are turned into delivery events on a virtual
+ * clock. Channels are FIFO, with a latency drawn from the {@link Workload}.
+ *
+ * Requests are made with requestCritSection(), whose {@link CritSectLease} reports the outcome
+ * while the simulation delivers messages, so the whole simulation runs in a single thread and
+ * the order of events does not depend on the host's thread scheduling.
+ */
+public final class Simulation implements DummyPlayer.Network, HybridLogicalClock.TimeSource {
+
+    private static final int REQUEST = 0;
+    private static final int DELIVER = 1;
+    private static final int RELEASE = 2;
+    private static final int GIVE_UP = 3;
+
+    /** A scheduled event. Events are ordered by time, then by the order they were scheduled in. */
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final int type;
+        final Node node;
+        final Node sender;
+        final String msg;
+
+        Event(long time, long sequence, int type, Node node, Node sender, String msg) {
+            this.time = time;
+            this.sequence = sequence;
+            this.type = type;
+            this.node = node;
+            this.sender = sender;
+            this.msg = msg;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /** A simulated peer and its pending request, if any. */
+    private static final class Node {
+        final int index;
+        final DummyPlayer peer;
+        Algorithm algorithm;
+
+        /** Critical Section entries this peer still has to request. */
+        int remaining;
+
+        /** The lease of the pending or granted request, or <i>null</i>. */
+        CritSectLease lease;
+        long requestedAt;
+
+        /** Set while the pending request is being given up. */
+        boolean givingUp;
+
+        /** Whether the peer is on a slow link, see {@link Workload#getSlowFraction}. */
+        boolean slow;
+
+        Node(int index, DummyPlayer peer) {
+            this.index = index;
+            this.peer = peer;
+        }
+    }
+
+    private final String algorithmName;
+    private final Workload workload;
+    private final Random random;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long sequence = 0;
+    /** Virtual time in microseconds. Also read by the algorithms' threads, as physical time. */
+    private volatile long now = 0;
+
+    private final Node[] nodes;
+    private final Map<String, Node> nodesByID;
+
+    /** Delivery time of the last message on each channel, to keep channels FIFO. */
+    private final long[][] lastDelivery;
+
+    private final SimulationResult result;
+
+    private int pendingRequests = 0;
+    private int inCritSection = 0;
+    private long lastExit = -1;
+    private boolean exitWithWaiters = false;
+
+    /** Set once the run is over, so abandoned requests cannot add to the results. */
+    private boolean finished = false;
+
+    /**
+     * Sets up a group of peers running the given algorithm.
+     *
+     * @param algorithmName  name of the algorithm, see {@link Simulator#createAlgorithm}.
+     * @param numPeers  size of the group.
+     * @param workload  the contention workload to drive the group with.
+     */
+    public Simulation(String algorithmName, int numPeers, Workload workload) {
+        this.algorithmName = algorithmName;
+        this.workload = workload;
+        this.random = new Random(workload.getSeed());
+        this.result = new SimulationResult(algorithmName, numPeers);
+
+        nodes = new Node[numPeers];
+        nodesByID = new HashMap<>(numPeers);
+        lastDelivery = new long[numPeers][numPeers];
+
+        for (int i = 0; i < numPeers; i++) {
+            // Zero-padded, so the algorithms' sorted peer order matches the node index.
+            String id = String.format("peer%04d@sim", i);
+            nodes[i] = new Node(i, new DummyPlayer(id, this));
+            nodesByID.put(id, nodes[i]);
+        }
+
+        // Chosen with their own generator, so the other random choices do not change.
+        ArrayList<Node> shuffled = new ArrayList<>(Arrays.asList(nodes));
+        Collections.shuffle(shuffled, new Random(workload.getSeed() + 1));
+        int numSlow = (int) Math.round(workload.getSlowFraction() * numPeers);
+        for (int i = 0; i < numSlow; i++) {
+            shuffled.get(i).slow = true;
+        }
+
+        for (Node n : nodes) {
+            // Algorithms sort the list they are given, so each gets its own copy.
+            ArrayList<ITetrisPeer> peers = new ArrayList<>(numPeers);
+            for (Node m : nodes) {
+                peers.add(m.peer);
+            }
+            n.algorithm = Simulator.createAlgorithm(algorithmName, peers, n.peer, this);
+        }
+    }
+
+    /**
+     * Runs the workload to completion, or until no more events are pending.
+     *
+     * @return the metrics collected during the run.
+     */
+    public SimulationResult run() {
+        List<Node> active = new ArrayList<>();
+        Collections.addAll(active, nodes);
+        Collections.shuffle(active, random);
+
+        int numActive = workload.getActivePeers() <= 0
+                ? nodes.length : Math.min(workload.getActivePeers(), nodes.length);
+
+        for (Node n : active.subList(0, numActive)) {
+            n.remaining = workload.getEntriesPerPeer();
+            scheduleRequest(n);
+        }
+
+        long processed = 0;
+        Event e;
+        while ((e = nextEvent()) != null) {
+            if (++processed > workload.getMaxEvents()) {
+                break;
+            }
+
+            now = e.time;
+
+            switch (e.type) {
+                case REQUEST:
+                    handleRequest(e.node);
+                    break;
+
+                case DELIVER:
+                    handleDelivery(e.node, e.sender, e.msg);
+                    break;
+
+                case RELEASE:
+                    handleRelease(e.node);
+                    break;
+
+                case GIVE_UP:
+                    handleGiveUp(e.node);
+                    break;
+            }
+        }
+
+        synchronized (this) {
+            finished = true;
+        }
+        result.duration = now;
+
+        // Anything still waiting at this point will never be granted.
+        for (Node n : nodes) {
+            if (n.lease != null && !n.lease.isDone()) {
+                result.stalledRequests++;
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized boolean transmit(String senderID, String recipientID, String msg) {
+        Node sender = nodesByID.get(senderID);
+        Node recipient = nodesByID.get(recipientID);
+
+        if (finished || sender == null || recipient == null) {
+            return false;
+        }
+
+        long delay = 0;
+        if (sender != recipient) {
+            double latency = workload.getLatency() + random.nextDouble() * workload.getJitter();
+            if (sender.slow) {
+                latency += workload.getSlowLatency();
+            }
+            if (recipient.slow) {
+                latency += workload.getSlowLatency();
+            }
+            delay = toMicros(latency);
+        }
+
+        long at = Math.max(now + delay, lastDelivery[sender.index][recipient.index]);
+        lastDelivery[sender.index][recipient.index] = at;
+
+        result.messages++;
+        result.bytes += msg.length();
+        schedule(at, DELIVER, recipient, sender, msg);
+        return true;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now / 1000;
+    }
+
+    private synchronized void schedule(long time, int type, Node node, Node sender, String msg) {
+        events.add(new Event(time, sequence++, type, node, sender, msg));
+    }
+
+    private synchronized Event nextEvent() {
+        return events.poll();
+    }
+
+    private void scheduleRequest(Node n) {
+        double think = -workload.getThinkTime() * Math.log(1.0 - random.nextDouble());
+        schedule(now + toMicros(think), REQUEST, n, null, null);
+    }
+
+    private void handleRequest(final Node n) {
+        n.remaining--;
+        n.requestedAt = now;
+        pendingRequests++;
+
+        try {
+            n.lease = n.algorithm.requestCritSection();
+        } catch (RuntimeException ex) {
+            result.errors++;
+            failed(n);
+            return;
+        }
+
+        n.lease.setListener(new CritSectLease.Listener() {
+            @Override
+            public void onGranted(CritSectLease lease) {
+                granted(n);
+            }
+
+            @Override
+            public void onFailed(CritSectLease lease) {
+                failed(n);
+            }
+        });
+
+        if (workload.getPatience() > 0 && !n.lease.isDone()) {
+            schedule(now + toMicros(workload.getPatience()), GIVE_UP, n, null, null);
+        }
+    }
+
+    /**
+     * Cancels the request of the given node if it is still pending since the patience ran out.
+     * The event may be left over from an earlier request, which has been granted already.
+     */
+    private void handleGiveUp(Node n) {
+        if (n.lease == null || n.lease.isDone()
+                || now - n.requestedAt < toMicros(workload.getPatience())) {
+            return;
+        }
+
+        n.givingUp = true;
+        try {
+            n.lease.cancel();
+        } catch (RuntimeException ex) {
+            result.errors++;
+        }
+        n.givingUp = false;
+    }
+
+    private void handleDelivery(Node n, Node sender, String msg) {
+        try {
+            n.algorithm.receiveMessage(sender.peer, msg);
+        } catch (RuntimeException ex) {
+            result.errors++;
+        }
+    }
+
+    private void handleRelease(Node n) {
+        inCritSection--;
+        lastExit = now;
+        exitWithWaiters = pendingRequests > 0;
+
+        try {
+            n.lease.release();
+        } catch (RuntimeException ex) {
+            result.errors++;
+        }
+        n.lease = null;
+
+        if (n.remaining > 0) {
+            scheduleRequest(n);
+        }
+    }
+
+    /**
+     * Records an entry of the given node and schedules the release of the Critical Section.
+     */
+    private void granted(Node n) {
+        if (finished) {
+            return;
+        }
+
+        pendingRequests--;
+        result.entries++;
+        result.responseTimes.add(now - n.requestedAt);
+
+        if (++inCritSection > 1) {
+            result.safetyViolations++;
+        }
+
+        if (exitWithWaiters) {
+            result.syncDelays.add(now - lastExit);
+            exitWithWaiters = false;
+        }
+
+        schedule(now + toMicros(workload.getHoldTime()), RELEASE, n, null, null);
+    }
+
+    private void failed(Node n) {
+        if (finished) {
+            return;
+        }
+
+        pendingRequests--;
+        if (n.givingUp) {
+            result.cancelledRequests++;
+        } else {
+            result.failedRequests++;
+        }
+        n.lease = null;
+
+        if (n.remaining > 0) {
+            scheduleRequest(n);
+        }
+    }
+
+    private static long toMicros(double millis) {
+        return Math.round(millis * 1000.0);
+    }
+
+    public String getAlgorithmName() {
+        return algorithmName;
+    }
+}
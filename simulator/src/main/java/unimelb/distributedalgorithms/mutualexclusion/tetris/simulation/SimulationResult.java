@@ -0,0 +1,139 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.simulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+
+/**
+ * Metrics collected during a single {@link Simulation} run.
+ *
+ * Times are recorded in virtual microseconds and reported in milliseconds.
+ */
+public final class SimulationResult {
+
+    private final String algorithm;
+    private final int numPeers;
+
+    /** Number of algorithm messages sent, including messages a peer sends to itself. */
+    long messages;
+
+    /** Total size of the algorithm messages sent, in bytes. */
+    long bytes;
+
+    /** Number of successful Critical Section entries. */
+    long entries;
+
+    /** Number of obtainCritSection calls that returned <i>false</i>. */
+    long failedRequests;
+
+    /** Number of requests given up after the workload's patience ran out. */
+    long cancelledRequests;
+
+    /** Number of requests still pending when the simulation ran out of events. */
+    long stalledRequests;
+
+    /** Number of times a peer entered the Critical Section while another peer was in it. */
+    long safetyViolations;
+
+    /** Number of exceptions thrown by the algorithms while handling messages. */
+    long errors;
+
+    /** Virtual time of the last processed event. */
+    long duration;
+
+    /** Time between requesting and entering the Critical Section, per entry. */
+    final ArrayList<Long> responseTimes = new ArrayList<>();
+
+    /** Time between an exit and the next entry while requests were pending. */
+    final ArrayList<Long> syncDelays = new ArrayList<>();
+
+    SimulationResult(String algorithm, int numPeers) {
+        this.algorithm = algorithm;
+        this.numPeers = numPeers;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getNumPeers() {
+        return numPeers;
+    }
+
+    public double getMessagesPerEntry() {
+        return entries == 0 ? Double.NaN : (double) messages / entries;
+    }
+
+    public double getBytesPerMessage() {
+        return messages == 0 ? Double.NaN : (double) bytes / messages;
+    }
+
+    /** @return mean response time in milliseconds. */
+    public double getMeanResponseTime() {
+        return mean(responseTimes) / 1000.0;
+    }
+
+    /** @return 95th percentile of the response time in milliseconds. */
+    public double getResponseTime95() {
+        return percentile(responseTimes, 0.95) / 1000.0;
+    }
+
+    /** @return mean synchronization delay in milliseconds. */
+    public double getMeanSyncDelay() {
+        return mean(syncDelays) / 1000.0;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getStalledRequests() {
+        return stalledRequests;
+    }
+
+    public long getSafetyViolations() {
+        return safetyViolations;
+    }
+
+    /** @return Critical Section entries per (virtual) second. */
+    public double getThroughput() {
+        return duration == 0 ? Double.NaN : entries * 1000000.0 / duration;
+    }
+
+    public static String header() {
+        return String.format(Locale.ROOT, "%-22s %6s %8s %10s %9s %10s %10s %10s %10s %7s %7s %7s %6s",
+                "algorithm", "peers", "entries", "msg/entry", "bytes/msg", "resp(ms)", "resp95(ms)",
+                "sync(ms)", "thru(1/s)", "failed", "gaveup", "stalled", "unsafe");
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%-22s %6d %8d %10.2f %9.1f %10.2f %10.2f %10.2f %10.3f %7d %7d %7d %6d",
+                algorithm, numPeers, entries, getMessagesPerEntry(), getBytesPerMessage(), getMeanResponseTime(),
+                getResponseTime95(), getMeanSyncDelay(), getThroughput(),
+                failedRequests, cancelledRequests, stalledRequests, safetyViolations);
+    }
+
+    private static double mean(ArrayList<Long> values) {
+        if (values.isEmpty()) {
+            return Double.NaN;
+        }
+
+        double sum = 0;
+        for (long v : values) {
+            sum += v;
+        }
+        return sum / values.size();
+    }
+
+    private static double percentile(ArrayList<Long> values, double p) {
+        if (values.isEmpty()) {
+            return Double.NaN;
+        }
+
+        ArrayList<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+}
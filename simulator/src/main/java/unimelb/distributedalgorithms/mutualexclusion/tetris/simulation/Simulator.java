@@ -0,0 +1,226 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.simulation;
+
+import java.util.ArrayList;
+
+import unimelb.distributedalgorithms.mutualexclusion.tetris.AgrawalElAbbadi;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.Algorithm;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.GridQuorum;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.HierarchicalQuorum;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.HybridLogicalClock;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.ITetrisPeer;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.MajorityQuorum;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.NaimiTrehel;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.Raymond;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.RicartAgrawala;
+import unimelb.distributedalgorithms.mutualexclusion.tetris.SuzukiKasami;
+
+/**
+ * Command line entry point of the simulator. Runs every requested algorithm for every
+ * requested group size under the same {@link Workload} and prints one line of metrics per run.
+ *
+ * Usage: Simulator [--algorithms a,b,..] [--peers n,m,..] [--active k] [--entries e]
+ *                  [--think ms] [--hold ms] [--latency ms] [--jitter ms]
+ *                  [--slow fraction] [--slow-latency ms] [--patience ms] [--seed s]
+ *                  [--check true]
+ *
+ * With --check true it exits with status 2 if any run had stalled or unsafe entries, or no
+ * entries at all, so a configuration can be run as a regression check.
+ */
+public final class Simulator {
+
+    public static final String RICART_AGRAWALA = "ricart-agrawala";
+
+    /** Ricart-Agrawala with a {@link HybridLogicalClock} instead of Lamport timestamps. */
+    public static final String RICART_AGRAWALA_HYBRID = "ricart-agrawala-hlc";
+    public static final String RAYMOND = "raymond";
+    public static final String SUZUKI_KASAMI = "suzuki-kasami";
+    public static final String NAIMI_TREHEL = "naimi-trehel";
+    public static final String AGRAWAL_EL_ABBADI = "agrawal-el-abbadi";
+
+    /** Agrawal El-Abbadi, sending only the changed entries of its vector clock. */
+    public static final String AGRAWAL_EL_ABBADI_DIFFERENTIAL = "agrawal-el-abbadi-diff";
+
+    /** Agrawal El-Abbadi with a {@link HybridLogicalClock} instead of the vector clock. */
+    public static final String AGRAWAL_EL_ABBADI_HYBRID = "agrawal-el-abbadi-hlc";
+
+    /** Agrawal El-Abbadi with hybrid logical clocks, choosing quorums by round trip time. */
+    public static final String AGRAWAL_EL_ABBADI_LATENCY_AWARE = "agrawal-el-abbadi-rtt";
+
+    /** The Agrawal El-Abbadi engine with grid quorums (Maekawa) and hybrid logical clocks. */
+    public static final String GRID_QUORUM = "quorum-grid";
+
+    /** The Agrawal El-Abbadi engine with majority quorums and hybrid logical clocks. */
+    public static final String MAJORITY_QUORUM = "quorum-majority";
+
+    /** The Agrawal El-Abbadi engine with hierarchical quorums and hybrid logical clocks. */
+    public static final String HIERARCHICAL_QUORUM = "quorum-hierarchical";
+
+    private static final String DEFAULT_ALGORITHMS =
+            RICART_AGRAWALA + "," + RICART_AGRAWALA_HYBRID + "," + RAYMOND + "," + SUZUKI_KASAMI + "," + NAIMI_TREHEL
+                    + "," + AGRAWAL_EL_ABBADI + "," + AGRAWAL_EL_ABBADI_DIFFERENTIAL
+                    + "," + AGRAWAL_EL_ABBADI_HYBRID + "," + AGRAWAL_EL_ABBADI_LATENCY_AWARE + "," + GRID_QUORUM + "," + MAJORITY_QUORUM
+                    + "," + HIERARCHICAL_QUORUM;
+    private static final String DEFAULT_PEERS = "4,8,16,32,64,128,256,512,1024";
+
+    private Simulator() {
+    }
+
+    /**
+     * Creates an instance of the named algorithm.
+     *
+     * @param name  one of the algorithm names defined in {@link Simulator}.
+     * @param peers  all peers in the group, including {@param self}.
+     * @param self  the peer the algorithm runs for.
+     * @param timeSource  physical time for algorithms using a {@link HybridLogicalClock}.
+     *
+     * @return the new {@link Algorithm}.
+     */
+    public static Algorithm createAlgorithm(String name, ArrayList<ITetrisPeer> peers, ITetrisPeer self,
+                                            HybridLogicalClock.TimeSource timeSource) {
+        switch (name) {
+            case RICART_AGRAWALA:
+                return new RicartAgrawala(peers, self);
+
+            case RICART_AGRAWALA_HYBRID:
+                RicartAgrawala ricartAgrawala = new RicartAgrawala(peers, self);
+                ricartAgrawala.useHybridClock(timeSource);
+                return ricartAgrawala;
+
+            case RAYMOND:
+                return new Raymond(peers, self);
+
+            case SUZUKI_KASAMI:
+                return new SuzukiKasami(peers, self);
+
+            case NAIMI_TREHEL:
+                return new NaimiTrehel(peers, self);
+
+            case AGRAWAL_EL_ABBADI:
+                return new AgrawalElAbbadi(peers, self);
+
+            case AGRAWAL_EL_ABBADI_DIFFERENTIAL:
+                AgrawalElAbbadi differential = new AgrawalElAbbadi(peers, self);
+                differential.setDifferentialClocks(true);
+                return differential;
+
+            case AGRAWAL_EL_ABBADI_HYBRID:
+                AgrawalElAbbadi hybrid = new AgrawalElAbbadi(peers, self);
+                hybrid.useHybridClock(timeSource);
+                return hybrid;
+
+            case AGRAWAL_EL_ABBADI_LATENCY_AWARE:
+                AgrawalElAbbadi latencyAware = new AgrawalElAbbadi(peers, self);
+                latencyAware.useHybridClock(timeSource);
+                latencyAware.useLatencyAwareQuorums(timeSource);
+                return latencyAware;
+
+            case GRID_QUORUM:
+                AgrawalElAbbadi grid = new AgrawalElAbbadi(peers, self);
+                grid.useHybridClock(timeSource);
+                grid.useQuorumSystem(new GridQuorum(peers.size()));
+                return grid;
+
+            case MAJORITY_QUORUM:
+                AgrawalElAbbadi majority = new AgrawalElAbbadi(peers, self);
+                majority.useHybridClock(timeSource);
+                majority.useQuorumSystem(new MajorityQuorum(peers.size()));
+                return majority;
+
+            case HIERARCHICAL_QUORUM:
+                AgrawalElAbbadi hierarchical = new AgrawalElAbbadi(peers, self);
+                hierarchical.useHybridClock(timeSource);
+                hierarchical.useQuorumSystem(new HierarchicalQuorum(peers.size()));
+                return hierarchical;
+
+            default:
+                throw new IllegalArgumentException("Unknown algorithm: " + name);
+        }
+    }
+
+    public static void main(String[] args) {
+        String algorithms = DEFAULT_ALGORITHMS;
+        String peers = DEFAULT_PEERS;
+        Workload workload = new Workload();
+        boolean check = false;
+
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+
+                switch (args[i]) {
+                    case "--algorithms":
+                        algorithms = value;
+                        break;
+                    case "--peers":
+                        peers = value;
+                        break;
+                    case "--active":
+                        workload.setActivePeers(Integer.parseInt(value));
+                        break;
+                    case "--entries":
+                        workload.setEntriesPerPeer(Integer.parseInt(value));
+                        break;
+                    case "--think":
+                        workload.setThinkTime(Double.parseDouble(value));
+                        break;
+                    case "--hold":
+                        workload.setHoldTime(Double.parseDouble(value));
+                        break;
+                    case "--latency":
+                        workload.setLatency(Double.parseDouble(value));
+                        break;
+                    case "--jitter":
+                        workload.setJitter(Double.parseDouble(value));
+                        break;
+                    case "--slow":
+                        workload.setSlowFraction(Double.parseDouble(value));
+                        break;
+                    case "--slow-latency":
+                        workload.setSlowLatency(Double.parseDouble(value));
+                        break;
+                    case "--patience":
+                        workload.setPatience(Double.parseDouble(value));
+                        break;
+                    case "--seed":
+                        workload.setSeed(Long.parseLong(value));
+                        break;
+                    case "--check":
+                        check = Boolean.parseBoolean(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Simulator [--algorithms a,b,..] [--peers n,m,..] [--active k]"
+                    + " [--entries e] [--think ms] [--hold ms] [--latency ms] [--jitter ms]"
+                    + " [--slow fraction] [--slow-latency ms] [--patience ms] [--seed s] [--check true]");
+            System.exit(1);
+        }
+
+        System.out.println("Workload: " + workload);
+        System.out.println(SimulationResult.header());
+
+        boolean failed = false;
+
+        for (String algorithm : algorithms.split(",")) {
+            for (String size : peers.split(",")) {
+                Simulation simulation = new Simulation(algorithm.trim(), Integer.parseInt(size.trim()), workload);
+                SimulationResult result = simulation.run();
+                System.out.println(result);
+
+                failed |= result.getEntries() == 0 || result.getStalledRequests() > 0
+                        || result.getSafetyViolations() > 0;
+            }
+        }
+
+        if (check && failed) {
+            System.err.println("Stalled, unsafe or no Critical Section entries");
+            System.exit(2);
+        }
+    }
+}
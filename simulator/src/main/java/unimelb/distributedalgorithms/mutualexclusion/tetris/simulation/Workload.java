@@ -0,0 +1,149 @@
+package unimelb.distributedalgorithms.mutualexclusion.tetris.simulation;
+
+/**
+ * Describes the contention workload a {@link Simulation} drives the algorithms with.
+ *
+ * Every active peer repeatedly thinks for an exponentially distributed time, requests the
+ * Critical Section, holds it for a fixed time and releases it again. Contention is controlled
+ * by the ratio between think and hold time, and by the number of active peers.
+ *
+ * All times are given in (virtual) milliseconds.
+ */
+public final class Workload {
+
+    /** Number of peers that request the Critical Section. Zero means all peers. */
+    private int activePeers = 0;
+
+    /** Number of Critical Section entries each active peer requests. */
+    private int entriesPerPeer = 2;
+
+    /** Mean time between releasing the Critical Section and requesting it again. */
+    private double thinkTime = 500;
+
+    /** Time the Critical Section is held for. */
+    private double holdTime = 50;
+
+    /** Minimum one-way latency of a message between two different peers. */
+    private double latency = 10;
+
+    /** Maximum additional (uniformly distributed) latency of a message. */
+    private double jitter = 5;
+
+    /** Fraction of the peers on a slow link, e.g. cellular instead of Wi-Fi. */
+    private double slowFraction = 0;
+
+    /** Additional one-way latency of every message to or from a peer on a slow link. */
+    private double slowLatency = 100;
+
+    /**
+     * Time after which a pending request is given up, e.g. because the player's piece has
+     * landed in the meantime. Zero means requests are never given up.
+     */
+    private double patience = 0;
+
+    /** Seed for all random choices, so runs can be reproduced. */
+    private long seed = 42;
+
+    /** Number of events after which a run is considered stuck. */
+    private long maxEvents = 50000000L;
+
+    public int getActivePeers() {
+        return activePeers;
+    }
+
+    public void setActivePeers(int activePeers) {
+        this.activePeers = activePeers;
+    }
+
+    public int getEntriesPerPeer() {
+        return entriesPerPeer;
+    }
+
+    public void setEntriesPerPeer(int entriesPerPeer) {
+        this.entriesPerPeer = entriesPerPeer;
+    }
+
+    public double getThinkTime() {
+        return thinkTime;
+    }
+
+    public void setThinkTime(double thinkTime) {
+        this.thinkTime = thinkTime;
+    }
+
+    public double getHoldTime() {
+        return holdTime;
+    }
+
+    public void setHoldTime(double holdTime) {
+        this.holdTime = holdTime;
+    }
+
+    public double getLatency() {
+        return latency;
+    }
+
+    public void setLatency(double latency) {
+        this.latency = latency;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
+    public double getSlowFraction() {
+        return slowFraction;
+    }
+
+    public void setSlowFraction(double slowFraction) {
+        this.slowFraction = slowFraction;
+    }
+
+    public double getSlowLatency() {
+        return slowLatency;
+    }
+
+    public void setSlowLatency(double slowLatency) {
+        this.slowLatency = slowLatency;
+    }
+
+    public double getPatience() {
+        return patience;
+    }
+
+    public void setPatience(double patience) {
+        this.patience = patience;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getMaxEvents() {
+        return maxEvents;
+    }
+
+    public void setMaxEvents(long maxEvents) {
+        this.maxEvents = maxEvents;
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + (activePeers == 0 ? "all" : Integer.toString(activePeers))
+                + " entries/peer=" + entriesPerPeer
+                + " think=" + thinkTime + "ms"
+                + " hold=" + holdTime + "ms"
+                + " latency=" + latency + "+" + jitter + "ms"
+                + (slowFraction > 0 ? " slow=" + slowFraction + "x+" + slowLatency + "ms" : "")
+                + (patience > 0 ? " patience=" + patience + "ms" : "")
+                + " seed=" + seed;
+    }
+}